@@ -0,0 +1,252 @@
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * This class is an output stream that hands its data to a background thread,
+ * which does the actual writing.  Data is copied into a fixed ring of blocks;
+ * full blocks are queued for the writer thread and come back empty once they
+ * are on disk.  The simulation thread only waits if every block is full,
+ * which bounds memory use no matter how far the disk falls behind.
+ *
+ * Errors from the writer thread are thrown by the next write, flush, or close.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class AsyncOutputStream extends OutputStream {
+
+	/**
+	 * A block of the ring, with the number of bytes used.
+	 */
+	private static class Block {
+		private byte[] data;
+		private int length;
+
+		private Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Marker put in the full queue to stop the writer thread.
+	 */
+	private static final Block END = new Block(0);
+
+	/**
+	 * The stream the writer thread writes to.
+	 */
+	private OutputStream target;
+
+	/**
+	 * Blocks waiting to be written, and blocks ready to be filled.
+	 */
+	private BlockingQueue<Block> full, empty;
+
+	/**
+	 * The block currently being filled, or null if none is taken yet.
+	 */
+	private Block current = null;
+
+	/**
+	 * The writer thread.
+	 */
+	private Thread writer;
+
+	/**
+	 * The first error from the writer thread, if any.
+	 */
+	private volatile IOException failure = null;
+
+	/**
+	 * Whether or not the stream has been closed.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Creates a new AsyncOutputStream and starts its writer thread.
+	 *
+	 * @param out
+	 * 			the stream to write to in the background
+	 * @param blocks
+	 * 			the number of blocks in the ring, at least two
+	 * @param blockSize
+	 * 			the size of each block in bytes
+	 */
+	public AsyncOutputStream(OutputStream out, int blocks, int blockSize) {
+		target = out;
+		blocks = Math.max(2, blocks);
+		full = new ArrayBlockingQueue<Block>(blocks + 1);
+		empty = new ArrayBlockingQueue<Block>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			empty.add(new Block(blockSize));
+		}
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "chem-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Writer thread loop.  Writes full blocks in order and returns them to
+	 * the empty queue until the end marker is seen.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				Block block = full.take();
+				if (block == END) {
+					return;
+				}
+				try {
+					if (failure == null) {
+						target.write(block.data, 0, block.length);
+					}
+				} catch (IOException e) {
+					failure = e;
+				}
+				block.length = 0;
+				empty.put(block);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Throws the writer thread's error, if there was one.
+	 *
+	 * @throws IOException
+	 * 			the writer thread's error
+	 */
+	private void check() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	/**
+	 * Queues the current block for writing, if it has anything in it.
+	 *
+	 * @throws IOException
+	 * 			if interrupted while waiting
+	 */
+	private void handOff() throws IOException {
+		if (current != null && current.length > 0) {
+			try {
+				full.put(current);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			current = null;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		check();
+		while (len > 0) {
+			if (current == null) {
+				try {
+					current = empty.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			int n = Math.min(len, current.data.length - current.length);
+			System.arraycopy(b, off, current.data, current.length, n);
+			current.length += n;
+			off += n;
+			len -= n;
+			if (current.length == current.data.length) {
+				handOff();
+			}
+		}
+	}
+
+	/**
+	 * Queues any partly filled block for writing.  This does not wait for
+	 * the data to reach the target, which only close() does.
+	 *
+	 * @throws IOException
+	 * 			if the writer thread has failed
+	 */
+	@Override
+	public void flush() throws IOException {
+		check();
+		handOff();
+	}
+
+	/**
+	 * Queues any partly filled block and waits until everything written so
+	 * far has reached the target, then flushes the target.  Used when the
+	 * output must be complete at a known point, as for a checkpoint.
+	 *
+	 * @throws IOException
+	 * 			if anything could not be written
+	 */
+	public void sync() throws IOException {
+		check();
+		handOff();
+
+		// Every block is back once the writer thread has caught up
+		Block[] blocks = new Block[empty.remainingCapacity() + empty.size()];
+		try {
+			for (int i = 0; i < blocks.length; i++) {
+				blocks[i] = empty.take();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			for (Block block : blocks) {
+				if (block != null) {
+					empty.add(block);
+				}
+			}
+		}
+		check();
+		target.flush();
+	}
+
+	/**
+	 * Writes everything that is queued, stops the writer thread, and closes
+	 * the target stream.
+	 *
+	 * @throws IOException
+	 * 			if anything could not be written or closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			handOff();
+			full.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			closed = true;
+			target.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
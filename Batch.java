@@ -0,0 +1,310 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class runs a batch of simulation jobs in one process, so a sweep of
+ * many small jobs pays for starting the JVM, loading classes, and warming up
+ * the JIT only once.  The jobs are listed in a manifest file, one per line,
+ * each with the same arguments as Chem's command line (options, including
+ * --set for parameter changes, then NUM_RUNS INPUT_FILE OUTPUT_FILE).
+ * Blank lines and lines starting with '#' are skipped:
+ *     java Batch [--threads N] MANIFEST_FILE
+ *
+ * The jobs are run on a work-stealing ForkJoinPool with N threads (all
+ * cores by default), each job on one of them.  Each input file is read only
+ * once, however many jobs use it, and the parsed Model is shared by those
+ * jobs, with their --set changes made on copies that share the rest.  It is
+ * dropped once the last job using it is done.
+ *
+ * Every job is checked before any is run.  A job that fails is reported and
+ * the others go on.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Batch {
+
+	/**
+	 * The parsed Models, or the failure reading them, by input file.  The
+	 * first job to ask for a file reads it, and the others wait for it.
+	 */
+	private ConcurrentHashMap<String, FutureTask<Model>> models =
+			new ConcurrentHashMap<String, FutureTask<Model>>();
+
+	/**
+	 * The number of jobs still to finish with each input file.
+	 */
+	private Map<String, AtomicInteger> uses = new HashMap<String, AtomicInteger>();
+
+	/**
+	 * The number of jobs that failed.
+	 */
+	private AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * One job of the batch, from one line of the manifest.
+	 */
+	private class Job extends RecursiveAction {
+
+		/**
+		 * Version for serialization.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The line of the manifest the job is on.
+		 */
+		private int line;
+
+		/**
+		 * The options of the job.
+		 */
+		private Options options;
+
+		/**
+		 * The key of the job's input file in the Model cache.
+		 */
+		private String key;
+
+		/**
+		 * Creates a new Job.
+		 *
+		 * @param lineNumber
+		 * 			the line of the manifest
+		 * @param jobOptions
+		 * 			the options of the job
+		 * @param modelKey
+		 * 			the key of the input file in the Model cache
+		 */
+		public Job(int lineNumber, Options jobOptions, String modelKey) {
+			line = lineNumber;
+			options = jobOptions;
+			key = modelKey;
+		}
+
+		@Override
+		protected void compute() {
+			long start = System.nanoTime();
+			try {
+				Model model = Chem.configure(getModel(key, options.getInputFile()), options);
+				Chem.runJob(model, options, null);
+				report("Line " + line + ": " + options.getOutputFile() + " done in "
+						+ (System.nanoTime() - start) / 1000000 + " ms");
+			} catch (Chem.JobFailure e) {
+				failed.incrementAndGet();
+				report("Line " + line + ": failed: " + e.getMessage());
+			} catch (RuntimeException e) {
+				failed.incrementAndGet();
+				report("Line " + line + ": failed: " + e);
+			} finally {
+				release(key);
+			}
+		}
+	}
+
+	/**
+	 * Runs a batch of jobs.
+	 *
+	 * @param args
+	 * 			"--threads N" for the number of threads, then the manifest file
+	 */
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		try {
+			if (args.length == 3 && args[0].equals("--threads")) {
+				threads = Integer.parseInt(args[1]);
+				if (threads <= 0) {
+					threads = Runtime.getRuntime().availableProcessors();
+				}
+				i = 2;
+			}
+		} catch (NumberFormatException e) {
+			i = -1;
+		}
+		if (i < 0 || args.length - i != 1) {
+			System.out.println("Usage:\nBatch [--threads N] MANIFEST_FILE");
+			System.exit(0);
+		}
+
+		Batch batch = new Batch();
+		List<Job> jobs = null;
+		try {
+			jobs = batch.readManifest(args[i]);
+		} catch (FileNotFoundException e) {
+			System.out.println("The manifest file could not be found.");
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+
+		// Run every job, stealing work between the threads
+		long start = System.nanoTime();
+		final List<Job> all = jobs;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(all);
+			}
+		});
+		pool.shutdown();
+		System.out.println(jobs.size() + " jobs done in " + (System.nanoTime() - start) / 1000000
+				+ " ms, " + batch.failed.get() + " failed");
+	}
+
+	/**
+	 * Reads the jobs from the manifest file and checks them all: their
+	 * arguments, and that no two write the same file.
+	 *
+	 * @param fileName
+	 * 			the manifest file name
+	 * @return
+	 * 			the jobs, in manifest order
+	 * @throws IOException
+	 * 			if the manifest could not be read or has a bad job, with
+	 * 			every bad line in the message
+	 */
+	private List<Job> readManifest(String fileName) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		Map<String, Integer> written = new HashMap<String, Integer>();
+		StringBuilder errors = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			int number = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+
+				// Each line is a command line of its own
+				Options options;
+				try {
+					options = Options.parse(line.split("\\s+"));
+				} catch (IllegalArgumentException e) {
+					errors.append("\nLine ").append(number).append(": ").append(e.getMessage());
+					continue;
+				}
+				if (options.getMetricsInterval() >= 0) {
+					errors.append("\nLine ").append(number)
+							.append(": metrics are for the whole process, not a job");
+					continue;
+				}
+				for (String file : new String[] {options.getOutputFile(),
+						options.getPartialFile(), options.getCheckpointFile()}) {
+					if (file == null) {
+						continue;
+					}
+					Integer other = written.put(canonical(file), number);
+					if (other != null) {
+						errors.append("\nLine ").append(number).append(": ").append(file)
+								.append(" is also written by line ").append(other);
+					}
+				}
+
+				String key = canonical(options.getInputFile());
+				if (!uses.containsKey(key)) {
+					uses.put(key, new AtomicInteger());
+				}
+				uses.get(key).incrementAndGet();
+				jobs.add(new Job(number, options, key));
+			}
+		} finally {
+			reader.close();
+		}
+		if (errors.length() > 0) {
+			throw new IOException("Bad jobs in the manifest:" + errors);
+		}
+		return jobs;
+	}
+
+	/**
+	 * Returns the Model for the given input file, reading it if no other
+	 * job has.
+	 *
+	 * @param key
+	 * 			the key of the input file in the cache
+	 * @param fileName
+	 * 			the input file name
+	 * @return
+	 * 			the Model
+	 * @throws Chem.JobFailure
+	 * 			if the file could not be read, now or by an earlier job
+	 */
+	private Model getModel(String key, final String fileName) {
+		FutureTask<Model> task = models.get(key);
+		if (task == null) {
+			FutureTask<Model> created = new FutureTask<Model>(new Callable<Model>() {
+				@Override
+				public Model call() {
+					return Chem.initialize(fileName);
+				}
+			});
+			task = models.putIfAbsent(key, created);
+			if (task == null) {
+				task = created;
+				created.run();
+			}
+		}
+
+		// Wait for whichever job is reading it
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new Chem.JobFailure("Error reading from file.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Chem.JobFailure("Interrupted while reading the input file.");
+		}
+	}
+
+	/**
+	 * Marks a job with the given input file as done, and drops the Model
+	 * once no more jobs need it.
+	 *
+	 * @param key
+	 * 			the key of the input file in the cache
+	 */
+	private void release(String key) {
+		if (uses.get(key).decrementAndGet() == 0) {
+			models.remove(key);
+		}
+	}
+
+	/**
+	 * Returns one name for a file however it is written, so the same file
+	 * is recognized through different paths.
+	 *
+	 * @param fileName
+	 * 			the file name
+	 * @return
+	 * 			the canonical path, or the absolute path if there is none
+	 */
+	private static String canonical(String fileName) {
+		File file = new File(fileName);
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Prints a line about a job, whole, while other jobs may be printing.
+	 *
+	 * @param message
+	 * 			the line to print
+	 */
+	private static synchronized void report(String message) {
+		System.out.println(message);
+	}
+}
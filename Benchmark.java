@@ -0,0 +1,459 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class is a small benchmark harness for the simulation.  It times the
+ * pieces the run loop is made of (heap updates, propensity calculations, and
+ * dependency updates) as well as whole runs of every engine, on input.txt or
+ * any other model files given on the command line and on synthetic networks
+ * of increasing size.  Last, it compares the composition-rejection method
+ * with the heap-based next-reaction method on networks of up to 100000
+ * reactions with propensities spread over up to six orders of magnitude, to
+ * show where one overtakes the other.
+ *
+ * Each benchmark is warmed up until the JIT has settled, then timed over a
+ * number of measured iterations, and reported as operations (or events) per
+ * second with the spread over the iterations.  Results of every iteration
+ * are kept in a sink so the JIT can not drop the work as dead code.
+ *
+ * Usage:
+ *     java Benchmark [--quick] [MODEL_FILE ...]
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Benchmark {
+
+	/**
+	 * Interface for one benchmark.  Each call of run() is one timed
+	 * iteration.
+	 */
+	public interface Case {
+
+		/**
+		 * Runs one iteration of the benchmark.
+		 *
+		 * @return
+		 * 			the number of operations done, for the rate
+		 */
+		public long run();
+	}
+
+	/**
+	 * Time spent warming up, and the number and minimum length of measured
+	 * iterations, in milliseconds.
+	 */
+	private long warmupMillis = 1000;
+	private int iterations = 10;
+	private long iterationMillis = 200;
+
+	/**
+	 * Collects results so the work being timed can not be optimized away.
+	 */
+	private static double sink = 0;
+
+	/**
+	 * Random numbers for building benchmark inputs.
+	 */
+	private RandomStream random = new RandomStream(42, 0);
+
+	/**
+	 * Creates a new Benchmark with the given timing.
+	 *
+	 * @param quick
+	 * 			true for short runs that only check everything works
+	 */
+	public Benchmark(boolean quick) {
+		if (quick) {
+			warmupMillis = 100;
+			iterations = 3;
+			iterationMillis = 20;
+		}
+	}
+
+	/**
+	 * Warms up and measures the given benchmark, and prints the rate.
+	 *
+	 * @param name
+	 * 			the name to report
+	 * @param unit
+	 * 			what one operation is, such as "ops" or "events"
+	 * @param c
+	 * 			the benchmark
+	 * @return
+	 * 			the mean rate in operations per second
+	 */
+	public double measure(String name, String unit, Case c) {
+
+		// Warm up until the time is used
+		long end = System.nanoTime() + warmupMillis * 1000000;
+		while (System.nanoTime() < end) {
+			sink += c.run();
+		}
+
+		// Each measured iteration repeats the case until long enough to time
+		double[] rates = new double[iterations];
+		double sum = 0;
+		for (int i = 0; i < iterations; i++) {
+			long ops = 0;
+			long start = System.nanoTime();
+			long elapsed;
+			do {
+				ops += c.run();
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < iterationMillis * 1000000);
+			rates[i] = ops * 1e9 / elapsed;
+			sum += rates[i];
+		}
+		double mean = sum / iterations;
+		double squares = 0;
+		for (double rate : rates) {
+			squares += (rate - mean) * (rate - mean);
+		}
+		double deviation = Math.sqrt(squares / Math.max(1, iterations - 1));
+
+		System.out.println(String.format("%-44s %14.0f %s/s  +- %5.1f%%", name, mean, unit,
+				100 * deviation / mean));
+		return mean;
+	}
+
+	/**
+	 * Benchmarks a heap update, the main operation of the next-reaction
+	 * method: take the reaction at the top and give it a new, later time.
+	 * The generic MinHeap does this by removal and re-insertion, the
+	 * IndexedMinHeap in place.
+	 *
+	 * @param size
+	 * 			the number of reactions in the heap
+	 */
+	public void heaps(final int size) {
+		final double[] times = new double[size];
+		for (int i = 0; i < size; i++) {
+			times[i] = random.nextExponential(1);
+		}
+
+		// Generic heap of Reactions, rebuilt for every iteration
+		final Reaction[] reactions = new Reaction[size];
+		for (int i = 0; i < size; i++) {
+			reactions[i] = new Reaction(1, ReactionType.RXN_ONE, null, null, new int[] { 0 });
+		}
+		measure("MinHeap insert, n=" + size, "ops", new Case() {
+			@Override
+			public long run() {
+				MinHeap<Reaction> heap = new MinHeap<Reaction>(new Reaction[size], 0);
+				for (int i = 0; i < size; i++) {
+					reactions[i].setNextTime(times[i]);
+					heap.insert(reactions[i]);
+				}
+				sink += heap.getMin().getNextTime();
+				return size;
+			}
+		});
+
+		final MinHeap<Reaction> heap = new MinHeap<Reaction>(new Reaction[size], 0);
+		for (int i = 0; i < size; i++) {
+			reactions[i].setNextTime(times[i]);
+			heap.insert(reactions[i]);
+		}
+		final int updates = Math.min(size, 1000);
+		measure("MinHeap getMin/remove/insert, n=" + size, "ops", new Case() {
+			@Override
+			public long run() {
+				for (int k = 0; k < updates; k++) {
+					Reaction min = heap.getMin();
+					heap.remove(min);
+					min.setNextTime(min.getNextTime() + random.nextExponential(1));
+					heap.insert(min);
+				}
+				return updates;
+			}
+		});
+
+		// Refilling the heap at the start of a run, by inserts or bottom-up
+		final IndexedMinHeap indexed = new IndexedMinHeap(size);
+		measure("IndexedMinHeap refill by insert, n=" + size, "ops", new Case() {
+			@Override
+			public long run() {
+				indexed.clear();
+				for (int i = 0; i < size; i++) {
+					indexed.insert(i, times[i]);
+				}
+				return size;
+			}
+		});
+		measure("IndexedMinHeap refill by fill, n=" + size, "ops", new Case() {
+			@Override
+			public long run() {
+				indexed.clear();
+				for (int i = 0; i < size; i++) {
+					indexed.setKey(i, times[i]);
+				}
+				indexed.fill(size);
+				return size;
+			}
+		});
+
+		measure("IndexedMinHeap getMin/updateKey, n=" + size, "ops", new Case() {
+			@Override
+			public long run() {
+				for (int k = 0; k < updates; k++) {
+					int min = indexed.getMin();
+					indexed.updateKey(min, indexed.getKey(min) + random.nextExponential(1));
+				}
+				return updates;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks propensity calculations for every reaction of a model, both
+	 * through the Reaction objects and through the CompiledNetwork.
+	 *
+	 * @param name
+	 * 			the name of the model to report
+	 * @param model
+	 * 			the model
+	 */
+	public void propensities(String name, Model model) {
+		final Reaction[] reactions = model.getReactions();
+		final CompiledNetwork network = model.getNetwork();
+		final int[] species = model.getInitialSpecies().clone();
+
+		measure("Reaction.propensity, " + name, "ops", new Case() {
+			@Override
+			public long run() {
+				double sum = 0;
+				for (Reaction r : reactions) {
+					sum += r.propensity(species);
+				}
+				sink += sum;
+				return reactions.length;
+			}
+		});
+		measure("CompiledNetwork.propensity, " + name, "ops", new Case() {
+			@Override
+			public long run() {
+				double sum = 0;
+				for (int j = 0; j < reactions.length; j++) {
+					sum += network.propensity(j, species);
+				}
+				sink += sum;
+				return reactions.length;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks the dependency update after a firing: recalculating the
+	 * propensity of every reaction in the fired reaction's dependency row,
+	 * over every reaction of the model.
+	 *
+	 * @param name
+	 * 			the name of the model to report
+	 * @param model
+	 * 			the model
+	 */
+	public void dependencies(String name, Model model) {
+		final CompiledNetwork network = model.getNetwork();
+		final int[] dependStart = network.getDependStart();
+		final int[] dependIndex = network.getDependIndex();
+		final int[] species = model.getInitialSpecies().clone();
+		final double[] propensities = new double[network.getNumReactions()];
+
+		measure("Dependency update, " + name, "firings", new Case() {
+			@Override
+			public long run() {
+				for (int j = 0; j < propensities.length; j++) {
+					for (int k = dependStart[j]; k < dependStart[j + 1]; k++) {
+						int i = dependIndex[k];
+						propensities[i] = network.propensity(i, species);
+					}
+				}
+				sink += propensities[0];
+				return propensities.length;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks whole runs of the model with every engine, reported as
+	 * reaction events per second.
+	 *
+	 * @param name
+	 * 			the name of the model to report
+	 * @param model
+	 * 			the model
+	 */
+	public void runs(String name, Model model) {
+		for (EngineType type : EngineType.values()) {
+			run(type, name, model);
+		}
+	}
+
+	/**
+	 * Benchmarks whole runs of the model with one engine, reported as
+	 * reaction events per second.
+	 *
+	 * @param type
+	 * 			the engine
+	 * @param name
+	 * 			the name of the model to report
+	 * @param model
+	 * 			the model
+	 * @return
+	 * 			the mean rate in events per second
+	 */
+	public double run(EngineType type, String name, Model model) {
+		final SimulationEngine engine = type.create(model);
+		final int numReactions = model.getReactions().length;
+		final int[] run = { 0 };
+		return measure("Run " + type.getName() + ", " + name, "events", new Case() {
+			@Override
+			public long run() {
+				engine.reset(1, ++run[0]);
+				engine.run();
+				long events = 0;
+				for (int i = 0; i < numReactions; i++) {
+					events += engine.getFired(i);
+				}
+				return events;
+			}
+		});
+	}
+
+	/**
+	 * Benchmarks the composition-rejection method against the heap-based
+	 * next-reaction method on a synthetic network with ten reactions per
+	 * species, and reports how many times faster it is.  Above one, the
+	 * crossover has been passed.
+	 *
+	 * @param numReactions
+	 * 			the number of reactions
+	 * @param spread
+	 * 			the orders of magnitude the propensities spread over
+	 * @throws IOException
+	 * 			if the network could not be written or read
+	 */
+	public void crossover(int numReactions, double spread) throws IOException {
+		Model model = synthetic(Math.max(1, numReactions / 10), numReactions, null, spread);
+		String name = numReactions + " reactions, spread " + spread;
+		double heap = run(EngineType.NEXT_REACTION, name, model);
+		double groups = run(EngineType.COMPOSITION_REJECTION, name, model);
+		System.out.println(String.format("%-44s %14.2f x", "cr / nrm, " + name, groups / heap));
+	}
+
+	/**
+	 * Writes a synthetic network to a temporary file with NetworkGenerator
+	 * and loads it.  The reactions are an even mix of the four kinds, or
+	 * all have the given kind.
+	 *
+	 * @param numSpecies
+	 * 			the number of species
+	 * @param numReactions
+	 * 			the number of reactions
+	 * @param kind
+	 * 			the one ReactionType to use, or null for an even mix
+	 * @return
+	 * 			the loaded Model
+	 * @throws IOException
+	 * 			if the temporary file could not be written or read
+	 */
+	public Model synthetic(int numSpecies, int numReactions, ReactionType kind)
+			throws IOException {
+		return synthetic(numSpecies, numReactions, kind, 0);
+	}
+
+	/**
+	 * Writes a synthetic network to a temporary file with NetworkGenerator
+	 * and loads it, with the starting propensities spread over the given
+	 * number of orders of magnitude.
+	 *
+	 * @param numSpecies
+	 * 			the number of species
+	 * @param numReactions
+	 * 			the number of reactions
+	 * @param kind
+	 * 			the one ReactionType to use, or null for an even mix
+	 * @param spread
+	 * 			the orders of magnitude, or zero for none
+	 * @return
+	 * 			the loaded Model
+	 * @throws IOException
+	 * 			if the temporary file could not be written or read
+	 */
+	public Model synthetic(int numSpecies, int numReactions, ReactionType kind, double spread)
+			throws IOException {
+		NetworkGenerator generator = new NetworkGenerator();
+		generator.setSpread(spread);
+		generator.setSpecies(numSpecies);
+		generator.setReactions(numReactions);
+		generator.setTime(1);
+		if (kind != null) {
+			double[] mix = new double[ReactionType.values().length];
+			mix[kind.ordinal()] = 1;
+			generator.setMix(mix);
+		}
+
+		File file = File.createTempFile("chem-bench", ".txt");
+		file.deleteOnExit();
+		generator.write(file.getPath());
+		return Model.load(file.getPath());
+	}
+
+	/**
+	 * Runs all of the benchmarks.
+	 *
+	 * @param args
+	 * 			"--quick" for short runs, then any model files to run
+	 * @throws IOException
+	 * 			if a model file could not be read
+	 */
+	public static void main(String[] args) throws IOException {
+		int first = args.length > 0 && args[0].equals("--quick") ? 1 : 0;
+		Benchmark bench = new Benchmark(first == 1);
+
+		List<String> files = new ArrayList<String>();
+		for (int i = first; i < args.length; i++) {
+			files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			files.add("input.txt");
+		}
+
+		for (int size : new int[] { 100, 1000, 10000 }) {
+			bench.heaps(size);
+		}
+
+		for (ReactionType type : ReactionType.values()) {
+			bench.propensities(type.toString(), bench.synthetic(1000, 1000, type));
+		}
+
+		for (String file : files) {
+			Model model = Model.load(file);
+			bench.dependencies(file, model);
+			bench.runs(file, model);
+		}
+		// Species by reactions: sparse networks, then dense ones with many
+		// reactions per species, where the partial-propensity method wins
+		int[][] sizes = { { 100, 100 }, { 1000, 1000 }, { 10000, 10000 },
+				{ 100, 5000 }, { 1000, 20000 } };
+		for (int[] size : sizes) {
+			Model model = bench.synthetic(size[0], size[1], null);
+			String name = "synthetic " + size[0] + "x" + size[1];
+			bench.dependencies(name, model);
+			bench.runs(name, model);
+		}
+
+		// Composition-rejection against the heap as the network grows and its
+		// propensities spread, to find where it starts to pay off
+		for (int size : new int[] { 100, 1000, 10000, 100000 }) {
+			for (double spread : new double[] { 0, 3, 6 }) {
+				bench.crossover(size, spread);
+			}
+		}
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
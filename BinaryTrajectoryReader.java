@@ -0,0 +1,261 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads a trajectory file written by BinaryTrajectoryWriter.  The
+ * file is memory-mapped one window at a time and read a block at a time:
+ * nextBlock() loads the next block's times and tracked counts into arrays,
+ * and the reaction fire counts are available once the blocks run out.
+ *
+ * It can also be run on its own to convert a binary trajectory into the
+ * same text output a single run of Chem writes:
+ *
+ *     java BinaryTrajectoryReader INPUT_FILE OUTPUT_FILE
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class BinaryTrajectoryReader {
+
+	/**
+	 * Size of each mapped window of the file.
+	 */
+	private static final int WINDOW = 1 << 24;
+
+	/**
+	 * The file being read, and its length.
+	 */
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long length;
+
+	/**
+	 * The currently mapped window, and the file position it starts at.
+	 */
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+
+	/**
+	 * The species numbers of the tracked species, in display order.
+	 */
+	private int[] speciesNumbers;
+
+	/**
+	 * The current block: event times and tracked counts (one column per
+	 * tracked species), with the number of events in it.
+	 */
+	private double[] times;
+	private int[][] counts;
+	private int size = 0;
+
+	/**
+	 * How often each reaction fired, or null until all blocks are read.
+	 */
+	private int[] fired = null;
+
+	/**
+	 * Opens the given file and reads its header.
+	 *
+	 * @param fileName
+	 * 			the file to read
+	 * @throws IOException
+	 * 			if the file could not be read or is not a trajectory file
+	 */
+	public BinaryTrajectoryReader(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		channel = file.getChannel();
+		length = channel.size();
+
+		ensure(16);
+		if (window.getInt() != BinaryTrajectoryWriter.MAGIC) {
+			file.close();
+			throw new IOException("Not a trajectory file: " + fileName);
+		}
+		int version = window.getInt();
+		if (version != BinaryTrajectoryWriter.VERSION) {
+			file.close();
+			throw new IOException("Unsupported trajectory version " + version);
+		}
+		int numTracked = window.getInt();
+		int capacity = window.getInt();
+		speciesNumbers = new int[numTracked];
+		for (int i = 0; i < numTracked; i++) {
+			ensure(4);
+			speciesNumbers[i] = window.getInt();
+		}
+		times = new double[capacity];
+		counts = new int[numTracked][capacity];
+	}
+
+	/**
+	 * Makes sure the mapped window holds the given number of bytes past the
+	 * current position, mapping the next window of the file if needed.
+	 *
+	 * @param needed
+	 * 			the number of bytes about to be read
+	 * @throws IOException
+	 * 			if the file is too short or could not be mapped
+	 */
+	private void ensure(int needed) throws IOException {
+		if (window != null && window.remaining() >= needed) {
+			return;
+		}
+		long position = window == null ? 0 : windowStart + window.position();
+		if (position + needed > length) {
+			throw new EOFException("Trajectory file is truncated");
+		}
+		long size = Math.min(length - position, Math.max(WINDOW, needed));
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		windowStart = position;
+	}
+
+	/**
+	 * Reads the next block of events.  Once there are no more blocks, the
+	 * fire counts are read and zero is returned.
+	 *
+	 * @return
+	 * 			the number of events in the block, or 0 at the end
+	 * @throws IOException
+	 * 			if the file could not be read
+	 */
+	public int nextBlock() throws IOException {
+		if (fired != null) {
+			return 0;
+		}
+		ensure(4);
+		size = window.getInt();
+		if (size == BinaryTrajectoryWriter.END_MARKER) {
+			ensure(4);
+			fired = new int[window.getInt()];
+			for (int i = 0; i < fired.length; i++) {
+				ensure(4);
+				fired[i] = window.getInt();
+			}
+			size = 0;
+			return 0;
+		}
+		if (size <= 0 || size > times.length) {
+			throw new IOException("Corrupt trajectory block of " + size + " events");
+		}
+		ensure(size * (8 + 4 * counts.length));
+		window.asDoubleBuffer().get(times, 0, size);
+		window.position(window.position() + 8 * size);
+		for (int[] column : counts) {
+			window.asIntBuffer().get(column, 0, size);
+			window.position(window.position() + 4 * size);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the species numbers of the tracked species, in display order.
+	 *
+	 * @return
+	 * 			the tracked species numbers
+	 */
+	public int[] getSpeciesNumbers() {
+		return speciesNumbers;
+	}
+
+	/**
+	 * Returns the event times of the current block.  Only the first
+	 * nextBlock() entries are valid.
+	 *
+	 * @return
+	 * 			the event times
+	 */
+	public double[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * Returns the counts of a tracked species for the current block.  Only
+	 * the first nextBlock() entries are valid.
+	 *
+	 * @param tracked
+	 * 			the position of the species in display order
+	 * @return
+	 * 			the species counts after each event
+	 */
+	public int[] getCounts(int tracked) {
+		return counts[tracked];
+	}
+
+	/**
+	 * Returns how often each reaction fired.  Only available once
+	 * nextBlock() has returned 0.
+	 *
+	 * @return
+	 * 			the fire counts, in input file order
+	 */
+	public int[] getFired() {
+		return fired;
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException
+	 * 			if the file could not be closed
+	 */
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+
+	/**
+	 * Writes the whole trajectory in the text format of a single Chem run.
+	 *
+	 * @param out
+	 * 			the writer for the text output
+	 * @throws IOException
+	 * 			if the file could not be read or the output written
+	 */
+	public void convert(TrajectoryWriter out) throws IOException {
+		int n;
+		while ((n = nextBlock()) > 0) {
+			for (int e = 0; e < n; e++) {
+				out.append("Simulation Time = ").append(times[e]).append(": ");
+				for (int i = 0; i < speciesNumbers.length; i++) {
+					if (i > 0) {
+						out.append("; ");
+					}
+					out.append('S').append(speciesNumbers[i]).append(" = ").append(counts[i][e]);
+				}
+				out.append('\n');
+			}
+		}
+		out.append("\nSimulation Summary:");
+		for (int i = 0; i < fired.length; i++) {
+			out.append("\nReaction ").append(i + 1).append(" fired ").append(fired[i])
+					.append(" time(s)");
+		}
+	}
+
+	/**
+	 * Converts a binary trajectory file to text.
+	 *
+	 * @param args
+	 * 			the binary input file and the text output file
+	 */
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage:\nBinaryTrajectoryReader INPUT_FILE OUTPUT_FILE");
+			System.exit(0);
+		}
+		try {
+			BinaryTrajectoryReader reader = new BinaryTrajectoryReader(args[0]);
+			TrajectoryWriter out = new TrajectoryWriter(new FileOutputStream(args[1]));
+			try {
+				reader.convert(out);
+			} finally {
+				reader.close();
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Error converting trajectory: " + e.getMessage());
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class writes the trajectory of a single run in a compact binary form,
+ * instead of one text line per tracked species change.  The file is written
+ * through a memory-mapped FileChannel, one window at a time, so records are
+ * stored with plain puts and no system call per event.
+ *
+ * The layout is, with all numbers big-endian:
+ *
+ * header:  int MAGIC, int VERSION, int numTracked, int blockCapacity,
+ *          int[numTracked] species numbers (as in the input file, e.g. 1 for S1)
+ * blocks:  int n (1 to blockCapacity), double[n] times,
+ *          then int[n] counts for each tracked species in turn
+ * trailer: int END_MARKER, int numReactions, int[numReactions] fire counts
+ *
+ * Each block is columnar, so a reader can pull out the times or a single
+ * species without touching the rest.  BinaryTrajectoryReader reads the file
+ * back and converts it to the text format.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class BinaryTrajectoryWriter {
+
+	/**
+	 * File magic number, "CHMT" in ASCII.
+	 */
+	public static final int MAGIC = 0x43484D54;
+
+	/**
+	 * Format version number.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Block length that marks the trailer instead of another block.
+	 */
+	public static final int END_MARKER = -1;
+
+	/**
+	 * Largest number of events in a block, and the target block size in
+	 * bytes when many species are tracked.
+	 */
+	private static final int MAX_BLOCK = 4096;
+	private static final int BLOCK_BYTES = 1 << 20;
+
+	/**
+	 * Size of each mapped window of the file.
+	 */
+	private static final int WINDOW = 1 << 24;
+
+	/**
+	 * The file being written.
+	 */
+	private RandomAccessFile file;
+	private FileChannel channel;
+
+	/**
+	 * The currently mapped window, and the file position it starts at.
+	 */
+	private MappedByteBuffer window = null;
+	private long windowStart = 0;
+
+	/**
+	 * The indices of the tracked species, in display order.
+	 */
+	private int[] displays;
+
+	/**
+	 * The current block: event times and tracked counts (one column per
+	 * tracked species), with the number of events in it.
+	 */
+	private double[] times;
+	private int[][] counts;
+	private int size = 0;
+
+	/**
+	 * Creates a new BinaryTrajectoryWriter and writes the header.
+	 *
+	 * @param fileName
+	 * 			the file to write, replaced if it exists
+	 * @param displays
+	 * 			the indices of the tracked species, in display order
+	 * @param minIndex
+	 * 			the minimum species index, added to get species numbers
+	 * @throws IOException
+	 * 			if the file could not be created
+	 */
+	public BinaryTrajectoryWriter(String fileName, int[] displays, int minIndex)
+			throws IOException {
+		this.displays = displays;
+		int capacity = Math.max(1, Math.min(MAX_BLOCK, BLOCK_BYTES / (8 + 4 * displays.length)));
+		times = new double[capacity];
+		counts = new int[displays.length][capacity];
+
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+
+		ensure(16 + 4 * displays.length);
+		window.putInt(MAGIC);
+		window.putInt(VERSION);
+		window.putInt(displays.length);
+		window.putInt(capacity);
+		for (int index : displays) {
+			ensure(4);
+			window.putInt(index + minIndex);
+		}
+	}
+
+	/**
+	 * Makes sure the mapped window has room for the given number of bytes,
+	 * mapping the next window of the file if needed.
+	 *
+	 * @param needed
+	 * 			the number of bytes about to be written
+	 * @throws IOException
+	 * 			if the file could not be mapped
+	 */
+	private void ensure(int needed) throws IOException {
+		if (window != null && window.remaining() >= needed) {
+			return;
+		}
+		long position = window == null ? 0 : windowStart + window.position();
+		window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW, needed));
+		windowStart = position;
+	}
+
+	/**
+	 * Records the tracked species after an event.
+	 *
+	 * @param time
+	 * 			the simulation time of the event
+	 * @param species
+	 * 			the current species populations
+	 * @throws IOException
+	 * 			if a full block could not be written
+	 */
+	public void record(double time, int[] species) throws IOException {
+		times[size] = time;
+		for (int i = 0; i < displays.length; i++) {
+			counts[i][size] = species[displays[i]];
+		}
+		size++;
+		if (size == times.length) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Writes the current block to the file and empties it.
+	 *
+	 * @throws IOException
+	 * 			if the file could not be mapped
+	 */
+	private void writeBlock() throws IOException {
+		if (size == 0) {
+			return;
+		}
+		ensure(4 + size * (8 + 4 * displays.length));
+		window.putInt(size);
+		window.asDoubleBuffer().put(times, 0, size);
+		window.position(window.position() + 8 * size);
+		for (int[] column : counts) {
+			window.asIntBuffer().put(column, 0, size);
+			window.position(window.position() + 4 * size);
+		}
+		size = 0;
+	}
+
+	/**
+	 * Writes the last block and the reaction fire counts, and closes the
+	 * file at its final length.
+	 *
+	 * @param fired
+	 * 			how often each reaction fired, in input file order
+	 * @throws IOException
+	 * 			if the file could not be written
+	 */
+	public void close(int[] fired) throws IOException {
+		try {
+			writeBlock();
+			ensure(8);
+			window.putInt(END_MARKER);
+			window.putInt(fired.length);
+			for (int count : fired) {
+				ensure(4);
+				window.putInt(count);
+			}
+			long length = windowStart + window.position();
+			window.force();
+			window = null;
+			channel.truncate(length);
+		} finally {
+			file.close();
+		}
+	}
+}
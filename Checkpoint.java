@@ -0,0 +1,384 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/**
+ * This class is a checkpoint of a simulation job, so a long job that is
+ * stopped can be resumed and finish exactly as if it had never stopped.
+ * For many runs it holds the number of runs done and their RunningStats;
+ * for a single run it holds the engine's state (time, species, fire counts,
+ * next-times, and random numbers) and the GridSampler's, if sampling.  It
+ * also holds how much of the output file was written at that point, so the
+ * output can be cut back to match.
+ *
+ * The file is binary and compact: a header to check it belongs to the same
+ * model (by its size and a CRC-32 of its compiled form) and settings, the
+ * state, and a CRC-32 of everything before it.  It is
+ * written to a temporary file, forced to disk, and moved over the old
+ * checkpoint in one step, so a crash while writing leaves the old one whole.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Checkpoint {
+
+	/**
+	 * File format marker ("CHMC") and version.
+	 */
+	private static final int MAGIC = 0x43484D43;
+	private static final int VERSION = 5;
+
+	/**
+	 * The base seed of the job.
+	 */
+	private long seed;
+
+	/**
+	 * The name of the engine type, see EngineType.getName().
+	 */
+	private String engine;
+
+	/**
+	 * The number of runs of the whole job.
+	 */
+	private int numRuns;
+
+	/**
+	 * The size of the model, to catch resuming with the wrong input file.
+	 */
+	private int numSpecies, numReactions;
+
+	/**
+	 * A CRC-32 of the model's rates, initial populations, simulation time,
+	 * displays, and stoichiometry, to catch resuming with different --set
+	 * values or an edited input file of the same size.
+	 */
+	private long fingerprint;
+
+	/**
+	 * The time between sampled outputs, or zero for none.
+	 */
+	private double sampleInterval;
+
+	/**
+	 * The number of bytes of output written at the checkpoint.
+	 */
+	private long outputLength;
+
+	/**
+	 * The first run of the job, which is one unless the job is a range of
+	 * a bigger one.
+	 */
+	private int firstRun;
+
+	/**
+	 * The number of runs finished, all of them in order from the first.
+	 */
+	private int completed;
+
+	/**
+	 * The statistics of the finished runs.
+	 */
+	private RunningStats stats;
+
+	/**
+	 * The saved state of the unfinished single run, or an empty array.
+	 */
+	private byte[] state;
+
+	/**
+	 * Creates a new Checkpoint.
+	 *
+	 * @param seed
+	 * 			the base seed of the job
+	 * @param engine
+	 * 			the name of the engine type
+	 * @param numRuns
+	 * 			the number of runs of the whole job
+	 * @param model
+	 * 			the Model being simulated
+	 * @param sampleInterval
+	 * 			the time between sampled outputs, or zero for none
+	 * @param outputLength
+	 * 			the number of bytes of output written so far
+	 * @param firstRun
+	 * 			the first run of the job
+	 * @param completed
+	 * 			the number of runs finished
+	 * @param stats
+	 * 			the statistics of the finished runs
+	 * @param state
+	 * 			the saved state of an unfinished single run, or null
+	 */
+	public Checkpoint(long seed, String engine, int numRuns, Model model, double sampleInterval,
+			long outputLength, int firstRun, int completed, RunningStats stats, byte[] state) {
+		this.seed = seed;
+		this.engine = engine;
+		this.numRuns = numRuns;
+		this.numSpecies = model.getNetwork().getNumSpecies();
+		this.numReactions = model.getNetwork().getNumReactions();
+		this.fingerprint = fingerprint(model);
+		this.sampleInterval = sampleInterval;
+		this.outputLength = outputLength;
+		this.firstRun = firstRun;
+		this.completed = completed;
+		this.stats = stats;
+		this.state = state == null ? new byte[0] : state;
+	}
+
+	/**
+	 * Creates an empty Checkpoint, to be filled in by read().
+	 */
+	private Checkpoint() {
+	}
+
+	/**
+	 * Returns a CRC-32 of everything in the given Model that the simulation
+	 * depends on: the simulation time, initial populations, displays, rates,
+	 * reactants, and net changes.
+	 *
+	 * @param model
+	 * 			the Model
+	 * @return
+	 * 			the fingerprint of the model
+	 */
+	private static long fingerprint(Model model) {
+		CompiledNetwork network = model.getNetwork();
+		CRC32 crc = new CRC32();
+		DataOutputStream data = new DataOutputStream(new CheckedOutputStream(
+				new OutputStream() {
+					@Override
+					public void write(int b) {
+					}
+				}, crc));
+		try {
+			data.writeInt(model.getSimulationTime());
+			write(data, model.getInitialSpecies());
+			write(data, model.getDisplays());
+			for (int j = 0; j < network.getNumReactions(); j++) {
+				data.writeDouble(network.getRate(j));
+			}
+			write(data, network.getReactantStart());
+			write(data, network.getReactantIndex());
+			write(data, network.getReactantOffset());
+			write(data, network.getChangeStart());
+			write(data, network.getChangeSpecies());
+			write(data, network.getChangeAmount());
+		} catch (IOException e) {
+
+			// Nothing is written anywhere, so this cannot happen
+			throw new IllegalStateException(e);
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the length and values of the given array.
+	 *
+	 * @param data
+	 * 			the stream to write to
+	 * @param values
+	 * 			the array
+	 * @throws IOException
+	 * 			if the stream could not be written
+	 */
+	private static void write(DataOutputStream data, int[] values) throws IOException {
+		data.writeInt(values.length);
+		for (int v : values) {
+			data.writeInt(v);
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to the given file, replacing any old one in a
+	 * single step.
+	 *
+	 * @param fileName
+	 * 			the checkpoint file name
+	 * @throws IOException
+	 * 			if the checkpoint could not be written
+	 */
+	public void write(String fileName) throws IOException {
+		Path target = Paths.get(fileName);
+		Path temp = Paths.get(fileName + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp.toFile());
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(file), new CRC32());
+			DataOutputStream data = new DataOutputStream(checked);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(seed);
+			data.writeUTF(engine);
+			data.writeInt(numRuns);
+			data.writeInt(numSpecies);
+			data.writeInt(numReactions);
+			data.writeLong(fingerprint);
+			data.writeDouble(sampleInterval);
+			data.writeLong(outputLength);
+			data.writeInt(firstRun);
+			data.writeInt(completed);
+			stats.save(data);
+			data.writeInt(state.length);
+			data.write(state);
+			data.writeLong(checked.getChecksum().getValue());
+			data.flush();
+			file.getFD().sync();
+		} finally {
+			file.close();
+		}
+
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint from the given file.
+	 *
+	 * @param fileName
+	 * 			the checkpoint file name
+	 * @return
+	 * 			the checkpoint
+	 * @throws IOException
+	 * 			if the file could not be read or is not a valid checkpoint
+	 */
+	public static Checkpoint read(String fileName) throws IOException {
+		Checkpoint c = new Checkpoint();
+		DataInputStream data = null;
+		try {
+			CheckedInputStream checked = new CheckedInputStream(
+					new BufferedInputStream(new FileInputStream(fileName)), new CRC32());
+			data = new DataInputStream(checked);
+			if (data.readInt() != MAGIC) {
+				throw new IOException("Not a checkpoint file: " + fileName);
+			}
+			int version = data.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version);
+			}
+			c.seed = data.readLong();
+			c.engine = data.readUTF();
+			c.numRuns = data.readInt();
+			c.numSpecies = data.readInt();
+			c.numReactions = data.readInt();
+			c.fingerprint = data.readLong();
+			c.sampleInterval = data.readDouble();
+			c.outputLength = data.readLong();
+			c.firstRun = data.readInt();
+			c.completed = data.readInt();
+			c.stats = RunningStats.read(data);
+			int length = data.readInt();
+			if (length < 0) {
+				throw new IOException("Bad checkpoint state length " + length);
+			}
+			c.state = new byte[length];
+			data.readFully(c.state);
+			long sum = checked.getChecksum().getValue();
+			if (data.readLong() != sum) {
+				throw new IOException("Checkpoint file is damaged: " + fileName);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Checkpoint file is incomplete: " + fileName);
+		} finally {
+			if (data != null) {
+				data.close();
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Checks that this checkpoint was made by the same job: the same model,
+	 * engine, runs, and sampling.
+	 *
+	 * @param engineName
+	 * 			the name of the engine type
+	 * @param runs
+	 * 			the number of runs of the whole job
+	 * @param first
+	 * 			the first run of the job
+	 * @param model
+	 * 			the Model being simulated
+	 * @param interval
+	 * 			the time between sampled outputs, or zero for none
+	 * @throws IOException
+	 * 			if anything does not match
+	 */
+	public void check(String engineName, int runs, int first, Model model, double interval)
+			throws IOException {
+		if (numSpecies != model.getNetwork().getNumSpecies()
+				|| numReactions != model.getNetwork().getNumReactions()
+				|| stats.size() != model.getDisplays().length
+				|| fingerprint != fingerprint(model)) {
+			throw new IOException("Checkpoint is for a different model");
+		}
+		if (!engine.equals(engineName)) {
+			throw new IOException("Checkpoint is for engine " + engine);
+		}
+		if (numRuns != runs || firstRun != first) {
+			throw new IOException("Checkpoint is for " + numRuns + " runs from run " + firstRun);
+		}
+		if (sampleInterval != interval) {
+			throw new IOException("Checkpoint is for sample interval " + sampleInterval);
+		}
+	}
+
+	/**
+	 * Returns the base seed of the job.
+	 *
+	 * @return
+	 * 			the base seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the number of bytes of output written at the checkpoint.
+	 *
+	 * @return
+	 * 			the output length in bytes
+	 */
+	public long getOutputLength() {
+		return outputLength;
+	}
+
+	/**
+	 * Returns the number of runs finished, counting from the first run of
+	 * the job.
+	 *
+	 * @return
+	 * 			the number of finished runs
+	 */
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the statistics of the finished runs.
+	 *
+	 * @return
+	 * 			the statistics
+	 */
+	public RunningStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the saved state of the unfinished single run, for the engine's
+	 * and sampler's restore().
+	 *
+	 * @return
+	 * 			the state, or null if there is none
+	 */
+	public DataInput getState() {
+		if (state.length == 0) {
+			return null;
+		}
+		return new DataInputStream(new ByteArrayInputStream(state));
+	}
+}
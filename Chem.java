@@ -24,9 +24,15 @@ import java.util.*;
 /**
  * Main Chem class for the simulation project.
  * 
- * Contains run schedule, heap for reactions, and several helper methods.
- * The main method below runs the simulation for the given number of times,
- * reading from the given input file and writing to the given output file.
+ * Contains the run schedule and several helper methods.  The main method
+ * below runs the simulation for the given number of times, reading from the
+ * given input file and writing to the given output file.  The simulation
+ * itself is done by a SimulationEngine picked on the command line, and
+ * multiple runs are handed out to worker threads by Ensemble.
+ * 
+ * Each Chem object is one job: a model, its options, and its output file.
+ * The main method runs a single job, and Batch runs many of them in one
+ * process.
  * 
  * Helper methods for initialization (file reading) and output (file writing)
  * are below the main method for ease of reading.
@@ -37,513 +43,640 @@ import java.util.*;
 public class Chem {
 
 	// Private member fields, with javadoc descriptions
-	
+
 	/**
-	 * This is used to keep track of the minimum index of all species
-	 * for offseting.  For example, the species may start labeling at
-	 * S0, S1, or even S100.  Initially set to Integer.MAX_VALUE for
-	 * comparison reasons.  Will be determined in initialize() method.
+	 * This is the number of blocks the background writer may hold when
+	 * output is asynchronous, which bounds how far it can fall behind.
 	 */
-	private static int minIndex = Integer.MAX_VALUE;
-	
+	private static final int ASYNC_BLOCKS = 8;
+
 	/**
-	 * This represents the time for the simulation duration, which is
-	 * usually just 10.  Will be determined in initialize() method, and
-	 * is used for determining when any run is over.
+	 * This is the number of steps a single run takes between looks at the
+	 * clock to see if a checkpoint is due.
 	 */
-	private static int simulationTime = 0;
-	
+	private static final long CHECKPOINT_STEPS = 10000;
+
 	/**
-	 * This is used to determine how many runs the simulation should be.
-	 * Also used to choose which output method, whether single run or
-	 * aggregated summary over multiple runs.  Will be determined in main()
-	 * method as it is given by command-line argument.
+	 * This is the fewest runs done before stopping on the target error,
+	 * since the error itself is not reliable from only a few runs.
 	 */
-	private static int numRuns = 0;
+	private static final int MIN_ADAPTIVE_RUNS = 30;
 	
 	/**
-	 * This represents the current time, which starts at zero and ticks
-	 * up to simulationTime.  This is used for all the time calculations
-	 * in the main() method, and is reset to zero on each run.
+	 * This is used to determine how many runs the simulation should be.
+	 * Also used to choose which output method, whether single run or
+	 * aggregated summary over multiple runs.  Will be determined in the
+	 * constructor from the command-line options.
 	 */
-	private static double time = 0;
+	private int numRuns = 0;
 	
 	/**
 	 * This is for writing to the output file.  It is useful to keep it as
 	 * a global variable due to how many different times and types of
 	 * output for this simulation.  It is much better to deal with opening
-	 * and closing only once, which we still do with the reader in the
-	 * initialize() method.  Will be determined in the main() method
-	 * using the command-line parameter.
+	 * and closing only once.  Will be opened in the run() method using the
+	 * command-line options.
 	 */
-	private static BufferedWriter out = null;
+	private TrajectoryWriter out = null;
 
 	/**
-	 * This is an array of length numSpecies that is used to keep track of
-	 * the initial species values.  Species values are reset to these starting
-	 * values on each run.  These populations are taken from the input file in
-	 * the initialize() method.
+	 * These are the output file itself and, if output is asynchronous, the
+	 * stream in front of it.  Needed to force the output to disk before a
+	 * checkpoint.
 	 */
-	private static int[] initialSpecies = null;
-	
+	private FileOutputStream outFile = null;
+	private AsyncOutputStream asyncFile = null;
+
 	/**
-	 * This is an array of length numSpecies that is used to keep track of
-	 * the current species values.  These are reset to the initial species
-	 * values on each run in the main() method.  Used to determine propensities
-	 * for reactions.
+	 * This is the length the output file already had when it was opened,
+	 * which is not zero when resuming.
 	 */
-	private static int[] species = null;
-	
+	private long outputStart = 0;
+
 	/**
-	 * This is an array of length numDisplays that is used to keep track of
-	 * which species the user wants tracked and displayed.  Most of the output
-	 * of the simulation uses this array, which preserves the order of the user's
-	 * input file, to output important statistics about species.  Each entry is
-	 * the index of a species that is to be displayed.  Will be determined in
-	 * initialize() method.
+	 * This is the Model read in from the input file.  It holds the species,
+	 * reactions, and tracked species for the simulation, and is shared by
+	 * every engine that runs it.  Given to the constructor.
 	 */
-	private static int[] displays = null;
+	private Model model = null;
 	
 	/**
-	 * This is an array of length numDisplays that keeps the same information
-	 * as displays, but in a different format.  The main reason to have this array
-	 * is to make checking for whether or not a species is being tracked O(1).
-	 * With just the displays array, we would have to do a linear search, because
-	 * we have to preserve the user's order instead of sorting as per the spec, which
-	 * would give us an O(n) runtime for checking species.  This is just used in
-	 * the main() method to check when to output tracked species.  Will be determined
-	 * in initialize() method.  Each entry is a boolean value for whether or not
-	 * the species with a given index is being tracked.
-	 */
-	private static boolean[] tracks = null;
-	
+	 * These are the running statistics for multiple runs.  Each run's final
+	 * tracked species populations are added as the run finishes, and the means
+	 * and variances are read out in the finalOutput() method.  Memory use does
+	 * not depend on the number of runs.  Will be determined in the constructor.
+	 */
+	private RunningStats stats;
+
 	/**
-	 * This is a two dimensional array for representing the data of multiple runs.
-	 * There are as many entries as there are species, and each entry is an array
-	 * to keep track of final run populations.  There will be two extra spots at the
-	 * end of each array to leave space for mean and variance, which can be seen in
-	 * the finalOutput() method.  Will be determined in the main() method at the end
-	 * of each run.
+	 * This is used to determine whether or not the summary for multiple runs
+	 * includes standard errors and confidence intervals for the means.  Will
+	 * be determined in the constructor from the command-line options.
 	 */
-	private static int[][] data;
-	
+	private boolean intervals = false;
+
 	/**
-	 * This is an array of length numReactions that keeps track of all the reactions
-	 * outside of the heap.  This is needed for initialization and reforming the
-	 * heap every run, as we cannot effectively keep the heap as the only data
-	 * structure for our Reactions (at least not without making MinHeap<E> specific to
-	 * Reactions, which would be bad).  Reactions are put into the array in the
-	 * order that they appear in the input file, which is determined in initialize()
-	 * method.
+	 * This is the time between sampled outputs of the tracked species, or
+	 * zero to output every change.  Will be determined in the constructor
+	 * from the command-line options.
 	 */
-	private static Reaction[] reactionsArray = null;
-	
+	private double sampleInterval = 0;
+
+	/**
+	 * This is the relative standard error of the means at which multiple
+	 * runs stop early, or zero to do every run.  Will be determined in the
+	 * constructor from the command-line options.
+	 */
+	private double targetError = 0;
+
 	/**
-	 * This is the MinHeap<Reaction> that keeps our reactions in a neat und tidy
-	 * heap.  The heap is formed with Reactions whenever we start a new run, and it
-	 * is used to retrieve the next Reaction to occur.  For more information, you
-	 * can look at our MinHeap.java and Reaction.java files.  Will be determined
-	 * in the main method when the heap is reformed at the start of a run.
+	 * This is the base seed for the random numbers, from the command-line
+	 * options or the checkpoint being resumed.
 	 */
-	private static MinHeap<Reaction> reactionsHeap = null;
+	private long seed = 0;
+
+	/**
+	 * This is the first run to simulate, which is one unless only a range
+	 * of the runs is simulated.
+	 */
+	private int firstRun = 1;
+
+	/**
+	 * This is the type of engine doing the simulation.
+	 */
+	private EngineType engineType = null;
+
+	/**
+	 * This is the checkpoint file name, or null for no checkpoints, and
+	 * the time between checkpoints in nanoseconds.
+	 */
+	private String checkpointFile = null;
+	private long checkpointEvery = 0;
+
+	/**
+	 * This is the time of the last checkpoint, from System.nanoTime().
+	 */
+	private long lastCheckpoint = 0;
+
+	/**
+	 * These are the command-line options of the job.
+	 */
+	private Options options;
+
+	/**
+	 * This is where the summary is echoed, or null for nowhere.
+	 */
+	private PrintStream console;
+
+	/**
+	 * This is the CSV file for metrics reports, or null for none.  Metrics
+	 * are for the whole process, not for a job.
+	 */
+	private static PrintStream metricsCsv = null;
+
+	/**
+	 * Thrown when a job can not go on, with the message to show for it.  The
+	 * main method shows it and exits, and Batch shows it and goes on with
+	 * the other jobs.
+	 */
+	static class JobFailure extends RuntimeException {
+
+		/**
+		 * Version for serialization.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates a new JobFailure.
+		 * 
+		 * @param message
+		 * 				the message to show
+		 */
+		public JobFailure(String message) {
+			super(message);
+		}
+	}
 
 	/**
 	 * Main method to run simulation.  Reads in command-line parameters to
-	 * determine input, output, and number of runs.  Continues with the run
-	 * order, and handles method calls and members.  Runs output with four
-	 * helper methods given.
+	 * determine input, output, number of runs, and any options.  Continues
+	 * with the run order, and handles method calls and members.  Runs output
+	 * with four helper methods given.
 	 * 
 	 * @param args
 	 *            the command line arguments
 	 */
 	public static void main(String[] args) {
 
-		// Boolean to determine if track output is needed
-		boolean track = false;
-		
-		Reaction current = null;
+		Options options = null;
 		
 		// Check for proper usage
-		if (args.length != 3) {
-			System.out.println("Usage:");
-			System.out.println("Chemistry NUM_RUNS INPUT_FILE OUTPUT_FILE");
+		try {
+			options = Options.parse(args);
+		} catch (IllegalArgumentException e) {
+
+			// Say what was wrong before how to use it
+			if (e.getMessage() != null) {
+				System.out.println(e.getMessage());
+			}
+			System.out.println(Options.USAGE);
 			System.exit(0);
 		}
 
-		numRuns = Integer.parseInt(args[0]);
+		// Metrics are fixed once loaded, so they are turned on before any engine
+		if (options.getMetricsInterval() >= 0) {
+			System.setProperty("chem.metrics", "true");
+			startMetrics(options);
+		}
+		
+		try {
+			
+			// Read from file to initialize the model
+			long start = System.nanoTime();
+			Model model = initialize(options.getInputFile());
+			if (options.getTiming()) {
+				System.err.println("Model loaded in " + (System.nanoTime() - start) / 1000000
+						+ " ms (dependency graph built in "
+						+ model.getNetwork().getDependencyTime() / 1000000 + " ms)");
+			}
+			
+			// Run the job
+			runJob(configure(model, options), options, System.out);
+		} catch (JobFailure e) {
+			System.out.println(e.getMessage());
+			System.exit(0);
+		}
+		finishMetrics();
+	}
+
+	/**
+	 * Runs a job, as a Sweep if it sweeps over rates.
+	 * 
+	 * @param  model
+	 * 				the Model to simulate, with the settings already applied
+	 * @param  options
+	 * 				the command-line options of the job
+	 * @param  echo
+	 * 				where to echo the summary, or null for nowhere
+	 * @throws JobFailure
+	 * 				if the job could not be finished
+	 */
+	static void runJob(Model model, Options options, PrintStream echo) {
+		if (options.getSweeps().isEmpty()) {
+			new Chem(model, options, echo).run();
+		} else {
+			new Sweep(model, options, echo).run();
+		}
+	}
+
+	/**
+	 * Creates a new job.
+	 * 
+	 * @param  m
+	 * 				the Model to simulate, with the settings already applied
+	 * @param  jobOptions
+	 * 				the command-line options of the job
+	 * @param  echo
+	 * 				where to echo the summary, or null for nowhere
+	 */
+	public Chem(Model m, Options jobOptions, PrintStream echo) {
+		model = m;
+		options = jobOptions;
+		console = echo;
+		numRuns = options.getNumRuns();
+		intervals = options.getIntervals();
+		sampleInterval = options.getSampleInterval();
+		targetError = options.getTargetError();
+		seed = options.getSeed();
+		firstRun = options.getFirstRun();
+		engineType = options.getEngine();
+		checkpointFile = options.getCheckpointFile();
+		checkpointEvery = (long) (options.getCheckpointInterval() * 1e9);
+		stats = new RunningStats(model.getDisplays().length);
+	}
+
+	/**
+	 * Runs the job: sets up the output, does the runs, and writes their
+	 * output and summary.
+	 * 
+	 * @throws JobFailure
+	 * 				if the job could not be finished
+	 */
+	public void run() {
+		
+		// Pick up where the checkpoint left off
+		Checkpoint resumed = null;
+		if (options.getResume()) {
+			resumed = resume();
+		}
 		
-		// Read from file to initialize variables
-		initialize(args[1]);
+		// Binary output for a single run has its own writer
+		if (numRuns == 1 && options.getBinary()) {
+			binaryRun();
+			return;
+		}
 		
 		// Set up output file writer
 		try {
-			out = new BufferedWriter(new FileWriter(args[2]));
+			if (resumed != null) {
+				
+				// Cut the output back to where the checkpoint was made
+				outputStart = resumed.getOutputLength();
+				RandomAccessFile old = new RandomAccessFile(options.getOutputFile(), "rw");
+				try {
+					if (old.length() < outputStart) {
+						throw new JobFailure("The output file is shorter than the checkpoint.");
+					}
+					old.setLength(outputStart);
+				} finally {
+					old.close();
+				}
+			}
+			outFile = new FileOutputStream(options.getOutputFile(), resumed != null);
+			OutputStream file = outFile;
+			if (options.getAsyncOutput()) {
+				asyncFile = new AsyncOutputStream(file, ASYNC_BLOCKS,
+						TrajectoryWriter.DEFAULT_CAPACITY);
+				file = asyncFile;
+			}
+			out = new TrajectoryWriter(file);
 		} catch (FileNotFoundException e) {
-			System.out.println("The output file could not be found.");
-			System.exit(0);
+			throw new JobFailure("The output file could not be found.");
 		} catch (IOException e) {
-			System.out.println("Error with output file.");
-			System.exit(0);
+			throw new JobFailure("Failure writing to output file.");
 		}
+		lastCheckpoint = System.nanoTime();
 
-		// Main run sequence
-		for (int i = 0; i < numRuns; i++) {
-			time = 0;
-			
-			// Reset species to initial values
-			for (int j = 0; j < species.length; j++) {
-				species[j] = initialSpecies[j];
+		try {
+			if (numRuns == 1) {
+				singleRun(resumed);
+			} else if (numRuns > 1) {
+				multipleRuns(resumed);
 			}
+		} catch (RuntimeException e) {
 			
-			// Initialize the heap and reactions
-			reactionsHeap = new MinHeap<Reaction>(new Reaction[reactionsArray.length], 0);
-			for (Reaction rxn : reactionsArray) {				
-				double propensity = rxn.getRate();
-				int[] reactants = rxn.getReactants();
-				ReactionType type = rxn.getType();
-				
-				// Determine propensity
-				if (type == ReactionType.RXN_TWO) {
-					propensity *= species[reactants[0]];
-				} else if (type == ReactionType.RXN_THREE) {
-					propensity *= species[reactants[0]];
-					propensity *= (species[reactants[0]] - 1);
-				} else if (type == ReactionType.RXN_FOUR) {
-					propensity *= species[reactants[0]];
-					propensity *= species[reactants[1]];
-				}
-				
-				// Generate random number
-				double rand = 0;
-				while (rand == 0) {
-					rand = Math.random();
-				}
-				
-				// Calculate next-time
-				if (propensity == 0) {
-					rxn.setNextTime(simulationTime + 1);
-				} else {
-					rxn.setNextTime(Math.log(1/rand)/propensity);
-				}
-				
-				// Add to the heap
-				reactionsHeap.insert(rxn);
+			// Do not leave the file open, since the process may go on
+			try {
+				out.close();
+			} catch (IOException closing) {
+				e.addSuppressed(closing);
 			}
+			throw e;
+		}
+		
+		// Clean up after output writer
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new JobFailure("Failure closing output.");
+		}
+		
+		// The job is done, so its checkpoint is no longer needed
+		if (checkpointFile != null) {
+			new File(checkpointFile).delete();
+		}
+	}
+
+	/**
+	 * Does a single run, with output for tracked species changes and a
+	 * summary of how often each reaction fired.
+	 * 
+	 * @param  resumed
+	 * 				the checkpoint to continue from, or null
+	 */
+	private void singleRun(Checkpoint resumed) {
+		SimulationEngine engine = engineType.create(model);
+		GridSampler sampler = null;
+		if (sampleInterval > 0) {
 			
-			while (time < simulationTime) {				
-				track = false;
-				
-				// Choose the next reaction
-				current = reactionsHeap.getMin();
-				time = current.getNextTime();
-				
-				// Test for simulation end
-				if (time > simulationTime) {
-					break;
-				}
-				
-				// Fire the reaction
-				if (numRuns == 1) {
-					current.fire();
-				}
-				
-				// Decrement reactants
-				if (current.getReactants() != null) {
-					for (int index : current.getReactants()) {
-						species[index]--;
-						if (tracks[index]) { // Check if species is tracked
-							track = true;
-						}
-					}
-				}
-				
-				// Increment products
-				if (current.getProducts() != null) {
-					for (int index : current.getProducts()) {
-						species[index]++;
-						if (tracks[index]) { // Check if species is tracked
-							track = true;
-						}
-					}
+			// Output tracked species on the time grid instead
+			sampler = new GridSampler(model, sampleInterval);
+			engine.setListener(sampler);
+		} else {
+			engine.setListener(new SpeciesListener() {
+				@Override
+				public void speciesChanged(double time, int[] species) {
+					trackOutput(time, species);
 				}
+			});
+		}
+		if (resumed != null) {
+			restoreRun(resumed, engine, sampler);
+		} else {
+			engine.reset(seed, 1);
+			if (sampler != null) {
+				sampler.reset(engine.getSpecies());
+			}
+		}
+		
+		// Run in pieces, with checkpoints in between if wanted
+		long runStart = System.nanoTime();
+		while (!engine.advance(CHECKPOINT_STEPS)) {
+			checkpointIfDue(0, engine, sampler);
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().runFinished(System.nanoTime() - runStart);
+		}
+		if (sampler != null) {
+			sampler.finish();
+			sampleOutput(0, sampler.getSamples());
+		}
+		
+		// Output summary data for a single run
+		singleOutput(engine);
+	}
+
+	/**
+	 * Does multiple runs, with output for the end of each one and a summary
+	 * of all of them.
+	 * 
+	 * @param  resumed
+	 * 				the checkpoint to continue from, or null
+	 */
+	private void multipleRuns(Checkpoint resumed) {
+		
+		// Main run sequence, possibly spread over several threads
+		final Ensemble ensemble = new Ensemble(model, engineType, seed, options.getThreads());
+		ensemble.setSampleInterval(sampleInterval);
+		int first = firstRun + (resumed == null ? 0 : resumed.getCompleted());
+		ensemble.run(first, options.getLastRun(), new Ensemble.RunListener() {
+			@Override
+			public void runFinished(int run, int[] tracked, int[] samples) {
 				
-				// Recalculate next times for effected reactions
-				for (Reaction rxn : current.getTable()) {
-					double propensity = rxn.getRate();
-					int[] reactants = rxn.getReactants();
-					ReactionType type = rxn.getType();
-					
-					// Remove reaction from the heap
-					reactionsHeap.remove(rxn);
-					
-					// Determine propensity
-					if (type == ReactionType.RXN_TWO) {
-						propensity *= species[reactants[0]];
-					} else if (type == ReactionType.RXN_THREE) {
-						propensity *= species[reactants[0]];
-						propensity *= (species[reactants[0]] - 1);
-					} else if (type == ReactionType.RXN_FOUR) {
-						propensity *= species[reactants[0]];
-						propensity *= species[reactants[1]];
-					}
-					
-					// Generate random number
-					double rand = 0;
-					while (rand == 0) {
-						rand = Math.random();
-					}
-					
-					// Calculate next-time
-					if (propensity == 0) {
-						rxn.setNextTime(simulationTime + 1);
-					} else {
-						rxn.setNextTime(time + Math.log(1/rand)/propensity);
-					}
-					
-					// Re-add to re-order heap
-					reactionsHeap.insert(rxn);
+				// Output data for one of many runs
+				if (samples != null) {
+					sampleOutput(run, samples);
 				}
+				runOutput(run, tracked);
+				stats.add(tracked);
+				checkpointIfDue(run - firstRun + 1, null, null);
 				
-				// Output for tracked species changes
-				if (numRuns == 1 && track) {
-					trackOutput();
-				}
-			}
-			
-			// Output data for one of many runs
-			if (numRuns > 1) {
-				runOutput(i + 1);
-				
-				for (int j = 0; j < displays.length; j++) {
-					data[j][i] = species[displays[j]];
+				// Stop as soon as the means are precise enough
+				if (targetError > 0 && stats.getCount() >= MIN_ADAPTIVE_RUNS
+						&& targetReached()) {
+					ensemble.stop();
 				}
 			}
+		});
+		
+		// Output summary data for multiple runs, or for a range of them
+		if (options.getPartialFile() != null) {
+			partialOutput();
+		} else {
+			finalOutput();
 		}
+	}
 
-		// Output summary data for a single run
-		if (numRuns == 1) {
-			singleOutput();
+	/**
+	 * Registers the metrics with JMX, and starts the periodic reports and
+	 * the CSV file if wanted.
+	 * 
+	 * @param options
+	 * 				the command-line options
+	 */
+	private static void startMetrics(Options options) {
+		Metrics.register();
+		if (options.getMetricsFile() != null) {
+			try {
+				metricsCsv = new PrintStream(new FileOutputStream(options.getMetricsFile()));
+				Metrics.csvHeader(metricsCsv);
+			} catch (FileNotFoundException e) {
+				System.out.println("The metrics file could not be found.");
+				System.exit(0);
+			}
 		}
-		
-		// Output summary data for multiple runs
-		if (numRuns > 1) {
-			finalOutput();
+		if (options.getMetricsInterval() > 0) {
+			Metrics.startReports(options.getMetricsInterval(), metricsCsv);
 		}
-		
-		// Clean up after output writer
-		try {
-			out.close();
-		} catch (IOException e) {
-			System.out.println("Failure closing output.");
-			System.exit(0);
+	}
+
+	/**
+	 * Gives the final metrics report, with the event rate over the whole
+	 * job, if metrics are on.
+	 */
+	private static void finishMetrics() {
+		if (Metrics.ENABLED) {
+			Metrics.get().report(Metrics.get().getEventsPerSecond(), metricsCsv);
+			if (metricsCsv != null) {
+				metricsCsv.close();
+			}
 		}
 	}
 
 	/**
-	 * Reads inputs from the given file to initialize variables.  Takes many
-	 * values from the file for input and stores them in various ways for
-	 * the member fields.  No error testing done here, since the spec requires
-	 * output to conform to a basic format.
+	 * Reads the checkpoint to resume from and checks that it belongs to
+	 * this job.  The seed and the statistics of the finished runs are taken
+	 * from it.
 	 * 
-	 * @param fileName
-	 *            the file name for reading
+	 * @return
+	 * 				the checkpoint
 	 */
-	private static void initialize(String fileName) {
-		
-		BufferedReader in = null;
-
-		// Attempt to open the file into a buffered reader
+	private Checkpoint resume() {
+		Checkpoint resumed = null;
 		try {
-			in = new BufferedReader(new FileReader(fileName));
+			resumed = Checkpoint.read(checkpointFile);
+			resumed.check(engineType.getName(), numRuns, firstRun, model, sampleInterval);
 		} catch (FileNotFoundException e) {
-			System.out.println("The input file could not be found.");
-			System.exit(0);
+			throw new JobFailure("The checkpoint file could not be found.");
+		} catch (IOException e) {
+			throw new JobFailure("Failure reading checkpoint: " + e.getMessage());
 		}
+		seed = resumed.getSeed();
+		stats = resumed.getStats();
+		return resumed;
+	}
 
-		// Main input file reading
+	/**
+	 * Restores the unfinished single run saved in the checkpoint.
+	 * 
+	 * @param  resumed
+	 * 				the checkpoint
+	 * @param  engine
+	 * 				the engine to restore
+	 * @param  sampler
+	 * 				the engine's sampler, or null if not sampling
+	 */
+	private void restoreRun(Checkpoint resumed, SimulationEngine engine,
+			GridSampler sampler) {
+		DataInput state = resumed.getState();
+		if (state == null) {
+			throw new JobFailure("Failure reading checkpoint: no run state");
+		}
 		try {
-			
-			// Set-up and tokenize the first line
-			String line = in.readLine();
-			String[] tokens = line.split(" ");
-
-			// Species links for determining which reactions are effected
-			// by which species.  Used to form reaction tables.
-			LinkedList<LinkedList<Reaction>> speciesLinks = new LinkedList<LinkedList<Reaction>>();
-			
-			// Use the first four numbers as initial values
-			int numSpecies = Integer.parseInt(tokens[0]);
-			int numReactions = Integer.parseInt(tokens[1]);
-			int numDisplays = Integer.parseInt(tokens[2]);
-			simulationTime = Integer.parseInt(tokens[3]);
-
-			// Allocate arrays based on our given parameters
-			initialSpecies = new int[numSpecies];
-			species = new int[numSpecies];
-			reactionsArray = new Reaction[numReactions];
-			displays = new int[numDisplays];
-			tracks = new boolean[numSpecies];
-			data = new int[numDisplays][numRuns + 2];
-			
-			// Set-up for the species links
-			for (int i = 0; i < species.length; i++) {
-				speciesLinks.add(new LinkedList<Reaction>());
+			engine.restore(state);
+			if (sampler != null) {
+				sampler.restore(state);
 			}
+		} catch (IOException e) {
+			throw new JobFailure("Failure reading checkpoint: " + e.getMessage());
+		}
+	}
 
-			// Set-up and tokenize the second line
-			line = in.readLine();
-			tokens = line.split(" ");
-			
-			// Read in initial species values
-			for (int i = 0; i < initialSpecies.length; i++) {
-				initialSpecies[i] = Integer.parseInt(tokens[i]);
+	/**
+	 * Writes a checkpoint if checkpoints are on and the last one is old
+	 * enough.  The output written so far is forced to disk first, so the
+	 * checkpoint never points past the end of the output file.
+	 * 
+	 * @param  completed
+	 * 				the number of runs finished
+	 * @param  engine
+	 * 				the engine of an unfinished single run, or null
+	 * @param  sampler
+	 * 				the engine's sampler, or null if not sampling
+	 */
+	private void checkpointIfDue(int completed, SimulationEngine engine,
+			GridSampler sampler) {
+		if (checkpointFile == null || System.nanoTime() - lastCheckpoint < checkpointEvery) {
+			return;
+		}
+		
+		// Attempt write
+		try {
+			out.flush();
+			if (asyncFile != null) {
+				asyncFile.sync();
 			}
-
-			// Save the displayed species for after we know the min index
-			String save = in.readLine();
+			outFile.getFD().sync();
 			
-			// Read in reaction coefficients
-			for (int i = 0; i < numReactions; i++) {
-				
-				// Set-up and tokenize the line
-				line = in.readLine();
-				tokens = line.split(" ");
-
-				// Check for an index which is smaller than minIndex
-				String pattern;
-				for (int j = 0; j < minIndex; j++) {
-					pattern = "S" + j;
-					if (line.contains(pattern)) {
-						minIndex = j;
-						break;
-					}
+			byte[] state = null;
+			if (engine != null) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream data = new DataOutputStream(bytes);
+				engine.save(data);
+				if (sampler != null) {
+					sampler.save(data);
 				}
-				
-				int offset = 0;
-				double rate = 0;
-				ReactionType type = null;
-				int[] reactants = null;
-				int[] products = null;
-
-				// Input reactant coefficients
-				if (tokens[0].startsWith("->")) {
-					type = ReactionType.RXN_ONE;
-					reactants = null;
-					offset = 0;
-				} else if (tokens[1].contains("+")) {
-					type = ReactionType.RXN_FOUR;
-					reactants = new int[2];
-					reactants[0] = Integer.parseInt(tokens[0].substring(1)) - minIndex;
-					reactants[1] = Integer.parseInt(tokens[2].substring(1)) - minIndex;
-					offset = 3;
-				} else if (tokens[0].charAt(0) == '2') {
-					type = ReactionType.RXN_THREE;
-					reactants = new int[2];
-					reactants[0] = Integer.parseInt(tokens[0].substring(2)) - minIndex;
-					reactants[1] = reactants[0];
-					offset = 1;
-				} else {
-					type = ReactionType.RXN_TWO;
-					reactants = new int[1];
-					reactants[0] = Integer.parseInt(tokens[0].substring(1)) - minIndex;
-					offset = 1;
-				}
-
-				// Input reaction rate
-				rate = Double.parseDouble(tokens[offset].substring(2));
-				offset ++;
-
-				// Input product coefficients
-				if (offset == tokens.length) {
-					products = null;
-				} else if ((offset == tokens.length - 1) && tokens[offset].charAt(0) == '2') {
-					products = new int[2];
-					products[0] = Integer.parseInt(tokens[offset].substring(2)) - minIndex;
-					products[1] = products[0];
-				} else if (offset == tokens.length - 1) {
-					products = new int[1];
-					products[0] = Integer.parseInt(tokens[offset].substring(1)) - minIndex;
-				} else {
-					if (tokens[offset].contains("2S")) {
-						products = new int[3];
-						products[0] = Integer.parseInt(tokens[offset].substring(2)) - minIndex;
-						products[1] = products[0];
-						products[2] = Integer.parseInt(tokens[offset + 2].substring(1)) - minIndex;
-					} else {
-						products = new int[2];
-						products[0] = Integer.parseInt(tokens[offset].substring(1)) - minIndex;
-						products[1] = Integer.parseInt(tokens[offset + 2].substring(1)) - minIndex;
-					}
-				}
-				
-				// Add reaction to array
-				reactionsArray[i] = new Reaction(rate, type, reactants, products);
+				data.flush();
+				state = bytes.toByteArray();
 			}
-			
-			// Read in display species
-			tokens = save.split(" ");
-			for (int i = 0; i < displays.length; i++) {
-				displays[i] = Integer.parseInt(tokens[i]) - minIndex;
-				tracks[Integer.parseInt(tokens[i]) - minIndex] = true;
-			}
-			
-			// Build species links
-			for (int i = 0; i < reactionsArray.length; i++) {
-				Reaction rxn = reactionsArray[i];
-				int[] reactants = rxn.getReactants();
-				if (reactants != null) {
-					for (int j = 0; j < reactants.length; j++) {
-						speciesLinks.get(reactants[j]).add(rxn);
+			new Checkpoint(seed, engineType.getName(), numRuns, model, sampleInterval,
+					outputStart + out.getBytesWritten(), firstRun, completed, stats, state)
+					.write(checkpointFile);
+		} catch (IOException e) {
+			throw new JobFailure("Failure writing checkpoint.");
+		}
+		lastCheckpoint = System.nanoTime();
+	}
+
+	/**
+	 * Does a single run with its trajectory written in binary form, see
+	 * BinaryTrajectoryWriter.  The fire counts of the reactions are stored
+	 * at the end of the same file.
+	 */
+	private void binaryRun() {
+		try {
+			final BinaryTrajectoryWriter writer = new BinaryTrajectoryWriter(
+					options.getOutputFile(), model.getDisplays(), model.getMinIndex());
+			SimulationEngine engine = engineType.create(model);
+			engine.setListener(new SpeciesListener() {
+				@Override
+				public void speciesChanged(double time, int[] species) {
+					try {
+						writer.record(time, species);
+					} catch (IOException e) {
+						throw new JobFailure("Failure writing to output file.");
 					}
 				}
+			});
+			long runStart = System.nanoTime();
+			engine.reset(seed, 1);
+			engine.run();
+			if (Metrics.ENABLED) {
+				Metrics.get().runFinished(System.nanoTime() - runStart);
 			}
 			
-			// Build reaction dependent tables from species links
-			for (int i = 0; i < reactionsArray.length; i++) {
-				LinkedList<Reaction> table = new LinkedList<Reaction>();
-				Reaction rxn = reactionsArray[i];
-				
-				table.add(rxn);
-				
-				// Check reactants for dependencies
-				int[] reactants = rxn.getReactants();
-				if (reactants != null) {
-					for (int j = 0; j < reactants.length; j++) {
-						LinkedList<Reaction> links = speciesLinks.get(reactants[j]);
-						for (int k = 0; k < links.size(); k ++) {
-							if (!table.contains(links.get(k))) {
-								table.add(links.get(k));
-							}
-						}
-					}
-				}
-				
-				// Check products for dependencies
-				int[] products = rxn.getProducts();
-				if (products != null) {
-					for (int j = 0; j < products.length; j++) {
-						LinkedList<Reaction> links = speciesLinks.get(products[j]);
-						for (int k = 0; k < links.size(); k ++) {
-							if (!table.contains(links.get(k))) {
-								table.add(links.get(k));
-							}
-						}
-					}
-				}
-				
-				// Set Reaction table for the current Reaction
-				rxn.setTable(table.toArray(new Reaction[1]));
+			int[] fired = new int[model.getReactions().length];
+			for (int i = 0; i < fired.length; i++) {
+				fired[i] = engine.getFired(i);
 			}
-			
-			// Clean up input file
-			in.close();
+			writer.close(fired);
 		} catch (IOException e) {
-			System.out.println("Error reading from file.");
-			System.exit(0);
+			throw new JobFailure("Failure writing to output file.");
+		}
+	}
+
+	/**
+	 * Reads the model from the given file.  No error testing done here,
+	 * since the spec requires input to conform to a basic format.  See
+	 * Model.load() for the file reading.
+	 * 
+	 * @param fileName
+	 *            the file name for reading
+	 * @return
+	 * 				the Model
+	 * @throws JobFailure
+	 * 				if the file could not be read
+	 */
+	static Model initialize(String fileName) {
+		try {
+			return Model.load(fileName);
+		} catch (FileNotFoundException e) {
+			throw new JobFailure("The input file could not be found.");
+		} catch (IOException e) {
+			throw new JobFailure("Error reading from file.");
 		} catch (Exception e) {
-			System.out.println("Incorrect file formatting.");
-			System.out.println(e);
-			System.exit(0);
+			throw new JobFailure("Incorrect file formatting.\n" + e);
+		}
+	}
+
+	/**
+	 * Applies the --set settings of the options to the given Model.  See
+	 * Model.override().
+	 * 
+	 * @param  model
+	 * 				the Model as read from the input file
+	 * @param  options
+	 * 				the command-line options
+	 * @return
+	 * 				the Model with the settings applied
+	 * @throws JobFailure
+	 * 				if a setting is not valid for the Model
+	 */
+	static Model configure(Model model, Options options) {
+		try {
+			return model.override(options.getSettings());
+		} catch (IllegalArgumentException e) {
+			throw new JobFailure("Bad setting: " + e.getMessage());
 		}
 	}
 
@@ -551,25 +684,69 @@ public class Chem {
 	 * Output tracked species when changed.  Used whenever a tracked species
 	 * is modified in simulations with a single run.  Outputs all tracked species
 	 * in the order given by the user in the input file.
+	 * 
+	 * @param time
+	 * 				the current simulation time
+	 * @param species
+	 * 				the current species populations
 	 */
-	private static void trackOutput() {
-		
-		// Set-up string for output
-		String output = "Simulation Time = " + time + ": ";
-		
-		// Add each of the tracked species
-		for (int index : displays) {
-			output += "S" + (index + minIndex) + " = " + species[index] + "; ";
-		}
-		
-		output = output.substring(0, output.length() - 2) + "\n";
+	private void trackOutput(double time, int[] species) {
+		int[] displays = model.getDisplays();
+		int minIndex = model.getMinIndex();
 		
 		// Attempt writing
 		try {
-			out.write(output);
+			out.append("Simulation Time = ").append(time).append(": ");
+			
+			// Add each of the tracked species
+			for (int i = 0; i < displays.length; i++) {
+				if (i > 0) {
+					out.append("; ");
+				}
+				out.append('S').append(displays[i] + minIndex).append(" = ")
+						.append(species[displays[i]]);
+			}
+			out.append('\n');
 	    } catch (IOException e) {
-			System.out.println("Failure writing to output file.");
-			System.exit(0);
+			throw new JobFailure("Failure writing to output file.");
+		}
+	}
+	
+	/**
+	 * Output tracked species on the time grid.  Used instead of trackOutput()
+	 * when sampling, with one line per grid point.  Outputs all tracked
+	 * species in the order given by the user in the input file.
+	 * 
+	 * @param  run
+	 * 				the run number, or zero for a single run
+	 * @param  samples
+	 * 				the samples of a run, as in GridSampler.getSamples()
+	 */
+	private void sampleOutput(int run, int[] samples) {
+		int[] displays = model.getDisplays();
+		int minIndex = model.getMinIndex();
+		int numPoints = samples.length / Math.max(1, displays.length);
+
+		// Attempt write
+		try {
+			for (int k = 0, base = 0; k < numPoints; k++, base += displays.length) {
+				if (run == 0) {
+					out.append("Simulation Time = ");
+				} else {
+					out.append("Run #").append(run).append(" Time = ");
+				}
+				out.append(GridSampler.gridTime(k, sampleInterval)).append(": ");
+				for (int i = 0; i < displays.length; i++) {
+					if (i > 0) {
+						out.append("; ");
+					}
+					out.append('S').append(displays[i] + minIndex).append(" = ")
+							.append(samples[base + i]);
+				}
+				out.append('\n');
+			}
+	    } catch (IOException e) {
+			throw new JobFailure("Failure writing to output file.");
 		}
 	}
 	
@@ -580,25 +757,27 @@ public class Chem {
 	 * 
 	 * @param  run
 	 * 				the run number
+	 * @param  tracked
+	 * 				the final tracked species values, in display order
 	 */
-	private static void runOutput(int run) {
+	private void runOutput(int run, int[] tracked) {
+		int[] displays = model.getDisplays();
+		int minIndex = model.getMinIndex();
 
-		// Set-up string for output
-		String output = "Summary for Run #" + run + ": ";
-		
-		// Add each of the tracked species
-		for (int index : displays) {
-			output += "S" + (index + minIndex) + " = " + species[index] + "; ";
-		}
-		
-		output = output.substring(0, output.length() - 2) + "\n";
-		
 		// Attempt write
 		try {
-			out.write(output);
+			out.append("Summary for Run #").append(run).append(": ");
+			
+			// Add each of the tracked species
+			for (int i = 0; i < displays.length; i++) {
+				if (i > 0) {
+					out.append("; ");
+				}
+				out.append('S').append(displays[i] + minIndex).append(" = ").append(tracked[i]);
+			}
+			out.append('\n');
 	    } catch (IOException e) {
-			System.out.println("Failure writing to output file.");
-			System.exit(0);
+			throw new JobFailure("Failure writing to output file.");
 		}
 	}
 	
@@ -606,26 +785,46 @@ public class Chem {
 	 * Output for the summary of a single run.  Used for summary statistics
 	 * when only a single run is simulated.  Outputs how often each reaction
 	 * fired in the order given by the user in the input file.
+	 * 
+	 * @param  engine
+	 * 				the engine that did the run
 	 */
-	private static void singleOutput() {
+	private void singleOutput(SimulationEngine engine) {
 
-		// Set-up string for output
-		String output = "\nSimulation Summary:\n";
-		
-		// Add each reaction's fire times
-		for (int i = 0; i < reactionsArray.length; i++) {
-			Reaction rxn = reactionsArray[i];
-			output += "Reaction " + (i + 1) + " fired " + rxn.getFired() + " time(s)\n";
-		}
-		
-		output = output.substring(0, output.length() - 1);
-		
 		// Attempt write
 		try {
-			out.write(output);
+			out.append("\nSimulation Summary:");
+			
+			// Add each reaction's fire times
+			for (int i = 0; i < model.getReactions().length; i++) {
+				out.append("\nReaction ").append(i + 1).append(" fired ")
+						.append(engine.getFired(i)).append(" time(s)");
+			}
 	    } catch (IOException e) {
-			System.out.println("Failure writing to output file.");
-			System.exit(0);
+			throw new JobFailure("Failure writing to output file.");
+		}
+	}
+	
+	/**
+	 * Appends one line of per-species values for the final summary.
+	 * 
+	 * @param  output
+	 * 				the summary being built
+	 * @param  label
+	 * 				the label for the line
+	 * @param  species
+	 * 				the species numbers of the tracked species
+	 * @param  values
+	 * 				the values, in display order
+	 */
+	private static void appendLine(StringBuilder output, String label, int[] species,
+			double[] values) {
+		output.append(label);
+		for (int i = 0; i < species.length; i++) {
+			if (i > 0) {
+				output.append("; ");
+			}
+			output.append('S').append(species[i]).append(" = ").append(values[i]);
 		}
 	}
 	
@@ -633,52 +832,110 @@ public class Chem {
 	 * Final output for the summary of multiple runs.  Used for summary
 	 * statistics when multiple runs are simulated.  Outputs means and
 	 * variances for each tracked species in the order given by the user in
-	 * the input file.
+	 * the input file, and optionally standard errors and confidence intervals.
 	 */
-	private static void finalOutput() {
-
-		// Calculate tracked species' means
-		for (int i = 0; i < displays.length; i++) {
-			data[i][numRuns] = 0;
-			for (int j = 0; j < numRuns; j++) {
-				data[i][numRuns] += data[i][j];
-			}
-			data[i][numRuns] /= numRuns;
+	private void finalOutput() {
+		int[] species = model.getDisplays().clone();
+		for (int i = 0; i < species.length; i++) {
+			species[i] += model.getMinIndex();
+		}
+		String output = summary(stats, species, intervals);
+		if (targetError > 0) {
+			output += targetReached() ? "\nTarget relative standard error " + targetError
+					+ " reached after " + stats.getCount() + " runs"
+					: "\nTarget relative standard error " + targetError
+					+ " not reached after " + stats.getCount() + " runs";
 		}
 		
-		// Calculate tracked species' variances
-		for (int i = 0; i < displays.length; i++) {
-			data[i][numRuns + 1] = 0;
-			for (int j = 0; j < numRuns; j++) {
-				data[i][numRuns + 1] += Math.pow(data[i][numRuns] - data[i][j], 2);
+		// Attempt write
+		try {
+			out.append(output);
+			if (console != null) {
+				console.println(output);
 			}
-			data[i][numRuns + 1] /= numRuns;
+	    } catch (IOException e) {
+			throw new JobFailure("Failure writing to output file.");
 		}
-		
-		// Set-up string for output
-		String output = "\nSimulation Summary:\n";
-		
-		// Add the tracked species' means
-		output += "Means: ";
-		for (int i = 0; i < displays.length; i++) {
-			output += "S" + (displays[i] + minIndex) + " = " + data[i][numRuns] + "; ";
+	}
+	
+	/**
+	 * Checks whether or not the mean of every tracked species has reached
+	 * the target relative standard error.
+	 * 
+	 * @return
+	 * 				true if every mean is precise enough, false otherwise
+	 */
+	private boolean targetReached() {
+		for (int i = 0; i < stats.size(); i++) {
+			if (!(stats.getRelativeError(i) <= targetError)) {
+				return false;
+			}
 		}
-		output = output.substring(0, output.length() - 2) + "\n";
-		
-		// Add the tracked species' variances
-		output += "Variances: ";
-		for (int i = 0; i < displays.length; i++) {
-			output += "S" + (displays[i] + minIndex) + " = " + data[i][numRuns + 1] + "; ";
+		return true;
+	}
+	
+	/**
+	 * Output for a range of the runs of a bigger job.  The statistics are
+	 * written to the partial statistics file instead of the summary, to be
+	 * merged with the other ranges by PartialStats.
+	 */
+	private void partialOutput() {
+		try {
+			new PartialStats(seed, engineType.getName(), numRuns, model, firstRun,
+					options.getLastRun(), stats).write(options.getPartialFile());
+			if (console != null) {
+				console.println("Statistics for runs " + firstRun + "-" + options.getLastRun()
+						+ " written to " + options.getPartialFile());
+			}
+		} catch (IOException e) {
+			throw new JobFailure("Failure writing partial statistics.");
+		}
+	}
+	
+	/**
+	 * Builds the summary of multiple runs: means and variances for each
+	 * tracked species, and optionally standard errors and 95% confidence
+	 * intervals.  Shared with PartialStats, so merged ranges give the same
+	 * summary as one process.
+	 * 
+	 * @param  stats
+	 * 				the statistics of the runs
+	 * @param  species
+	 * 				the species numbers of the tracked species
+	 * @param  intervals
+	 * 				true to add standard errors and confidence intervals
+	 * @return
+	 * 				the summary
+	 */
+	public static String summary(RunningStats stats, int[] species, boolean intervals) {
+		double[] means = new double[species.length];
+		double[] variances = new double[species.length];
+		double[] errors = new double[species.length];
+		for (int i = 0; i < species.length; i++) {
+			means[i] = stats.getMean(i);
+			variances[i] = stats.getVariance(i);
+			errors[i] = stats.getStandardError(i);
 		}
-		output = output.substring(0, output.length() - 2);
+
+		// Set-up the summary, which is short and also goes to the console
+		StringBuilder output = new StringBuilder("\nSimulation Summary:\n");
+		appendLine(output, "Means: ", species, means);
+		appendLine(output.append('\n'), "Variances: ", species, variances);
 		
-		// Attempt write
-		try {
-			out.write(output);
-			System.out.println(output);
-	    } catch (IOException e) {
-			System.out.println("Failure writing to output file.");
-			System.exit(0);
+		// Add the standard errors and 95% confidence intervals if wanted
+		if (intervals) {
+			appendLine(output.append('\n'), "Standard Errors: ", species, errors);
+			output.append("\n95% Confidence Intervals: ");
+			for (int i = 0; i < species.length; i++) {
+				double halfWidth = RunningStats.Z_95 * errors[i];
+				if (i > 0) {
+					output.append("; ");
+				}
+				output.append('S').append(species[i]).append(" = [")
+						.append(means[i] - halfWidth).append(", ").append(means[i] + halfWidth)
+						.append(']');
+			}
 		}
+		return output.toString();
 	}
 }
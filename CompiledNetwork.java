@@ -0,0 +1,609 @@
+import java.util.Arrays;
+
+/**
+ * This class is a flat, array-based copy of a Model's reactions, built once
+ * after the Model is loaded.  The simulation engines run entirely on these
+ * arrays, so the hot loop never follows a pointer to a Reaction object and
+ * never allocates.
+ *
+ * Lists that differ in length between reactions are stored in compressed
+ * sparse row (CSR) form.  For example, the reactants of reaction j are
+ * reactantIndex[reactantStart[j]] up to (not including)
+ * reactantIndex[reactantStart[j + 1]].  The same is done for products, the
+ * net change of each species, and the dependency graph.
+ *
+ * A CompiledNetwork is never changed once it is built, so it is shared by
+ * every engine running the Model.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class CompiledNetwork {
+
+	/**
+	 * Propensity kinds, one for each exact stoichiometry of the reactants.
+	 * Every reaction is given its kind when the network is compiled, and
+	 * propensity() has a straight-line case for each one, so the switch in
+	 * the hot loop picks the arithmetic for the reaction and nothing else.
+	 * Stored as bytes so the kinds of many reactions fit in one cache line.
+	 *
+	 * Reactants are taken as written: a coefficient, as in 2A, takes that
+	 * many distinct molecules and gives a falling factorial, but separate
+	 * terms multiply plainly even if they are the same species.  So S1 + S1
+	 * is a BIMOLECULAR k * a * a, 2S1 + S1 a DIMER_PLUS k * a * (a - 1) * a,
+	 * and S1 + S1 + S2 a TRIMOLECULAR k * a * a * b.
+	 *
+	 * ZERO_ORDER:   ->        k
+	 * FIRST_ORDER:  A ->      k * a
+	 * DIMER:        2A ->     k * a * (a - 1)
+	 * BIMOLECULAR:  A + B ->  k * a * b
+	 * TRIMER:       3A ->     k * a * (a - 1) * (a - 2)
+	 * DIMER_PLUS:   2A + B -> k * a * (a - 1) * b
+	 * TRIMOLECULAR: A + B + C -> k * a * b * c
+	 * HIGHER_ORDER: anything else, as a product of falling factorials
+	 */
+	public static final byte ZERO_ORDER = 0, FIRST_ORDER = 1, DIMER = 2, BIMOLECULAR = 3,
+			TRIMER = 4, DIMER_PLUS = 5, TRIMOLECULAR = 6, HIGHER_ORDER = 7;
+
+	/**
+	 * The number of species in the network.
+	 */
+	private int numSpecies;
+
+	/**
+	 * The rate of each reaction.
+	 */
+	private double[] rates;
+
+	/**
+	 * The propensity kind of each reaction.
+	 */
+	private byte[] kinds;
+
+	/**
+	 * The species each reaction's kernel works on, by kind: A, B, and C as
+	 * in the table above, or -1 if not used.  Copied out of the reactant
+	 * lists so the common kinds need no row lookups.
+	 */
+	private int[] first, second, third;
+
+	/**
+	 * The reactants of each reaction in CSR form, with repeats for 2S.
+	 */
+	private int[] reactantStart, reactantIndex;
+
+	/**
+	 * The number of molecules of the same species ahead of each reactant in
+	 * its term, parallel to reactantIndex: 0 and 1 for 2S, but 0 and 0 for
+	 * S + S.  That many are taken off the reactant's population.
+	 */
+	private int[] reactantOffset;
+
+	/**
+	 * The products of each reaction in CSR form, with repeats for 2S.
+	 */
+	private int[] productStart, productIndex;
+
+	/**
+	 * The net change of each reaction in CSR form.  When reaction j fires,
+	 * species changeSpecies[k] changes by changeAmount[k] for each k in the
+	 * reaction's row.  Species that do not change are left out.
+	 */
+	private int[] changeStart, changeSpecies, changeAmount;
+
+	/**
+	 * The dependency graph in CSR form.  The row of reaction j lists every
+	 * reaction whose propensity has to be recalculated after j fires,
+	 * starting with j itself, then the reactions that use j's reactants,
+	 * then the reactions that use j's products.
+	 */
+	private int[] dependStart, dependIndex;
+
+	/**
+	 * Whether or not firing each reaction touches a tracked species.
+	 */
+	private boolean[] touchesTracked;
+
+	/**
+	 * The time taken to build the dependency graph, in nanoseconds.
+	 */
+	private long dependencyTime;
+
+	/**
+	 * Compiles the given Model's reactions and builds the dependency graph.
+	 *
+	 * @param model
+	 * 			the Model to compile
+	 */
+	public CompiledNetwork(Model model) {
+		Reaction[] reactions = model.getReactions();
+		boolean[] tracks = model.getTracks();
+		int numReactions = reactions.length;
+		numSpecies = model.getNumSpecies();
+
+		rates = new double[numReactions];
+		kinds = new byte[numReactions];
+		first = new int[numReactions];
+		second = new int[numReactions];
+		third = new int[numReactions];
+		reactantStart = new int[numReactions + 1];
+		productStart = new int[numReactions + 1];
+		changeStart = new int[numReactions + 1];
+		dependStart = new int[numReactions + 1];
+		touchesTracked = new boolean[numReactions];
+
+		// Count the row lengths
+		for (int j = 0; j < numReactions; j++) {
+			Reaction rxn = reactions[j];
+			reactantStart[j + 1] = reactantStart[j] + length(rxn.getReactants());
+			productStart[j + 1] = productStart[j] + length(rxn.getProducts());
+		}
+		reactantIndex = new int[reactantStart[numReactions]];
+		reactantOffset = new int[reactantIndex.length];
+		productIndex = new int[productStart[numReactions]];
+
+		// Fill in rates, kinds, and species lists
+		int[] net = new int[numSpecies];
+		int[] changed = new int[numSpecies];
+		int[] changeBuffer = new int[reactantIndex.length + productIndex.length];
+		int[] amountBuffer = new int[changeBuffer.length];
+		int changes = 0;
+		for (int j = 0; j < numReactions; j++) {
+			Reaction rxn = reactions[j];
+			rates[j] = rxn.getRate();
+
+			int[] reactants = rxn.getReactants();
+			int[] offsets = rxn.getOffsets();
+			for (int k = 0; k < length(reactants); k++) {
+				reactantIndex[reactantStart[j] + k] = reactants[k];
+				reactantOffset[reactantStart[j] + k] = offsets[k];
+				touchesTracked[j] |= tracks[reactants[k]];
+				net[reactants[k]]--;
+			}
+			compileKernel(j);
+			int[] products = rxn.getProducts();
+			for (int k = 0; k < length(products); k++) {
+				productIndex[productStart[j] + k] = products[k];
+				touchesTracked[j] |= tracks[products[k]];
+				net[products[k]]++;
+			}
+
+			// Collect the nonzero net changes, in order of first appearance
+			int count = 0;
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				count = collect(reactantIndex[k], net, changed, count);
+			}
+			for (int k = productStart[j]; k < productStart[j + 1]; k++) {
+				count = collect(productIndex[k], net, changed, count);
+			}
+			for (int k = 0; k < count; k++) {
+				int s = changed[k];
+				if (net[s] != 0) {
+					changeBuffer[changes] = s;
+					amountBuffer[changes] = net[s];
+					changes++;
+				}
+			}
+			for (int k = 0; k < count; k++) {
+				net[changed[k]] = 0;
+			}
+			changeStart[j + 1] = changes;
+		}
+		changeSpecies = new int[changes];
+		changeAmount = new int[changes];
+		System.arraycopy(changeBuffer, 0, changeSpecies, 0, changes);
+		System.arraycopy(amountBuffer, 0, changeAmount, 0, changes);
+
+		long start = System.nanoTime();
+		buildDependencies();
+		dependencyTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Creates a copy of the given network with different rates.  Nothing
+	 * else depends on the rates, so the species lists, kernels, and
+	 * dependency graph are shared with the original instead of built again.
+	 *
+	 * @param base
+	 * 			the network to copy
+	 * @param newRates
+	 * 			the rate of each reaction
+	 */
+	public CompiledNetwork(CompiledNetwork base, double[] newRates) {
+		numSpecies = base.numSpecies;
+		rates = newRates.clone();
+		kinds = base.kinds;
+		first = base.first;
+		second = base.second;
+		third = base.third;
+		reactantStart = base.reactantStart;
+		reactantIndex = base.reactantIndex;
+		reactantOffset = base.reactantOffset;
+		productStart = base.productStart;
+		productIndex = base.productIndex;
+		changeStart = base.changeStart;
+		changeSpecies = base.changeSpecies;
+		changeAmount = base.changeAmount;
+		dependStart = base.dependStart;
+		dependIndex = base.dependIndex;
+		touchesTracked = base.touchesTracked;
+	}
+
+	/**
+	 * Builds the dependency graph.  First the species links (the reactions
+	 * that use each species as a reactant) are put in CSR form, then each
+	 * reaction's row is the union of the links of its reactants and products.
+	 * Duplicates are skipped by stamping each reaction with the index of the
+	 * row it was last added to, so no searching or clearing is needed and the
+	 * whole build is linear in the total size of the links visited.
+	 */
+	private void buildDependencies() {
+		int numReactions = rates.length;
+
+		// Count and fill the species links, skipping the repeat of 2S
+		int[] linkStart = new int[numSpecies + 1];
+		for (int j = 0; j < numReactions; j++) {
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				if (k == reactantStart[j] || reactantIndex[k] != reactantIndex[k - 1]) {
+					linkStart[reactantIndex[k] + 1]++;
+				}
+			}
+		}
+		for (int s = 0; s < numSpecies; s++) {
+			linkStart[s + 1] += linkStart[s];
+		}
+		int[] linkIndex = new int[linkStart[numSpecies]];
+		int[] fill = new int[numSpecies];
+		for (int j = 0; j < numReactions; j++) {
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				if (k == reactantStart[j] || reactantIndex[k] != reactantIndex[k - 1]) {
+					int s = reactantIndex[k];
+					linkIndex[linkStart[s] + fill[s]++] = j;
+				}
+			}
+		}
+
+		// Build each reaction's row from the links of its species
+		int[] stamp = new int[numReactions];
+		Arrays.fill(stamp, -1);
+		int[] rows = new int[Math.max(16, numReactions)];
+		int size = 0;
+		for (int j = 0; j < numReactions; j++) {
+			stamp[j] = j;
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, rows.length * 2);
+			}
+			rows[size++] = j;
+			for (int pass = 0; pass < 2; pass++) {
+				int[] start = pass == 0 ? reactantStart : productStart;
+				int[] index = pass == 0 ? reactantIndex : productIndex;
+				for (int k = start[j]; k < start[j + 1]; k++) {
+					int s = index[k];
+					for (int m = linkStart[s]; m < linkStart[s + 1]; m++) {
+						int r = linkIndex[m];
+						if (stamp[r] != j) {
+							stamp[r] = j;
+							if (size == rows.length) {
+								rows = Arrays.copyOf(rows, rows.length * 2);
+							}
+							rows[size++] = r;
+						}
+					}
+				}
+			}
+			dependStart[j + 1] = size;
+		}
+		dependIndex = Arrays.copyOf(rows, size);
+	}
+
+	/**
+	 * Adds the given species to the list of changed species, unless it is
+	 * already there.  Reactions only have a few species, so a linear check
+	 * is fine.
+	 *
+	 * @param s
+	 * 			the species index
+	 * @param net
+	 * 			the net change of each species
+	 * @param changed
+	 * 			the list of changed species so far
+	 * @param count
+	 * 			the length of the list
+	 * @return
+	 * 			the new length of the list
+	 */
+	private static int collect(int s, int[] net, int[] changed, int count) {
+		for (int k = 0; k < count; k++) {
+			if (changed[k] == s) {
+				return count;
+			}
+		}
+		changed[count] = s;
+		return count + 1;
+	}
+
+	/**
+	 * Returns the length of the given species list, which may be null.
+	 *
+	 * @param list
+	 * 			the list of species indices
+	 * @return
+	 * 			the length, zero for null
+	 */
+	private static int length(int[] list) {
+		return list == null ? 0 : list.length;
+	}
+
+	/**
+	 * Picks the propensity kind of the given reaction from its reactants as
+	 * they were written, and copies the species its kernel works on.  The
+	 * reactant row must already be filled in.
+	 *
+	 * @param j
+	 * 			the index of the reaction
+	 */
+	private void compileKernel(int j) {
+		int start = reactantStart[j];
+		int order = reactantStart[j + 1] - start;
+		first[j] = second[j] = third[j] = -1;
+
+		// The longest run of one species in a single term
+		int longest = 0;
+		for (int k = start; k < start + order; k++) {
+			longest = Math.max(longest, reactantOffset[k] + 1);
+		}
+
+		if (order == 0) {
+			kinds[j] = ZERO_ORDER;
+		} else if (order == 1) {
+			kinds[j] = FIRST_ORDER;
+			first[j] = reactantIndex[start];
+		} else if (order == 2) {
+			kinds[j] = longest == 2 ? DIMER : BIMOLECULAR;
+			first[j] = reactantIndex[start];
+			second[j] = reactantIndex[start + 1];
+		} else if (order == 3 && longest == 3) {
+			kinds[j] = TRIMER;
+			first[j] = reactantIndex[start];
+		} else if (order == 3 && longest == 2) {
+
+			// The 2A term goes first, and the other term is B
+			kinds[j] = DIMER_PLUS;
+			int pair = reactantOffset[start + 1] == 1 ? start : start + 1;
+			first[j] = reactantIndex[pair];
+			second[j] = reactantIndex[pair == start ? start + 2 : start];
+		} else if (order == 3) {
+			kinds[j] = TRIMOLECULAR;
+			first[j] = reactantIndex[start];
+			second[j] = reactantIndex[start + 1];
+			third[j] = reactantIndex[start + 2];
+		} else {
+			kinds[j] = HIGHER_ORDER;
+		}
+	}
+
+	/**
+	 * Calculates the propensity of the given reaction for the given species
+	 * populations, with the kernel for the reaction's kind.
+	 *
+	 * @param j
+	 * 			the index of the reaction
+	 * @param species
+	 * 			the current species populations
+	 * @return
+	 * 			the propensity of the reaction
+	 */
+	public double propensity(int j, int[] species) {
+		switch (kinds[j]) {
+		case ZERO_ORDER:
+			return rates[j];
+		case FIRST_ORDER:
+			return rates[j] * species[first[j]];
+		case DIMER: {
+			double a = species[first[j]];
+			return rates[j] * a * (a - 1);
+		}
+		case BIMOLECULAR:
+			return rates[j] * species[first[j]] * species[second[j]];
+		case TRIMER: {
+			double a = species[first[j]];
+			return rates[j] * a * (a - 1) * (a - 2);
+		}
+		case DIMER_PLUS: {
+			double a = species[first[j]];
+			return rates[j] * a * (a - 1) * species[second[j]];
+		}
+		case TRIMOLECULAR:
+			return rates[j] * species[first[j]] * species[second[j]] * species[third[j]];
+		default:
+			return higherOrder(j, species);
+		}
+	}
+
+	/**
+	 * Calculates the propensity of a reaction of any order.  Each repeat of
+	 * a species within a term counts one fewer molecule than the last, so a
+	 * term mS gives a * (a - 1) * ... * (a - m + 1).
+	 *
+	 * @param j
+	 * 			the index of the reaction
+	 * @param species
+	 * 			the current species populations
+	 * @return
+	 * 			the propensity of the reaction
+	 */
+	private double higherOrder(int j, int[] species) {
+		double propensity = rates[j];
+		for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+			propensity *= species[reactantIndex[k]] - reactantOffset[k];
+		}
+		return propensity;
+	}
+
+	/**
+	 * Applies the net change of the given reaction to the species.
+	 *
+	 * @param j
+	 * 			the index of the reaction
+	 * @param species
+	 * 			the species populations to change
+	 */
+	public void fire(int j, int[] species) {
+		for (int k = changeStart[j]; k < changeStart[j + 1]; k++) {
+			species[changeSpecies[k]] += changeAmount[k];
+		}
+	}
+
+	/**
+	 * Returns the number of species.
+	 *
+	 * @return
+	 * 			the number of species
+	 */
+	public int getNumSpecies() {
+		return numSpecies;
+	}
+
+	/**
+	 * Returns the number of reactions.
+	 *
+	 * @return
+	 * 			the number of reactions
+	 */
+	public int getNumReactions() {
+		return rates.length;
+	}
+
+	/**
+	 * Returns the rate of the given reaction.
+	 *
+	 * @param j
+	 * 			the index of the reaction
+	 * @return
+	 * 			the reaction rate
+	 */
+	public double getRate(int j) {
+		return rates[j];
+	}
+
+	/**
+	 * Returns the propensity kind of each reaction.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the propensity kinds
+	 */
+	public byte[] getKinds() {
+		return kinds;
+	}
+
+	/**
+	 * Returns the row starts of the reactant lists.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the reactant row starts, of length numReactions + 1
+	 */
+	public int[] getReactantStart() {
+		return reactantStart;
+	}
+
+	/**
+	 * Returns the reactant species of all reactions.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the reactant species indices
+	 */
+	public int[] getReactantIndex() {
+		return reactantIndex;
+	}
+
+	/**
+	 * Returns the number of molecules of the same species ahead of each
+	 * reactant in its term, parallel to getReactantIndex().  The array should
+	 * not be modified.
+	 *
+	 * @return
+	 * 			the reactant offsets
+	 */
+	public int[] getReactantOffset() {
+		return reactantOffset;
+	}
+
+	/**
+	 * Returns the row starts of the net change lists.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the net change row starts, of length numReactions + 1
+	 */
+	public int[] getChangeStart() {
+		return changeStart;
+	}
+
+	/**
+	 * Returns the changed species of all reactions.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the changed species indices
+	 */
+	public int[] getChangeSpecies() {
+		return changeSpecies;
+	}
+
+	/**
+	 * Returns the net change amounts of all reactions.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the net change amounts
+	 */
+	public int[] getChangeAmount() {
+		return changeAmount;
+	}
+
+	/**
+	 * Returns the row starts of the dependency graph.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			the dependency row starts, of length numReactions + 1
+	 */
+	public int[] getDependStart() {
+		return dependStart;
+	}
+
+	/**
+	 * Returns the dependent reactions of all reactions.  The array should
+	 * not be modified.
+	 *
+	 * @return
+	 * 			the dependent reaction indices
+	 */
+	public int[] getDependIndex() {
+		return dependIndex;
+	}
+
+	/**
+	 * Returns the time taken to build the dependency graph.
+	 *
+	 * @return
+	 * 			the build time in nanoseconds
+	 */
+	public long getDependencyTime() {
+		return dependencyTime;
+	}
+
+	/**
+	 * Returns whether or not firing each reaction touches a tracked species.
+	 * The array should not be modified.
+	 *
+	 * @return
+	 * 			the tracked flags by reaction index
+	 */
+	public boolean[] getTouchesTracked() {
+		return touchesTracked;
+	}
+}
@@ -0,0 +1,510 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * This class runs the composition-rejection method of Slepoy, Thompson, and
+ * Plimpton for a single Model.  It is an exact method like the direct
+ * method, but the reactions are binned by the size of their propensity
+ * instead of kept in a heap or sum tree: group g holds the reactions with
+ * propensities in [2^e, 2^(e+1)) for the binary exponent e of g.  Each step
+ * draws the time to the next event from the total propensity, picks a group
+ * by its sum with a linear search over the groups in use, then picks a
+ * reaction in the group by rejection: a member is taken uniformly and kept
+ * with probability propensity / 2^(e+1), which is at least one half, so it
+ * takes at most two tries on average.
+ *
+ * A changed propensity costs O(1): the group sum is adjusted, and if the
+ * propensity has crossed a power of two the reaction is moved to its new
+ * group by swapping it with the last member of the old one.  The number of
+ * groups in use only grows with the log of the spread of the propensities,
+ * not with the number of reactions, so for large networks whose propensities
+ * span many orders of magnitude each event costs about the same however many
+ * reactions there are, where the next-reaction method pays O(log R) heap
+ * work for every affected reaction.
+ *
+ * The group sums are only adjusted as propensities change, so every so many
+ * events, or when their total nears zero, they are added up again from the
+ * propensities of their members to keep round-off from building up.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class CompositionRejectionEngine implements SimulationEngine {
+
+	/**
+	 * The number of groups, one for each binary exponent a normal double can
+	 * have, from Double.MIN_EXPONENT up (subnormals share the lowest).
+	 */
+	private static final int NUM_GROUPS = Double.MAX_EXPONENT - Double.MIN_EXPONENT + 1;
+
+	/**
+	 * The room a group is given when it is first used.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The number of events after which the group sums are added up again
+	 * from the propensities, so round-off does not build up.
+	 */
+	private static final int RESUM_EVENTS = 1 << 16;
+
+	/**
+	 * How far below the last full sum the total may fall before the group
+	 * sums are added up again at once, so a total that should be near zero
+	 * is not left as round-off.
+	 */
+	private static final double RESUM_FRACTION = 1e-9;
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the Model's compiled reactions, shared with other engines.
+	 */
+	private CompiledNetwork network;
+
+	/**
+	 * This is an array of length numSpecies that is used to keep track of
+	 * the current species values.
+	 */
+	private int[] species;
+
+	/**
+	 * This is an array of length numReactions holding the current propensity
+	 * of each reaction.
+	 */
+	private double[] propensities;
+
+	/**
+	 * The group each reaction is in, or -1 for a zero propensity, and its
+	 * place among the members of the group.
+	 */
+	private int[] groupOf, slotOf;
+
+	/**
+	 * The reactions in each group, allocated when the group is first used
+	 * and grown as needed, and the number of them.
+	 */
+	private int[][] members = new int[NUM_GROUPS][];
+	private int[] sizes = new int[NUM_GROUPS];
+
+	/**
+	 * The sum of the propensities in each group, and the upper bound of its
+	 * propensities, 2^(e+1).
+	 */
+	private double[] sums = new double[NUM_GROUPS];
+	private double[] bounds = new double[NUM_GROUPS];
+
+	/**
+	 * The groups in use, in the order they were first used, and the place
+	 * of each group in this list, or -1 if it is not in use.
+	 */
+	private int[] active = new int[NUM_GROUPS];
+	private int[] activePos = new int[NUM_GROUPS];
+	private int numActive;
+
+	/**
+	 * The total when the group sums were last added up in full, and the
+	 * number of events since then.
+	 */
+	private double lastSum;
+	private int sinceSum;
+
+	/**
+	 * This is an array of length numReactions counting how often each
+	 * reaction has fired in the current run.
+	 */
+	private int[] fired;
+
+	/**
+	 * This represents the current time, which starts at zero and ticks
+	 * up to the simulation time.
+	 */
+	private double time = 0;
+
+	/**
+	 * This is set once nothing can fire anymore, which ends the run early.
+	 */
+	private boolean done = false;
+
+	/**
+	 * This is the engine's own random number generator.
+	 */
+	private RandomStream random = new RandomStream(0, 0);
+
+	/**
+	 * This is the listener for tracked species changes, or null if nobody
+	 * needs to know.
+	 */
+	private SpeciesListener listener = null;
+
+	/**
+	 * These count events, moves between groups, and propensity
+	 * recalculations since the last flush to Metrics.  Only counted when
+	 * Metrics.ENABLED.
+	 */
+	private long events, moves, recalculated;
+
+	/**
+	 * Creates a new CompositionRejectionEngine for the given Model.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 */
+	public CompositionRejectionEngine(Model m) {
+		model = m;
+		network = m.getNetwork();
+		int numReactions = network.getNumReactions();
+		species = new int[network.getNumSpecies()];
+		propensities = new double[numReactions];
+		groupOf = new int[numReactions];
+		slotOf = new int[numReactions];
+		fired = new int[numReactions];
+		for (int g = 0; g < NUM_GROUPS; g++) {
+			bounds[g] = Math.min(Double.MAX_VALUE, Math.scalb(1.0, g + Double.MIN_EXPONENT + 1));
+		}
+	}
+
+	@Override
+	public void setListener(SpeciesListener l) {
+		listener = l;
+	}
+
+	@Override
+	public void reset(long seed, int run) {
+		int[] initialSpecies = model.getInitialSpecies();
+		time = 0;
+		done = false;
+		random.setRun(seed, run);
+
+		// Reset species to initial values
+		for (int j = 0; j < species.length; j++) {
+			species[j] = initialSpecies[j];
+		}
+
+		// Calculate all propensities and bin them, in reaction order
+		clearGroups();
+		for (int i = 0; i < propensities.length; i++) {
+			propensities[i] = 0;
+			groupOf[i] = -1;
+			fired[i] = 0;
+			update(i, network.propensity(i, species));
+		}
+		sumGroups();
+	}
+
+	/**
+	 * Empties every group.
+	 */
+	private void clearGroups() {
+		Arrays.fill(sizes, 0);
+		Arrays.fill(sums, 0);
+		Arrays.fill(activePos, -1);
+		numActive = 0;
+	}
+
+	@Override
+	public void run() {
+		advance(Long.MAX_VALUE);
+	}
+
+	@Override
+	public boolean advance(long maxSteps) {
+		int simulationTime = model.getSimulationTime();
+		int[] dependStart = network.getDependStart();
+		int[] dependIndex = network.getDependIndex();
+		boolean[] touchesTracked = network.getTouchesTracked();
+
+		for (long step = 0; step < maxSteps && !done && time < simulationTime; step++) {
+
+			// Add up the group sums, and the groups themselves again once in a
+			// while, or when the total nears zero
+			double sum = 0;
+			for (int k = 0; k < numActive; k++) {
+				sum += sums[active[k]];
+			}
+			if (sinceSum >= RESUM_EVENTS || sum <= RESUM_FRACTION * lastSum) {
+				sum = sumGroups();
+			}
+
+			// Nothing can fire anymore
+			if (numActive == 0 || sum <= 0) {
+				done = true;
+				break;
+			}
+
+			// Advance to the next event and test for simulation end
+			time += random.nextExponential(sum);
+			if (time > simulationTime) {
+				break;
+			}
+
+			// Choose a group, then a reaction in it, and fire it
+			int current = pick(searchGroups(random.nextDouble() * sum));
+			fired[current]++;
+			network.fire(current, species);
+			sinceSum++;
+			if (Metrics.ENABLED) {
+				events++;
+				recalculated += dependStart[current + 1] - dependStart[current];
+			}
+
+			// Recalculate propensities for effected reactions
+			for (int k = dependStart[current]; k < dependStart[current + 1]; k++) {
+				int i = dependIndex[k];
+				update(i, network.propensity(i, species));
+			}
+
+			// Output for tracked species changes
+			if (touchesTracked[current] && listener != null) {
+				listener.speciesChanged(time, species);
+			}
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().record(events, moves, recalculated, 0, random.takeDraws());
+			events = moves = recalculated = 0;
+		}
+		return done || time >= simulationTime;
+	}
+
+	/**
+	 * Adds up the sum of every group in use again from the propensities of
+	 * its members.
+	 *
+	 * @return
+	 * 			the total of the group sums
+	 */
+	private double sumGroups() {
+		double total = 0;
+		for (int k = 0; k < numActive; k++) {
+			int g = active[k];
+			int[] group = members[g];
+			double sum = 0;
+			for (int m = 0; m < sizes[g]; m++) {
+				sum += propensities[group[m]];
+			}
+			sums[g] = sum;
+			total += sum;
+		}
+		lastSum = total;
+		sinceSum = 0;
+		return total;
+	}
+
+	/**
+	 * Returns the group for the given propensity.
+	 *
+	 * @param propensity
+	 * 			a propensity greater than zero
+	 * @return
+	 * 			the group holding propensities with the same binary exponent
+	 */
+	private static int groupFor(double propensity) {
+		return Math.max(0, Math.getExponent(propensity) - Double.MIN_EXPONENT);
+	}
+
+	/**
+	 * Sets the propensity of the given reaction, moving it to another group
+	 * if it has crossed a power of two.
+	 *
+	 * @param index
+	 * 			the index of the reaction
+	 * @param propensity
+	 * 			the new propensity
+	 */
+	private void update(int index, double propensity) {
+		double old = propensities[index];
+		propensities[index] = propensity;
+		int from = groupOf[index];
+		int to = propensity > 0 ? groupFor(propensity) : -1;
+		if (from == to) {
+			if (from >= 0) {
+				sums[from] += propensity - old;
+			}
+			return;
+		}
+		if (Metrics.ENABLED) {
+			moves++;
+		}
+		if (from >= 0) {
+			remove(index, from, old);
+		}
+		if (to >= 0) {
+			add(index, to, propensity);
+		}
+	}
+
+	/**
+	 * Adds a reaction to the end of a group, putting the group in use if it
+	 * was empty.
+	 *
+	 * @param index
+	 * 			the index of the reaction
+	 * @param g
+	 * 			the group
+	 * @param propensity
+	 * 			the propensity of the reaction
+	 */
+	private void add(int index, int g, double propensity) {
+		if (members[g] == null) {
+			members[g] = new int[INITIAL_CAPACITY];
+		} else if (sizes[g] == members[g].length) {
+			members[g] = Arrays.copyOf(members[g], 2 * sizes[g]);
+		}
+		if (sizes[g] == 0) {
+			activePos[g] = numActive;
+			active[numActive++] = g;
+		}
+		members[g][sizes[g]] = index;
+		groupOf[index] = g;
+		slotOf[index] = sizes[g]++;
+		sums[g] += propensity;
+	}
+
+	/**
+	 * Removes a reaction from a group by moving the group's last member into
+	 * its place, and takes the group out of use once it is empty.
+	 *
+	 * @param index
+	 * 			the index of the reaction
+	 * @param g
+	 * 			the group
+	 * @param propensity
+	 * 			the propensity the reaction had in the group
+	 */
+	private void remove(int index, int g, double propensity) {
+		int last = members[g][--sizes[g]];
+		members[g][slotOf[index]] = last;
+		slotOf[last] = slotOf[index];
+		groupOf[index] = -1;
+		if (sizes[g] > 0) {
+			sums[g] -= propensity;
+			return;
+		}
+
+		// An empty group is set back to exactly zero and dropped from the list
+		sums[g] = 0;
+		int moved = active[--numActive];
+		active[activePos[g]] = moved;
+		activePos[moved] = activePos[g];
+		activePos[g] = -1;
+	}
+
+	/**
+	 * Finds the group whose slice of the cumulative sum holds the given
+	 * target, by walking the groups in use in order.
+	 *
+	 * @param target
+	 * 			a value in (0, sum of the groups]
+	 * @return
+	 * 			the chosen group
+	 */
+	private int searchGroups(double target) {
+		for (int k = 0; k < numActive - 1; k++) {
+			int g = active[k];
+			target -= sums[g];
+			if (target <= 0) {
+				return g;
+			}
+		}
+
+		// The last group, or round-off left the target just past the end
+		return active[numActive - 1];
+	}
+
+	/**
+	 * Picks a reaction in the given group by rejection: a member is taken
+	 * uniformly and kept with probability propensity / bound, which is at
+	 * least one half.
+	 *
+	 * @param g
+	 * 			a group in use
+	 * @return
+	 * 			the index of the chosen reaction
+	 */
+	private int pick(int g) {
+		int[] group = members[g];
+		int size = sizes[g];
+		double bound = bounds[g];
+		while (true) {
+			int member = group[Math.min(size - 1, (int) (random.nextDouble() * size))];
+			if (random.nextDouble() * bound <= propensities[member]) {
+				return member;
+			}
+		}
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(time);
+		out.writeBoolean(done);
+		for (int j = 0; j < species.length; j++) {
+			out.writeInt(species[j]);
+		}
+		for (int i = 0; i < fired.length; i++) {
+			out.writeInt(fired[i]);
+			out.writeDouble(propensities[i]);
+		}
+
+		// The groups as they are, since the order of members and groups and
+		// the round-off in the sums all change which reaction is picked
+		out.writeInt(numActive);
+		for (int k = 0; k < numActive; k++) {
+			int g = active[k];
+			out.writeInt(g);
+			out.writeDouble(sums[g]);
+			out.writeInt(sizes[g]);
+			for (int m = 0; m < sizes[g]; m++) {
+				out.writeInt(members[g][m]);
+			}
+		}
+		out.writeDouble(lastSum);
+		out.writeInt(sinceSum);
+		random.save(out);
+	}
+
+	@Override
+	public void restore(DataInput in) throws IOException {
+		time = in.readDouble();
+		done = in.readBoolean();
+		for (int j = 0; j < species.length; j++) {
+			species[j] = in.readInt();
+		}
+		for (int i = 0; i < fired.length; i++) {
+			fired[i] = in.readInt();
+			propensities[i] = in.readDouble();
+			groupOf[i] = -1;
+		}
+		clearGroups();
+		int count = in.readInt();
+		for (int k = 0; k < count; k++) {
+			int g = in.readInt();
+			double sum = in.readDouble();
+			int size = in.readInt();
+			for (int m = 0; m < size; m++) {
+				add(in.readInt(), g, 0);
+			}
+			sums[g] = sum;
+		}
+		lastSum = in.readDouble();
+		sinceSum = in.readInt();
+		random.restore(in);
+	}
+
+	@Override
+	public int[] getSpecies() {
+		return species;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public int getFired(int reaction) {
+		return fired[reaction];
+	}
+}
@@ -0,0 +1,375 @@
+import java.io.*;
+
+/**
+ * This class runs Gillespie's direct method for a single Model.  Instead of
+ * keeping a next-time for every reaction, it keeps every propensity and
+ * their sum.  Each step draws the time to the next event from the total
+ * propensity, then picks which reaction fires with a second random number.
+ *
+ * The reaction can be picked with a linear search over the propensities,
+ * which has no upkeep at all and is fastest for small, densely coupled
+ * models, or with a binary sum tree, which keeps both the search and the
+ * updates at O(log n) for larger models.  The linear search keeps a running
+ * total, which is added up again from the propensities every so often so
+ * its round-off does not build up.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class DirectMethodEngine implements SimulationEngine {
+
+	/**
+	 * The number of events after which the linear search's total is added
+	 * up again from the propensities, so round-off does not build up.
+	 */
+	private static final int RESUM_EVENTS = 1 << 16;
+
+	/**
+	 * How far below the last full sum the total may fall before it is added
+	 * up again at once, so a total that should be zero is not left as
+	 * round-off.
+	 */
+	private static final double RESUM_FRACTION = 1e-9;
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the Model's compiled reactions, shared with other engines.
+	 */
+	private CompiledNetwork network;
+
+	/**
+	 * This is an array of length numSpecies that is used to keep track of
+	 * the current species values.
+	 */
+	private int[] species;
+
+	/**
+	 * This is an array of length numReactions holding the current propensity
+	 * of each reaction.
+	 */
+	private double[] propensities;
+
+	/**
+	 * This is the sum of all propensities, used with the linear search.
+	 */
+	private double total;
+
+	/**
+	 * The total when it was last added up in full, and the number of events
+	 * since then.
+	 */
+	private double lastSum;
+	private int sinceSum;
+
+	/**
+	 * This is the binary sum tree, or null for the linear search.  The root
+	 * is at index 1, the children of node i are at 2*i and 2*i + 1, and the
+	 * propensity of reaction j is the leaf at leaves + j.  Each inner node
+	 * is the sum of its children.
+	 */
+	private double[] tree = null;
+
+	/**
+	 * This is the number of leaves in the sum tree, a power of two.
+	 */
+	private int leaves;
+
+	/**
+	 * This is an array of length numReactions counting how often each
+	 * reaction has fired in the current run.
+	 */
+	private int[] fired;
+
+	/**
+	 * This represents the current time, which starts at zero and ticks
+	 * up to the simulation time.
+	 */
+	private double time = 0;
+
+	/**
+	 * This is set once nothing can fire anymore, which ends the run early.
+	 */
+	private boolean done = false;
+
+	/**
+	 * This is the engine's own random number generator.
+	 */
+	private RandomStream random = new RandomStream(0, 0);
+
+	/**
+	 * This is the listener for tracked species changes, or null if nobody
+	 * needs to know.
+	 */
+	private SpeciesListener listener = null;
+
+	/**
+	 * These count events and propensity recalculations since the last
+	 * flush to Metrics.  Only counted when Metrics.ENABLED.
+	 */
+	private long events, recalculated;
+
+	/**
+	 * Creates a new DirectMethodEngine for the given Model.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 * @param useTree
+	 * 			true to search with a sum tree, false for a linear search
+	 */
+	public DirectMethodEngine(Model m, boolean useTree) {
+		model = m;
+		network = m.getNetwork();
+		int numReactions = network.getNumReactions();
+		species = new int[network.getNumSpecies()];
+		propensities = new double[numReactions];
+		fired = new int[numReactions];
+		if (useTree) {
+			leaves = 1;
+			while (leaves < numReactions) {
+				leaves *= 2;
+			}
+			tree = new double[2 * leaves];
+		}
+	}
+
+	@Override
+	public void setListener(SpeciesListener l) {
+		listener = l;
+	}
+
+	@Override
+	public void reset(long seed, int run) {
+		int[] initialSpecies = model.getInitialSpecies();
+		time = 0;
+		done = false;
+		random.setRun(seed, run);
+
+		// Reset species to initial values
+		for (int j = 0; j < species.length; j++) {
+			species[j] = initialSpecies[j];
+		}
+
+		// Calculate all propensities
+		for (int i = 0; i < propensities.length; i++) {
+			propensities[i] = network.propensity(i, species);
+			fired[i] = 0;
+		}
+		sumTotal();
+		buildTree();
+	}
+
+	/**
+	 * Adds up the total from the propensities.
+	 */
+	private void sumTotal() {
+		total = 0;
+		for (int i = 0; i < propensities.length; i++) {
+			total += propensities[i];
+		}
+		lastSum = total;
+		sinceSum = 0;
+	}
+
+	/**
+	 * Builds the sum tree from the propensities, from the bottom up.  The
+	 * sums come out the same as after any number of updateTree() calls.
+	 */
+	private void buildTree() {
+		if (tree != null) {
+			for (int i = 0; i < leaves; i++) {
+				tree[leaves + i] = i < propensities.length ? propensities[i] : 0;
+			}
+			for (int i = leaves - 1; i >= 1; i--) {
+				tree[i] = tree[2 * i] + tree[2 * i + 1];
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		advance(Long.MAX_VALUE);
+	}
+
+	@Override
+	public boolean advance(long maxSteps) {
+		int simulationTime = model.getSimulationTime();
+		int[] dependStart = network.getDependStart();
+		int[] dependIndex = network.getDependIndex();
+		boolean[] touchesTracked = network.getTouchesTracked();
+
+		for (long step = 0; step < maxSteps && !done && time < simulationTime; step++) {
+
+			// Nothing can fire anymore
+			double sum = tree == null ? total : tree[1];
+			if (sum <= 0) {
+				done = true;
+				break;
+			}
+
+			// Advance to the next event and test for simulation end
+			time += random.nextExponential(sum);
+			if (time > simulationTime) {
+				break;
+			}
+
+			// Choose and fire the next reaction
+			int current = tree == null ? searchLinear(random.nextDouble() * sum)
+					: searchTree(random.nextDouble() * sum);
+			fired[current]++;
+			network.fire(current, species);
+			if (Metrics.ENABLED) {
+				events++;
+				recalculated += dependStart[current + 1] - dependStart[current];
+			}
+
+			// Recalculate propensities for effected reactions
+			for (int k = dependStart[current]; k < dependStart[current + 1]; k++) {
+				int i = dependIndex[k];
+				double propensity = network.propensity(i, species);
+				if (tree == null) {
+					total += propensity - propensities[i];
+				} else {
+					updateTree(i, propensity);
+				}
+				propensities[i] = propensity;
+			}
+
+			// Add the total up again once in a while, or when it nears zero
+			if (tree == null && (++sinceSum >= RESUM_EVENTS
+					|| total <= RESUM_FRACTION * lastSum)) {
+				sumTotal();
+			}
+
+			// Output for tracked species changes
+			if (touchesTracked[current] && listener != null) {
+				listener.speciesChanged(time, species);
+			}
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().record(events, tree == null ? 0 : recalculated, recalculated, 0,
+					random.takeDraws());
+			events = recalculated = 0;
+		}
+		return done || time >= simulationTime;
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(time);
+		out.writeBoolean(done);
+		for (int j = 0; j < species.length; j++) {
+			out.writeInt(species[j]);
+		}
+		for (int i = 0; i < fired.length; i++) {
+			out.writeInt(fired[i]);
+			out.writeDouble(propensities[i]);
+		}
+		out.writeDouble(total);
+		out.writeDouble(lastSum);
+		out.writeInt(sinceSum);
+		random.save(out);
+	}
+
+	@Override
+	public void restore(DataInput in) throws IOException {
+		time = in.readDouble();
+		done = in.readBoolean();
+		for (int j = 0; j < species.length; j++) {
+			species[j] = in.readInt();
+		}
+		for (int i = 0; i < fired.length; i++) {
+			fired[i] = in.readInt();
+			propensities[i] = in.readDouble();
+		}
+		total = in.readDouble();
+		lastSum = in.readDouble();
+		sinceSum = in.readInt();
+		buildTree();
+		random.restore(in);
+	}
+
+	/**
+	 * Finds the reaction whose slice of the cumulative propensity sum holds
+	 * the given target, by walking the propensities in order.
+	 *
+	 * @param target
+	 * 			a value in (0, total]
+	 * @return
+	 * 			the index of the chosen reaction
+	 */
+	private int searchLinear(double target) {
+		int last = 0;
+		for (int i = 0; i < propensities.length; i++) {
+			if (propensities[i] > 0) {
+				target -= propensities[i];
+				last = i;
+				if (target <= 0) {
+					return i;
+				}
+			}
+		}
+
+		// Round-off left the target just past the end
+		return last;
+	}
+
+	/**
+	 * Finds the reaction whose slice of the cumulative propensity sum holds
+	 * the given target, by walking down the sum tree.
+	 *
+	 * @param target
+	 * 			a value in (0, tree[1]]
+	 * @return
+	 * 			the index of the chosen reaction
+	 */
+	private int searchTree(double target) {
+		int pos = 1;
+		while (pos < leaves) {
+			int left = 2 * pos;
+			if (target <= tree[left] || tree[left + 1] <= 0) {
+				pos = left;
+			} else {
+				target -= tree[left];
+				pos = left + 1;
+			}
+		}
+		return pos - leaves;
+	}
+
+	/**
+	 * Sets the propensity of the given reaction in the sum tree and updates
+	 * the sums above it.  Sums are recomputed from the children rather than
+	 * adjusted, so round-off does not build up.
+	 *
+	 * @param index
+	 * 			the index of the reaction
+	 * @param propensity
+	 * 			the new propensity
+	 */
+	private void updateTree(int index, double propensity) {
+		int pos = leaves + index;
+		tree[pos] = propensity;
+		for (pos /= 2; pos >= 1; pos /= 2) {
+			tree[pos] = tree[2 * pos] + tree[2 * pos + 1];
+		}
+	}
+
+	@Override
+	public int[] getSpecies() {
+		return species;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public int getFired(int reaction) {
+		return fired[reaction];
+	}
+}
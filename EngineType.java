@@ -0,0 +1,111 @@
+/**
+ * Enumerated type to represent the available simulation engines.
+ *
+ * Used for picking the algorithm from the command line and for creating
+ * engines for each worker.  The engines are as follows:
+ * 1. Next-reaction method with an indexed heap ("nrm")
+ * 2. Direct method with a linear search ("direct")
+ * 3. Direct method with a binary sum tree search ("direct-tree")
+ * 4. Approximate tau-leaping for large populations ("tau")
+ * 5. Partial-propensity direct method with a linear search ("pdm")
+ * 6. Partial-propensity direct method with a binary sum tree search
+ *    ("pdm-tree")
+ * 7. Composition-rejection with power-of-two propensity groups ("cr")
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public enum EngineType {
+	NEXT_REACTION("nrm"), DIRECT("direct"), DIRECT_TREE("direct-tree"), TAU_LEAP("tau"),
+	PARTIAL("pdm"), PARTIAL_TREE("pdm-tree"), COMPOSITION_REJECTION("cr");
+
+	/**
+	 * The name of the engine on the command line.
+	 */
+	private String name;
+
+	/**
+	 * Creates a new EngineType.
+	 *
+	 * @param engineName
+	 * 			the name of the engine on the command line
+	 */
+	private EngineType(String engineName) {
+		name = engineName;
+	}
+
+	/**
+	 * Returns the name of the engine on the command line.
+	 *
+	 * @return
+	 * 			the engine name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Creates a new engine of this type for the given Model.
+	 *
+	 * @param model
+	 * 			the Model to simulate
+	 * @return
+	 * 			the new engine
+	 */
+	public SimulationEngine create(Model model) {
+		return create(model, false);
+	}
+
+	/**
+	 * Creates a new engine of this type for the given Model, with or without
+	 * coupled streams.  With coupled streams, the next-reaction method draws
+	 * from a stream for each reaction, so runs of the same number at nearby
+	 * parameters stay in step, see NextReactionEngine.  The other engines
+	 * draw for the whole network at each step and have no such streams, so
+	 * for them it makes no difference.
+	 *
+	 * @param model
+	 * 			the Model to simulate
+	 * @param coupled
+	 * 			true for coupled streams
+	 * @return
+	 * 			the new engine
+	 */
+	public SimulationEngine create(Model model, boolean coupled) {
+		switch (this) {
+		case DIRECT:
+			return new DirectMethodEngine(model, false);
+		case DIRECT_TREE:
+			return new DirectMethodEngine(model, true);
+		case TAU_LEAP:
+			return new TauLeapingEngine(model);
+		case PARTIAL:
+			return new PartialPropensityEngine(model, false);
+		case PARTIAL_TREE:
+			return new PartialPropensityEngine(model, true);
+		case COMPOSITION_REJECTION:
+			return new CompositionRejectionEngine(model);
+		default:
+			return new NextReactionEngine(model, coupled);
+		}
+	}
+
+	/**
+	 * Returns the EngineType with the given command line name.
+	 *
+	 * @param engineName
+	 * 			the name to look up
+	 * @return
+	 * 			the matching EngineType
+	 * @throws IllegalArgumentException
+	 * 			if there is no engine with that name
+	 */
+	public static EngineType fromName(String engineName) {
+		for (EngineType type : values()) {
+			if (type.name.equals(engineName)) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unknown engine " + engineName);
+	}
+}
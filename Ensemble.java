@@ -0,0 +1,372 @@
+/**
+ * This class runs many independent runs of a Model, either on the calling
+ * thread or spread over several worker threads.  Each worker has its own
+ * SimulationEngine, so the only shared state is the Model itself.
+ *
+ * Results are always handed to the RunListener in run order, on the thread
+ * that called run(), no matter which worker finished first.  Workers may get
+ * at most a window of runs ahead of the listener, so memory use does not grow
+ * with the number of runs.  The listener may also stop the runs early, as
+ * soon as it has seen enough.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Ensemble {
+
+	/**
+	 * Interface for receiving the tracked species at the end of each run.
+	 */
+	public interface RunListener {
+
+		/**
+		 * Called once for each run, in run order.
+		 *
+		 * @param run
+		 * 			the run number, starting at one
+		 * @param tracked
+		 * 			the final tracked species values, in the order of the
+		 * 			Model's displays.  Only valid during the call.
+		 * @param samples
+		 * 			the run's samples on the time grid, as in
+		 * 			GridSampler.getSamples(), or null if not sampling.
+		 * 			Only valid during the call.
+		 */
+		public void runFinished(int run, int[] tracked, int[] samples);
+	}
+
+	/**
+	 * Number of result slots per worker thread.  Bounds how far ahead of the
+	 * listener the workers can get.
+	 */
+	private static final int WINDOW_PER_THREAD = 16;
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the type of engine each worker creates.
+	 */
+	private EngineType engineType;
+
+	/**
+	 * This is the base seed for the random numbers.  Run k always uses the
+	 * substream for (seed, k), so results do not depend on the threads.
+	 */
+	private long seed;
+
+	/**
+	 * This is the number of worker threads to use.  One means everything is
+	 * run on the calling thread.
+	 */
+	private int threads;
+
+	/**
+	 * This is the time between sampled grid points, or zero for no sampling.
+	 */
+	private double sampleInterval = 0;
+
+	/**
+	 * Whether or not the engines draw from a stream for each reaction.
+	 */
+	private boolean coupled = false;
+
+	/**
+	 * These are the result slots shared between the workers and the listener
+	 * thread.  Run r is stored at slot r % results.length.  All fields below
+	 * are guarded by the Ensemble lock.
+	 */
+	private int[][] results;
+
+	/**
+	 * These are the grid samples for each result slot, or null if not
+	 * sampling.
+	 */
+	private int[][] sampled;
+
+	/**
+	 * Whether or not each result slot has been filled for its current run.
+	 */
+	private boolean[] ready;
+
+	/**
+	 * The next run number to be handed to a worker.
+	 */
+	private int nextRun;
+
+	/**
+	 * The next run number to be handed to the listener.
+	 */
+	private int consumed;
+
+	/**
+	 * One past the last run number.
+	 */
+	private int endRun;
+
+	/**
+	 * The first error thrown by a worker, if any.
+	 */
+	private Throwable failure;
+
+	/**
+	 * Whether or not the listener has asked to stop early.
+	 */
+	private boolean stopped;
+
+	/**
+	 * Creates a new Ensemble for the given Model.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 * @param type
+	 * 			the type of engine to simulate with
+	 * @param baseSeed
+	 * 			the base seed for the random numbers
+	 * @param numThreads
+	 * 			the number of worker threads to use
+	 */
+	public Ensemble(Model m, EngineType type, long baseSeed, int numThreads) {
+		model = m;
+		engineType = type;
+		seed = baseSeed;
+		threads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Turns on sampling of the tracked species on a fixed time grid for
+	 * every run, see GridSampler.
+	 *
+	 * @param dt
+	 * 			the time between grid points, or zero for no sampling
+	 */
+	public void setSampleInterval(double dt) {
+		sampleInterval = dt;
+	}
+
+	/**
+	 * Turns on coupled streams for every run, see EngineType.create().
+	 *
+	 * @param coupledStreams
+	 * 			true for each reaction to draw from its own stream
+	 */
+	public void setCoupled(boolean coupledStreams) {
+		coupled = coupledStreams;
+	}
+
+	/**
+	 * Stops the runs early.  Called by the listener; no more runs are handed
+	 * to it after the current one, and run() returns.  Which run it stops at
+	 * does not depend on the number of threads.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Sets a new GridSampler to listen to the given engine, if sampling.
+	 *
+	 * @param engine
+	 * 			the engine to sample
+	 * @return
+	 * 			the sampler for the engine, or null if not sampling
+	 */
+	private GridSampler attachSampler(SimulationEngine engine) {
+		if (sampleInterval <= 0) {
+			return null;
+		}
+		GridSampler sampler = new GridSampler(model, sampleInterval);
+		engine.setListener(sampler);
+		return sampler;
+	}
+
+	/**
+	 * Does one run on the given engine.
+	 *
+	 * @param engine
+	 * 			the engine to run
+	 * @param sampler
+	 * 			the engine's sampler, or null if not sampling
+	 * @param run
+	 * 			the run number
+	 */
+	private void simulate(SimulationEngine engine, GridSampler sampler, int run) {
+		long start = Metrics.ENABLED ? System.nanoTime() : 0;
+		engine.reset(seed, run);
+		if (sampler != null) {
+			sampler.reset(engine.getSpecies());
+		}
+		engine.run();
+		if (sampler != null) {
+			sampler.finish();
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().runFinished(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Simulates the given number of runs, passing each run's tracked species
+	 * to the listener in order.
+	 *
+	 * @param numRuns
+	 * 			the number of runs to simulate
+	 * @param listener
+	 * 			the listener for run results
+	 */
+	public void run(int numRuns, RunListener listener) {
+		run(1, numRuns, listener);
+	}
+
+	/**
+	 * Simulates runs first to last, passing each run's tracked species to
+	 * the listener in order.  Run k gives the same results here as in any
+	 * other range, so a job can be split up or picked up part way.
+	 *
+	 * @param first
+	 * 			the first run number, starting at one
+	 * @param last
+	 * 			the last run number
+	 * @param listener
+	 * 			the listener for run results
+	 */
+	public void run(int first, int last, RunListener listener) {
+		int[] displays = model.getDisplays();
+		synchronized (this) {
+			stopped = false;
+		}
+
+		// Sequential path, no threads needed
+		if (threads == 1 || first >= last) {
+			SimulationEngine engine = engineType.create(model, coupled);
+			GridSampler sampler = attachSampler(engine);
+			int[] tracked = new int[displays.length];
+			for (int i = first; i <= last && !stopped; i++) {
+				simulate(engine, sampler, i);
+				int[] species = engine.getSpecies();
+				for (int j = 0; j < displays.length; j++) {
+					tracked[j] = species[displays[j]];
+				}
+				listener.runFinished(i, tracked, sampler == null ? null : sampler.getSamples());
+			}
+			return;
+		}
+
+		// Set-up shared result slots
+		int window = threads * WINDOW_PER_THREAD;
+		results = new int[window][displays.length];
+		sampled = null;
+		if (sampleInterval > 0) {
+			int size = GridSampler.countPoints(model.getSimulationTime(), sampleInterval)
+					* displays.length;
+			sampled = new int[window][size];
+		}
+		ready = new boolean[window];
+		nextRun = first;
+		consumed = first;
+		endRun = last + 1;
+		failure = null;
+
+		// Start the workers
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "chem-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		// Hand results to the listener in order
+		try {
+			for (int i = first; i <= last; i++) {
+				int slot = i % window;
+				synchronized (this) {
+					while (!ready[slot] && failure == null) {
+						wait();
+					}
+					if (failure != null) {
+						throw new RuntimeException("Simulation worker failed", failure);
+					}
+				}
+				listener.runFinished(i, results[slot], sampled == null ? null : sampled[slot]);
+				synchronized (this) {
+					ready[slot] = false;
+					consumed++;
+					notifyAll();
+					if (stopped) {
+						break;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for runs", e);
+		} finally {
+			synchronized (this) {
+				if (failure == null && consumed < endRun && !stopped) {
+					failure = new IllegalStateException("Ensemble stopped");
+				}
+				nextRun = endRun;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Worker thread loop.  Claims runs one at a time, simulates them with
+	 * the worker's own engine, and fills in the result slots.
+	 */
+	private void work() {
+		int[] displays = model.getDisplays();
+		try {
+			SimulationEngine engine = engineType.create(model, coupled);
+			GridSampler sampler = attachSampler(engine);
+			while (true) {
+				int run;
+				synchronized (this) {
+					while (nextRun < endRun && nextRun >= consumed + results.length
+							&& failure == null) {
+						wait();
+					}
+					if (nextRun >= endRun || failure != null) {
+						return;
+					}
+					run = nextRun++;
+				}
+
+				simulate(engine, sampler, run);
+
+				// The slot can not be reused until this run is consumed
+				int slot = run % results.length;
+				int[] species = engine.getSpecies();
+				int[] tracked = results[slot];
+				for (int j = 0; j < displays.length; j++) {
+					tracked[j] = species[displays[j]];
+				}
+				if (sampler != null) {
+					int[] samples = sampler.getSamples();
+					System.arraycopy(samples, 0, sampled[slot], 0, samples.length);
+				}
+
+				synchronized (this) {
+					ready[slot] = true;
+					notifyAll();
+				}
+			}
+		} catch (Throwable t) {
+			synchronized (this) {
+				if (failure == null) {
+					failure = t;
+				}
+				notifyAll();
+			}
+		}
+	}
+}
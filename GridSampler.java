@@ -0,0 +1,221 @@
+import java.io.*;
+
+/**
+ * This class samples the tracked species of a run on a fixed time grid,
+ * instead of at every event.  Grid point k is at time k * interval, from zero
+ * up to the simulation time, and holds the tracked species as they were after
+ * every event at or before that time.  The output of a run is then bounded by
+ * the grid size no matter how many events fire, and the samples of different
+ * runs line up point for point.
+ *
+ * A GridSampler is set as the SpeciesListener of an engine.  Call reset()
+ * with the starting species before each run, and finish() after it to fill
+ * in the grid points past the last event.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class GridSampler implements SpeciesListener {
+
+	/**
+	 * The indices of the tracked species, in display order.
+	 */
+	private int[] displays;
+
+	/**
+	 * The time between grid points.
+	 */
+	private double interval;
+
+	/**
+	 * The number of grid points.
+	 */
+	private int numPoints;
+
+	/**
+	 * The samples, one row of tracked species values per grid point, with
+	 * the rows stored one after another.
+	 */
+	private int[] samples;
+
+	/**
+	 * The tracked species values after the last event seen.
+	 */
+	private int[] last;
+
+	/**
+	 * The next grid point to fill in.
+	 */
+	private int next = 0;
+
+	/**
+	 * Creates a new GridSampler for the given Model.
+	 *
+	 * @param model
+	 * 			the Model that is being simulated
+	 * @param dt
+	 * 			the time between grid points, greater than zero
+	 */
+	public GridSampler(Model model, double dt) {
+		displays = model.getDisplays();
+		interval = dt;
+		numPoints = countPoints(model.getSimulationTime(), dt);
+		samples = new int[numPoints * displays.length];
+		last = new int[displays.length];
+	}
+
+	/**
+	 * Returns the number of grid points from zero to the given end time.
+	 * A point within round-off of the end time still counts.
+	 *
+	 * @param end
+	 * 			the simulation time
+	 * @param dt
+	 * 			the time between grid points
+	 * @return
+	 * 			the number of grid points
+	 */
+	public static int countPoints(double end, double dt) {
+		return (int) Math.floor(end / dt + 1e-9) + 1;
+	}
+
+	/**
+	 * Starts a new run from the given species populations.
+	 *
+	 * @param species
+	 * 			the species populations at time zero
+	 */
+	public void reset(int[] species) {
+		next = 0;
+		for (int i = 0; i < displays.length; i++) {
+			last[i] = species[displays[i]];
+		}
+	}
+
+	/**
+	 * Fills in every grid point before the given time with the values from
+	 * the last event, then takes the new values.
+	 */
+	@Override
+	public void speciesChanged(double time, int[] species) {
+		fill(time);
+		for (int i = 0; i < displays.length; i++) {
+			last[i] = species[displays[i]];
+		}
+	}
+
+	/**
+	 * Fills in every grid point left after the last event.
+	 */
+	public void finish() {
+		fill(Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Copies the values from the last event into every remaining grid point
+	 * before the given time.
+	 *
+	 * @param time
+	 * 			the time of the next event
+	 */
+	private void fill(double time) {
+		while (next < numPoints && gridTime(next, interval) < time) {
+			System.arraycopy(last, 0, samples, next * displays.length, displays.length);
+			next++;
+		}
+	}
+
+	/**
+	 * Writes the state of the current run, the grid points filled in so far
+	 * and the values from the last event, so sampling can go on later.
+	 *
+	 * @param out
+	 * 			the output to write to
+	 * @throws IOException
+	 * 			if the state could not be written
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeInt(next);
+		for (int i = 0; i < last.length; i++) {
+			out.writeInt(last[i]);
+		}
+		for (int k = 0; k < next * displays.length; k++) {
+			out.writeInt(samples[k]);
+		}
+	}
+
+	/**
+	 * Reads back a state written by save() from a GridSampler for the same
+	 * Model and interval, in place of reset().
+	 *
+	 * @param in
+	 * 			the input to read from
+	 * @throws IOException
+	 * 			if the state could not be read
+	 */
+	public void restore(DataInput in) throws IOException {
+		next = in.readInt();
+		if (next < 0 || next > numPoints) {
+			throw new IOException("Bad grid point " + next);
+		}
+		for (int i = 0; i < last.length; i++) {
+			last[i] = in.readInt();
+		}
+		for (int k = 0; k < next * displays.length; k++) {
+			samples[k] = in.readInt();
+		}
+	}
+
+	/**
+	 * Returns the number of grid points.
+	 *
+	 * @return
+	 * 			the number of grid points
+	 */
+	public int getNumPoints() {
+		return numPoints;
+	}
+
+	/**
+	 * Returns the time of the given grid point.
+	 *
+	 * @param point
+	 * 			the grid point, starting at zero
+	 * @return
+	 * 			the time of the grid point
+	 */
+	public double getTime(int point) {
+		return gridTime(point, interval);
+	}
+
+	/**
+	 * Returns the time of the given grid point.  When the grid has a whole
+	 * number of points per time unit, as with 0.1 or 0.01, the time is found
+	 * by division so it prints as 0.3 rather than 0.30000000000000004.
+	 *
+	 * @param point
+	 * 			the grid point, starting at zero
+	 * @param dt
+	 * 			the time between grid points
+	 * @return
+	 * 			the time of the grid point
+	 */
+	public static double gridTime(int point, double dt) {
+		double perUnit = Math.rint(1 / dt);
+		if (perUnit >= 1 && 1 / perUnit == dt) {
+			return point / perUnit;
+		}
+		return point * dt;
+	}
+
+	/**
+	 * Returns the samples, one row of tracked species values (in display
+	 * order) per grid point.  Only complete after finish().
+	 *
+	 * @return
+	 * 			the samples
+	 */
+	public int[] getSamples() {
+		return samples;
+	}
+}
@@ -0,0 +1,248 @@
+import java.util.Arrays;
+
+/**
+ * This class implements an array-based heap of reaction indices ordered by
+ * their next-times.  It works just like MinHeap<E>, but holds plain ints with
+ * their keys in a separate array, and keeps the heap position of every index.
+ * Changing the key of an index already in the heap is a single O(log n) sift
+ * up or down in place, with no search, no removal and re-insertion, and no
+ * objects at all.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class IndexedMinHeap {
+
+	/**
+	 * This array is the heap data structure, which keeps track of all
+	 * the indices stored in the heap.  The root is at position 0, with
+	 * children being at 1 and 2.  In general for a node at position i,
+	 * left child is at 2*i + 1 and right child is at 2*i + 2.
+	 */
+	private int[] heap;
+
+	/**
+	 * This array holds the key (next-time) of each index.
+	 */
+	private double[] keys;
+
+	/**
+	 * This array holds the position of each index in the heap array, or
+	 * -1 if the index is not in the heap.
+	 */
+	private int[] position;
+
+	/**
+	 * This integer represents the number of elements currently stored in
+	 * the heap.  Will change dynamically based on insertions.
+	 */
+	private int n;
+
+	/**
+	 * Creates a new, empty IndexedMinHeap for indices 0 to capacity - 1.
+	 *
+	 * @param capacity
+	 * 			the number of different indices
+	 */
+	public IndexedMinHeap(int capacity) {
+		heap = new int[capacity];
+		keys = new double[capacity];
+		position = new int[capacity];
+		Arrays.fill(position, -1);
+	}
+
+	/**
+	 * Removes every index from the heap.
+	 */
+	public void clear() {
+		for (int i = 0; i < n; i++) {
+			position[heap[i]] = -1;
+		}
+		n = 0;
+	}
+
+	/**
+	 * Returns the size of the heap.
+	 *
+	 * @return
+	 * 			the number of elements in the heap
+	 */
+	public int heapsize() {
+		return n;
+	}
+
+	/**
+	 * Determines if the given position points to a leaf node.
+	 *
+	 * @param pos
+	 * 			the position to check
+	 * @return
+	 * 			true if a "leaf", false otherwise
+	 */
+	private boolean isLeaf(int pos) {
+		return (pos >= n/2) && (pos < n);
+	}
+
+	/**
+	 * Moves the index at the given position down until its key is less
+	 * than both of its children's.
+	 *
+	 * @param pos
+	 * 			the position of the index to sift down
+	 */
+	private void siftdown(int pos) {
+		assert (pos >= 0) && (pos < n): "Illegal heap position";
+		int id = heap[pos];
+		double key = keys[id];
+		while (!isLeaf(pos)) {
+			int j = 2*pos + 1;
+			if ((j<(n-1)) && (keys[heap[j]] >= keys[heap[j+1]]))
+				j++; // index of child w/ lesser value
+			if (key < keys[heap[j]])
+				break;
+			heap[pos] = heap[j];
+			position[heap[pos]] = pos;
+			pos = j;  // Move down
+		}
+		heap[pos] = id;
+		position[id] = pos;
+	}
+
+	/**
+	 * Builds the heap, sorting it into its order from the bottom up.
+	 */
+	private void buildheap() {
+		for (int i = n/2 - 1; i >= 0; i--)
+			siftdown(i);
+	}
+
+	/**
+	 * Moves the index at the given position up until its parent's key is
+	 * less than its own.
+	 *
+	 * @param pos
+	 * 			the position of the index to sift up
+	 * @return
+	 * 			the final position of the index
+	 */
+	private int siftup(int pos) {
+		int id = heap[pos];
+		double key = keys[id];
+		while (pos != 0) {
+			int parent = (pos-1)/2;
+			if (key >= keys[heap[parent]])
+				break;
+			heap[pos] = heap[parent];
+			position[heap[pos]] = pos;
+			pos = parent;
+		}
+		heap[pos] = id;
+		position[id] = pos;
+		return pos;
+	}
+
+	/**
+	 * Changes the key of an index already in the heap and restores heap
+	 * order.  The index is sifted up if its key became smaller than its
+	 * parent's, and sifted down otherwise.
+	 *
+	 * @param id
+	 * 			the index whose key has changed
+	 * @param key
+	 * 			the new key
+	 */
+	public void updateKey(int id, double key) {
+		int pos = position[id];
+		assert (pos >= 0) && (pos < n) : "Index not in heap";
+		keys[id] = key;
+		if (siftup(pos) == pos && !isLeaf(pos)) {
+			siftdown(pos);
+		}
+	}
+
+	/**
+	 * Returns the index at the top of the heap.
+	 *
+	 * @return
+	 * 			the index with the smallest key
+	 */
+	public int getMin() {
+		return heap[0];
+	}
+
+	/**
+	 * Returns the index at the given position of the heap array.  Inserting
+	 * the indices into an empty heap in array order, with the same keys,
+	 * gives back exactly the same heap.
+	 *
+	 * @param pos
+	 * 			the position, from 0 to heapsize() - 1
+	 * @return
+	 * 			the index at that position
+	 */
+	public int get(int pos) {
+		return heap[pos];
+	}
+
+	/**
+	 * Returns the current key of the given index.
+	 *
+	 * @param id
+	 * 			the index to look up
+	 * @return
+	 * 			the index's key
+	 */
+	public double getKey(int id) {
+		return keys[id];
+	}
+
+	/**
+	 * Sets the key of an index that is not in the heap yet, ahead of fill().
+	 *
+	 * @param id
+	 * 			the index, not in the heap
+	 * @param key
+	 * 			the key of the index
+	 */
+	public void setKey(int id, double key) {
+		assert position[id] == -1 : "Index already in heap";
+		keys[id] = key;
+	}
+
+	/**
+	 * Fills an empty heap with every index from 0 to size - 1, with the keys
+	 * given to setKey(), and puts them in heap order from the bottom up.
+	 * This takes O(n) time, where n inserts would take O(n log n), and is
+	 * how the heap is refilled at the start of every run.
+	 *
+	 * @param size
+	 * 			the number of indices, at most the capacity
+	 */
+	public void fill(int size) {
+		assert n == 0 : "Heap is not empty";
+		assert size <= heap.length : "Heap is full";
+		n = size;
+		for (int i = 0; i < size; i++) {
+			heap[i] = i;
+			position[i] = i;
+		}
+		buildheap();
+	}
+
+	/**
+	 * Inserts another index into the heap and shifts it to its proper position.
+	 *
+	 * @param id
+	 * 			the index to insert, not already in the heap
+	 * @param key
+	 * 			the key of the index
+	 */
+	public void insert(int id, double key) {
+		assert n < heap.length : "Heap is full";
+		assert position[id] == -1 : "Index already in heap";
+		keys[id] = key;
+		heap[n] = id;
+		n++;
+		siftup(n - 1);
+	}
+}
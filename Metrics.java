@@ -0,0 +1,326 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * This class collects counters from the simulation loop: events fired, heap
+ * updates, propensity recalculations, zero-propensity parks, and random
+ * draws, along with a histogram of the wall time of each run.  They are shown
+ * through JMX (see MetricsMXBean) and in an optional periodic report on
+ * stderr and in a CSV file.
+ *
+ * Metrics are off unless the system property "chem.metrics" is true, which
+ * Chem sets for --metrics before any engine is loaded.  ENABLED is a static
+ * final, so the JIT treats it as a constant and every counter in the engines'
+ * loops is compiled out when metrics are off.  When they are on, the engines
+ * count in local variables and hand the totals over once per advance(), so
+ * the shared counters are not touched per event.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Metrics implements MetricsMXBean {
+
+	/**
+	 * Whether or not metrics are collected, fixed when the class is loaded.
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("chem.metrics");
+
+	/**
+	 * The name the metrics are registered under with JMX.
+	 */
+	public static final String OBJECT_NAME = "chem:type=Metrics";
+
+	/**
+	 * Run time histogram buckets per power of two, as a power of two.
+	 * Eight buckets per power of two keep every bucket within 12.5%.
+	 */
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * The one instance, shared by every engine.
+	 */
+	private static final Metrics INSTANCE = new Metrics();
+
+	/**
+	 * The counters.
+	 */
+	private LongAdder runs = new LongAdder();
+	private LongAdder events = new LongAdder();
+	private LongAdder heapUpdates = new LongAdder();
+	private LongAdder propensityUpdates = new LongAdder();
+	private LongAdder parks = new LongAdder();
+	private LongAdder randomDraws = new LongAdder();
+
+	/**
+	 * Histogram of run wall times in microseconds, with log-linear buckets,
+	 * and the longest run time.
+	 */
+	private AtomicLongArray runTimes = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+	private AtomicLong maxRunTime = new AtomicLong();
+
+	/**
+	 * The time the metrics were started, from System.nanoTime().
+	 */
+	private long start = System.nanoTime();
+
+	/**
+	 * Creates the Metrics.  Use get() for the shared instance.
+	 */
+	private Metrics() {
+	}
+
+	/**
+	 * Returns the shared Metrics.
+	 *
+	 * @return
+	 * 			the Metrics
+	 */
+	public static Metrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Adds the counts from a piece of a run.
+	 *
+	 * @param numEvents
+	 * 			the number of events fired
+	 * @param numHeapUpdates
+	 * 			the number of heap or sum tree updates
+	 * @param numPropensities
+	 * 			the number of propensities recalculated
+	 * @param numParks
+	 * 			the number of reactions parked for a zero propensity
+	 * @param numDraws
+	 * 			the number of random numbers drawn
+	 */
+	public void record(long numEvents, long numHeapUpdates, long numPropensities, long numParks,
+			long numDraws) {
+		events.add(numEvents);
+		heapUpdates.add(numHeapUpdates);
+		propensityUpdates.add(numPropensities);
+		parks.add(numParks);
+		randomDraws.add(numDraws);
+	}
+
+	/**
+	 * Adds a finished run to the run count and the run time histogram.
+	 *
+	 * @param nanos
+	 * 			the wall time of the run in nanoseconds
+	 */
+	public void runFinished(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		runs.increment();
+		runTimes.incrementAndGet(bucketOf(micros));
+		long max = maxRunTime.get();
+		while (micros > max && !maxRunTime.compareAndSet(max, micros)) {
+			max = maxRunTime.get();
+		}
+	}
+
+	/**
+	 * Returns the histogram bucket for the given time.  Times below
+	 * SUB_BUCKETS have a bucket each; above that, each power of two is split
+	 * into SUB_BUCKETS even buckets.
+	 *
+	 * @param micros
+	 * 			the time in microseconds
+	 * @return
+	 * 			the bucket index
+	 */
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the smallest time that falls in the given bucket.
+	 *
+	 * @param bucket
+	 * 			the bucket index
+	 * @return
+	 * 			the time in microseconds
+	 */
+	private static long bucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Returns the given percentile of the run times, to within a bucket.
+	 *
+	 * @param percent
+	 * 			the percentile, from 0 to 100
+	 * @return
+	 * 			the run time in milliseconds, or zero if there are no runs
+	 */
+	public double getRunMillisPercentile(double percent) {
+		long total = 0;
+		for (int i = 0; i < runTimes.length(); i++) {
+			total += runTimes.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percent / 100);
+		long seen = 0;
+		for (int i = 0; i < runTimes.length(); i++) {
+			seen += runTimes.get(i);
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(bucketStart(i), maxRunTime.get()) / 1000.0;
+			}
+		}
+		return getRunMillisMax();
+	}
+
+	@Override
+	public long getRuns() {
+		return runs.sum();
+	}
+
+	@Override
+	public long getEvents() {
+		return events.sum();
+	}
+
+	@Override
+	public double getEventsPerSecond() {
+		return events.sum() / Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+	}
+
+	@Override
+	public long getHeapUpdates() {
+		return heapUpdates.sum();
+	}
+
+	@Override
+	public long getPropensityUpdates() {
+		return propensityUpdates.sum();
+	}
+
+	@Override
+	public long getZeroPropensityParks() {
+		return parks.sum();
+	}
+
+	@Override
+	public long getRandomDraws() {
+		return randomDraws.sum();
+	}
+
+	@Override
+	public double getRunMillisP50() {
+		return getRunMillisPercentile(50);
+	}
+
+	@Override
+	public double getRunMillisP90() {
+		return getRunMillisPercentile(90);
+	}
+
+	@Override
+	public double getRunMillisP99() {
+		return getRunMillisPercentile(99);
+	}
+
+	@Override
+	public double getRunMillisMax() {
+		return maxRunTime.get() / 1000.0;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server.
+	 */
+	public static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+					new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			System.err.println("Could not register metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that reports the metrics every so often, on
+	 * stderr and as rows of a CSV file.  The rate of events is over the last
+	 * interval.
+	 *
+	 * @param seconds
+	 * 			the time between reports, greater than zero
+	 * @param csv
+	 * 			the CSV file to write to, or null for none
+	 */
+	public static void startReports(final double seconds, final PrintStream csv) {
+		Thread reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long last = INSTANCE.start;
+				long lastEvents = 0;
+				try {
+					while (true) {
+						Thread.sleep((long) (seconds * 1000));
+						long now = System.nanoTime();
+						long total = INSTANCE.getEvents();
+						INSTANCE.report((total - lastEvents) / ((now - last) / 1e9), csv);
+						last = now;
+						lastEvents = total;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "chem-metrics");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Writes the header row of a CSV report.
+	 *
+	 * @param csv
+	 * 			the CSV file to write to
+	 */
+	public static void csvHeader(PrintStream csv) {
+		csv.println("seconds,runs,events,events_per_second,heap_updates,propensity_updates,"
+				+ "zero_propensity_parks,random_draws,run_ms_p50,run_ms_p90,run_ms_p99,"
+				+ "run_ms_max");
+		csv.flush();
+	}
+
+	/**
+	 * Reports the metrics on stderr and as a row of the CSV file.
+	 *
+	 * @param rate
+	 * 			the events per second to report
+	 * @param csv
+	 * 			the CSV file to write to, or null for none
+	 */
+	public synchronized void report(double rate, PrintStream csv) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println(String.format("Metrics at %.1f s: %d runs, %d events (%.0f/s), "
+				+ "%d heap updates, %d propensities, %d zero parks, %d random draws, "
+				+ "run ms p50 %.3f p90 %.3f p99 %.3f max %.3f", seconds, getRuns(),
+				getEvents(), rate, getHeapUpdates(), getPropensityUpdates(),
+				getZeroPropensityParks(), getRandomDraws(), getRunMillisP50(),
+				getRunMillisP90(), getRunMillisP99(), getRunMillisMax()));
+		if (csv != null) {
+			csv.println(seconds + "," + getRuns() + "," + getEvents() + "," + rate + ","
+					+ getHeapUpdates() + "," + getPropensityUpdates() + ","
+					+ getZeroPropensityParks() + "," + getRandomDraws() + ","
+					+ getRunMillisP50() + "," + getRunMillisP90() + "," + getRunMillisP99()
+					+ "," + getRunMillisMax());
+			csv.flush();
+		}
+	}
+}
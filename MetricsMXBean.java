@@ -0,0 +1,99 @@
+/**
+ * Management interface for the simulation Metrics, so a running job can be
+ * watched with JConsole, VisualVM, or any other JMX client under the name
+ * "chem:type=Metrics".
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * Returns the number of runs finished.
+	 *
+	 * @return
+	 * 			the number of runs
+	 */
+	public long getRuns();
+
+	/**
+	 * Returns the number of reaction events fired, over all runs.
+	 *
+	 * @return
+	 * 			the number of events
+	 */
+	public long getEvents();
+
+	/**
+	 * Returns the number of events fired per second since metrics started.
+	 *
+	 * @return
+	 * 			the event rate
+	 */
+	public double getEventsPerSecond();
+
+	/**
+	 * Returns the number of next-time heap or sum tree updates.
+	 *
+	 * @return
+	 * 			the number of updates
+	 */
+	public long getHeapUpdates();
+
+	/**
+	 * Returns the number of propensities recalculated.
+	 *
+	 * @return
+	 * 			the number of propensity calculations
+	 */
+	public long getPropensityUpdates();
+
+	/**
+	 * Returns the number of times a reaction was parked past the end of the
+	 * run because its propensity dropped to zero.
+	 *
+	 * @return
+	 * 			the number of parks
+	 */
+	public long getZeroPropensityParks();
+
+	/**
+	 * Returns the number of 64-bit random numbers drawn.
+	 *
+	 * @return
+	 * 			the number of random draws
+	 */
+	public long getRandomDraws();
+
+	/**
+	 * Returns the median wall time of a run.
+	 *
+	 * @return
+	 * 			the median run time in milliseconds
+	 */
+	public double getRunMillisP50();
+
+	/**
+	 * Returns the 90th percentile wall time of a run.
+	 *
+	 * @return
+	 * 			the 90th percentile run time in milliseconds
+	 */
+	public double getRunMillisP90();
+
+	/**
+	 * Returns the 99th percentile wall time of a run.
+	 *
+	 * @return
+	 * 			the 99th percentile run time in milliseconds
+	 */
+	public double getRunMillisP99();
+
+	/**
+	 * Returns the longest wall time of a run.
+	 *
+	 * @return
+	 * 			the longest run time in milliseconds
+	 */
+	public double getRunMillisMax();
+}
@@ -196,7 +196,7 @@ public class MinHeap<E extends Comparable<? super E>> {
 	 * 			index position of the element, -1 if not found
 	 */
 	private int find(E val) {
-		for (int i = 0; i < heap.length; i++) {
+		for (int i = 0; i < n; i++) {
 			if (val.equals(heap[i]))
 				return i;
 		}
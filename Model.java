@@ -0,0 +1,506 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * This Model class holds a reaction network as it is read in from the input
+ * file.  It keeps the initial species populations, the tracked species, the
+ * simulation time, the Reactions in input file order, and the CompiledNetwork
+ * made from them, which also holds the dependency graph.
+ *
+ * A Model is never changed once it is loaded, so it can be shared between
+ * any number of simulation engines (and threads).  Each engine keeps its own
+ * arrays for everything that changes during a run.  Changed copies for other
+ * parameter values are made with override(), and share everything that does
+ * not change.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Model {
+
+	/**
+	 * This is used to keep track of the minimum index of all species
+	 * for offseting.  For example, the species may start labeling at
+	 * S0, S1, or even S100.
+	 */
+	private int minIndex = Integer.MAX_VALUE;
+
+	/**
+	 * This represents the time for the simulation duration, which is
+	 * usually just 10.  Used for determining when any run is over.
+	 */
+	private int simulationTime = 0;
+
+	/**
+	 * This is an array of length numSpecies that is used to keep track of
+	 * the initial species values.  Species values are reset to these starting
+	 * values on each run.
+	 */
+	private int[] initialSpecies = null;
+
+	/**
+	 * This is an array of length numDisplays that is used to keep track of
+	 * which species the user wants tracked and displayed, in the order of
+	 * the user's input file.  Each entry is the index of a species that is
+	 * to be displayed.
+	 */
+	private int[] displays = null;
+
+	/**
+	 * This is an array of length numSpecies that keeps the same information
+	 * as displays, but makes checking for whether or not a species is being
+	 * tracked O(1).  Each entry is a boolean value for whether or not the
+	 * species with a given index is being tracked.
+	 */
+	private boolean[] tracks = null;
+
+	/**
+	 * This is an array of length numReactions that keeps track of all the
+	 * reactions, in the order that they appear in the input file.  These are
+	 * compiled into the CompiledNetwork that the engines run on.
+	 */
+	private Reaction[] reactions = null;
+
+	/**
+	 * This is the flat, array-based form of the reactions that the engines
+	 * actually run on.  Built once, after the reactions are read in.
+	 */
+	private CompiledNetwork network = null;
+
+	/**
+	 * Private constructor, since Models are created through load().
+	 */
+	private Model() {
+	}
+
+	/**
+	 * Reads inputs from the given file to create a new Model.  The file is
+	 * read in a single pass by a ModelParser, and species are given by their
+	 * numbers in the file until the minimum index is known, then offset.
+	 * Badly formatted files result in a runtime exception.
+	 *
+	 * @param fileName
+	 *            the file name for reading
+	 * @return
+	 * 			the loaded Model
+	 * @throws IOException
+	 * 			if the file could not be opened or read
+	 */
+	public static Model load(String fileName) throws IOException {
+		return parse(ModelParser.open(fileName));
+	}
+
+	/**
+	 * Reads a Model from the given parser.  See load().
+	 *
+	 * @param parser
+	 * 			the parser over the input
+	 * @return
+	 * 			the parsed Model
+	 */
+	public static Model parse(ModelParser parser) {
+
+		Model model = new Model();
+
+		// Use the first four numbers as initial values
+		int numSpecies = parser.nextInt();
+		int numReactions = parser.nextInt();
+		int numDisplays = parser.nextInt();
+		model.simulationTime = parser.nextInt();
+		parser.nextLine();
+		if (numSpecies < 0 || numReactions < 0 || numDisplays < 0) {
+			throw parser.error("negative count");
+		}
+
+		// Allocate arrays based on our given parameters
+		model.initialSpecies = new int[numSpecies];
+		model.reactions = new Reaction[numReactions];
+		model.displays = new int[numDisplays];
+		model.tracks = new boolean[numSpecies];
+
+		// Read in initial species values
+		for (int i = 0; i < numSpecies; i++) {
+			model.initialSpecies[i] = parser.nextInt();
+		}
+		parser.nextLine();
+
+		// Read in display species, offset once the min index is known
+		for (int i = 0; i < numDisplays; i++) {
+			model.displays[i] = parser.nextInt();
+			model.minIndex = Math.min(model.minIndex, model.displays[i]);
+		}
+		parser.nextLine();
+
+		// Read in reactions, keeping the species numbers for now
+		ReactionType[] types = new ReactionType[numReactions];
+		double[] rates = new double[numReactions];
+		int[][] reactants = new int[numReactions][];
+		int[][] offsets = new int[numReactions][];
+		int[][] products = new int[numReactions][];
+		int[] scratch = new int[16];
+		int[] repeats = new int[16];
+		for (int i = 0; i < numReactions; i++) {
+
+			// Input reactant coefficients, up to the arrow
+			int count = 0;
+			while (parser.peek() != '-') {
+				if (count > 0) {
+					parser.expect('+');
+				}
+				int coefficient = readCoefficient(parser);
+				int reactant = readSpecies(parser);
+				for (int k = 0; k < coefficient; k++) {
+					if (count == scratch.length) {
+						scratch = Arrays.copyOf(scratch, 2 * count);
+						repeats = Arrays.copyOf(repeats, 2 * count);
+					}
+					repeats[count] = k;
+					scratch[count++] = reactant;
+				}
+			}
+			if (count > 0) {
+				reactants[i] = Arrays.copyOf(scratch, count);
+				offsets[i] = Arrays.copyOf(repeats, count);
+			}
+			types[i] = typeOf(offsets[i]);
+
+			// Input reaction rate, right after the arrow
+			parser.expect('-');
+			parser.expect('>');
+			rates[i] = parser.nextDouble();
+
+			// Input product coefficients
+			count = 0;
+			while (!parser.atLineEnd()) {
+				if (count > 0) {
+					parser.expect('+');
+				}
+				int coefficient = readCoefficient(parser);
+				int product = readSpecies(parser);
+				for (int k = 0; k < coefficient; k++) {
+					if (count == scratch.length) {
+						scratch = Arrays.copyOf(scratch, 2 * count);
+					}
+					scratch[count++] = product;
+				}
+			}
+			if (count > 0) {
+				products[i] = Arrays.copyOf(scratch, count);
+			}
+			if (i < numReactions - 1) {
+				parser.nextLine();
+			}
+		}
+		if (!parser.atEnd()) {
+			throw parser.error("more lines than reactions");
+		}
+
+		// Offset species numbers by the min index and build the reactions
+		for (int i = 0; i < numReactions; i++) {
+			model.minIndex = Math.min(model.minIndex, min(reactants[i]));
+			model.minIndex = Math.min(model.minIndex, min(products[i]));
+		}
+		if (model.minIndex == Integer.MAX_VALUE) {
+			model.minIndex = 0;
+		}
+		int minIndex = model.minIndex;
+		for (int i = 0; i < numDisplays; i++) {
+			model.displays[i] -= minIndex;
+			model.tracks[model.displays[i]] = true;
+		}
+		for (int i = 0; i < numReactions; i++) {
+			offset(reactants[i], minIndex, numSpecies);
+			offset(products[i], minIndex, numSpecies);
+			model.reactions[i] = new Reaction(rates[i], types[i], reactants[i], offsets[i],
+					products[i]);
+		}
+
+		// Compile the reactions, with the dependency graph
+		model.network = new CompiledNetwork(model);
+
+		return model;
+	}
+
+	/**
+	 * Returns a copy of this Model with some of its parameters changed.
+	 * Each setting is "NAME=VALUE", where NAME is "time" for the simulation
+	 * time, "S" and a species number (as in the input file) for its initial
+	 * population, or "R" and a reaction number (counting from one, as in the
+	 * output) for its rate.  This Model is not changed, and the copy shares
+	 * its arrays, and the dependency graph, wherever they are the same.
+	 *
+	 * @param settings
+	 * 			the settings, in order, so a later one wins
+	 * @return
+	 * 			the changed Model, or this Model if there are no settings
+	 * @throws IllegalArgumentException
+	 * 			if a setting is not valid for this Model
+	 */
+	public Model override(List<String> settings) {
+		if (settings.isEmpty()) {
+			return this;
+		}
+		int time = simulationTime;
+		int[] species = initialSpecies.clone();
+		double[] rates = new double[reactions.length];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = reactions[i].getRate();
+		}
+
+		// Apply each setting to the copies
+		for (String setting : settings) {
+			int equals = setting.indexOf('=');
+			if (equals < 1) {
+				throw new IllegalArgumentException("Setting must be NAME=VALUE: " + setting);
+			}
+			String name = setting.substring(0, equals);
+			String value = setting.substring(equals + 1);
+			if (name.equals("time")) {
+				time = Integer.parseInt(value);
+				if (time < 0) {
+					throw new IllegalArgumentException("Time must not be negative: " + setting);
+				}
+			} else if (name.charAt(0) == 'S') {
+				int index = Integer.parseInt(name.substring(1)) - minIndex;
+				if (index < 0 || index >= species.length) {
+					throw new IllegalArgumentException("No species " + name);
+				}
+				species[index] = Integer.parseInt(value);
+				if (species[index] < 0) {
+					throw new IllegalArgumentException("Population must not be negative: "
+							+ setting);
+				}
+			} else if (name.charAt(0) == 'R') {
+				int index = Integer.parseInt(name.substring(1)) - 1;
+				if (index < 0 || index >= rates.length) {
+					throw new IllegalArgumentException("No reaction " + name);
+				}
+				rates[index] = Double.parseDouble(value);
+				if (!(rates[index] >= 0) || Double.isInfinite(rates[index])) {
+					throw new IllegalArgumentException("Bad rate: " + setting);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown parameter " + name);
+			}
+		}
+
+		// Share what did not change
+		Model model = new Model();
+		model.minIndex = minIndex;
+		model.simulationTime = time;
+		model.initialSpecies = Arrays.equals(species, initialSpecies) ? initialSpecies : species;
+		model.displays = displays;
+		model.tracks = tracks;
+		model.reactions = reactions;
+		model.network = network;
+		if (!sameRates(rates)) {
+			model.reactions = new Reaction[reactions.length];
+			for (int i = 0; i < reactions.length; i++) {
+				Reaction rxn = reactions[i];
+				model.reactions[i] = new Reaction(rates[i], rxn.getType(),
+						rxn.getReactants(), rxn.getOffsets(), rxn.getProducts());
+			}
+			model.network = new CompiledNetwork(network, rates);
+		}
+		return model;
+	}
+
+	/**
+	 * Returns whether or not the given rates are exactly this Model's.
+	 *
+	 * @param rates
+	 * 			the rate of each reaction
+	 * @return
+	 * 			true if every rate is the same, false otherwise
+	 */
+	private boolean sameRates(double[] rates) {
+		for (int i = 0; i < rates.length; i++) {
+			double rate = reactions[i].getRate();
+			if (Double.doubleToLongBits(rates[i]) != Double.doubleToLongBits(rate)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the ReactionType for the given reactants.  A second order
+	 * reaction written as "2S1" is a dimerization, but one written as
+	 * "S1 + S1" is read as A + B, as it always has been.
+	 *
+	 * @param offsets
+	 * 			the molecules ahead of each reactant in its term, or null
+	 * 			for no reactants
+	 * @return
+	 * 			the ReactionType
+	 */
+	private static ReactionType typeOf(int[] offsets) {
+		if (offsets == null) {
+			return ReactionType.RXN_ONE;
+		} else if (offsets.length == 1) {
+			return ReactionType.RXN_TWO;
+		} else if (offsets.length == 2) {
+			return offsets[1] == 1 ? ReactionType.RXN_THREE : ReactionType.RXN_FOUR;
+		}
+		return ReactionType.RXN_HIGHER;
+	}
+
+	/**
+	 * Reads an optional species coefficient, such as the 2 in "2S1".
+	 *
+	 * @param parser
+	 * 			the parser over the input
+	 * @return
+	 * 			the coefficient, or 1 if there is none
+	 */
+	private static int readCoefficient(ModelParser parser) {
+		int b = parser.peek();
+		if (b >= '0' && b <= '9') {
+			int coefficient = parser.nextInt();
+			if (coefficient < 1) {
+				throw parser.error("coefficient must be positive");
+			}
+			return coefficient;
+		}
+		return 1;
+	}
+
+	/**
+	 * Reads a species such as "S1".
+	 *
+	 * @param parser
+	 * 			the parser over the input
+	 * @return
+	 * 			the species number
+	 */
+	private static int readSpecies(ModelParser parser) {
+		parser.expect('S');
+		return parser.nextInt();
+	}
+
+	/**
+	 * Returns the smallest of the given species numbers.
+	 *
+	 * @param species
+	 * 			the species numbers, or null
+	 * @return
+	 * 			the smallest number, or Integer.MAX_VALUE if there are none
+	 */
+	private static int min(int[] species) {
+		int min = Integer.MAX_VALUE;
+		if (species != null) {
+			for (int s : species) {
+				min = Math.min(min, s);
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Turns species numbers into species indices by subtracting the minimum
+	 * index, and checks that they are in range.
+	 *
+	 * @param species
+	 * 			the species numbers, or null
+	 * @param minIndex
+	 * 			the minimum species index
+	 * @param numSpecies
+	 * 			the number of species
+	 */
+	private static void offset(int[] species, int minIndex, int numSpecies) {
+		if (species == null) {
+			return;
+		}
+		for (int k = 0; k < species.length; k++) {
+			species[k] -= minIndex;
+			if (species[k] < 0 || species[k] >= numSpecies) {
+				throw new IllegalArgumentException("Species S" + (species[k] + minIndex)
+						+ " is out of range");
+			}
+		}
+	}
+
+	/**
+	 * Returns the minimum species index used for offsetting.
+	 *
+	 * @return
+	 * 			the minimum species index
+	 */
+	public int getMinIndex() {
+		return minIndex;
+	}
+
+	/**
+	 * Returns the simulation duration.
+	 *
+	 * @return
+	 * 			the time at which each run ends
+	 */
+	public int getSimulationTime() {
+		return simulationTime;
+	}
+
+	/**
+	 * Returns the initial species populations.  The array should not be
+	 * modified.
+	 *
+	 * @return
+	 * 			the initial species values
+	 */
+	public int[] getInitialSpecies() {
+		return initialSpecies;
+	}
+
+	/**
+	 * Returns the indices of the tracked species, in the user's order.  The
+	 * array should not be modified.
+	 *
+	 * @return
+	 * 			the tracked species indices
+	 */
+	public int[] getDisplays() {
+		return displays;
+	}
+
+	/**
+	 * Returns whether or not each species is tracked.  The array should not
+	 * be modified.
+	 *
+	 * @return
+	 * 			an array of tracked flags by species index
+	 */
+	public boolean[] getTracks() {
+		return tracks;
+	}
+
+	/**
+	 * Returns the Reactions, in the order of the input file.  The engines run
+	 * on the CompiledNetwork instead, see getNetwork().
+	 *
+	 * @return
+	 * 			the template Reactions
+	 */
+	public Reaction[] getReactions() {
+		return reactions;
+	}
+
+	/**
+	 * Returns the number of species in the network.
+	 *
+	 * @return
+	 * 			the number of species
+	 */
+	public int getNumSpecies() {
+		return initialSpecies.length;
+	}
+
+	/**
+	 * Returns the compiled form of the reactions that the engines run on.
+	 *
+	 * @return
+	 * 			the CompiledNetwork for this Model
+	 */
+	public CompiledNetwork getNetwork() {
+		return network;
+	}
+}
@@ -0,0 +1,306 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class is a single-pass tokenizer for model input files.  The file is
+ * memory-mapped and read byte by byte, and numbers are parsed straight from
+ * the bytes, with no lines, split tokens, or other Strings made along the
+ * way.  Model.load() reads the file format on top of it.
+ *
+ * Spaces and tabs between tokens are skipped, and lines may end with "\n"
+ * or "\r\n".  Badly formatted input results in an IllegalArgumentException
+ * that gives the line number.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class ModelParser {
+
+	/**
+	 * Exact powers of ten, for the fast path of nextDouble().
+	 */
+	private static final double[] POWERS = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/**
+	 * The file contents.
+	 */
+	private ByteBuffer data;
+
+	/**
+	 * The current read position and the end of the data.
+	 */
+	private int pos = 0;
+	private int end;
+
+	/**
+	 * The current line number, starting at one.
+	 */
+	private int line = 1;
+
+	/**
+	 * Creates a new ModelParser over the given bytes.
+	 *
+	 * @param bytes
+	 * 			the file contents, from position to limit
+	 */
+	public ModelParser(ByteBuffer bytes) {
+		data = bytes;
+		pos = bytes.position();
+		end = bytes.limit();
+	}
+
+	/**
+	 * Creates a new ModelParser over the memory-mapped contents of the
+	 * given file.
+	 *
+	 * @param fileName
+	 * 			the file name for reading
+	 * @return
+	 * 			the ModelParser
+	 * @throws IOException
+	 * 			if the file could not be opened or mapped
+	 */
+	public static ModelParser open(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Model file is too large: " + fileName);
+			}
+
+			// The mapping stays valid after the file is closed
+			return new ModelParser(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns an exception for badly formatted input at the current line.
+	 *
+	 * @param message
+	 * 			what was wrong
+	 * @return
+	 * 			the exception to throw
+	 */
+	public IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("Line " + line + ": " + message);
+	}
+
+	/**
+	 * Skips spaces and tabs.
+	 */
+	private void skipSpaces() {
+		while (pos < end) {
+			byte b = data.get(pos);
+			if (b != ' ' && b != '\t') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Skips spaces and returns the next byte without reading it.  A line
+	 * end, "\r\n" or "\n", is returned as '\n'.
+	 *
+	 * @return
+	 * 			the next byte, or -1 at the end of the data
+	 */
+	public int peek() {
+		skipSpaces();
+		if (pos >= end) {
+			return -1;
+		}
+		byte b = data.get(pos);
+		return b == '\r' ? '\n' : b;
+	}
+
+	/**
+	 * Returns whether or not the current line has no more tokens.
+	 *
+	 * @return
+	 * 			true at a line end or the end of the data
+	 */
+	public boolean atLineEnd() {
+		int b = peek();
+		return b == '\n' || b == -1;
+	}
+
+	/**
+	 * Returns whether or not all of the data has been read, apart from
+	 * blank space.
+	 *
+	 * @return
+	 * 			true at the end of the data
+	 */
+	public boolean atEnd() {
+		while (peek() == '\n') {
+			nextLine();
+		}
+		return pos >= end;
+	}
+
+	/**
+	 * Moves to the start of the next line, which must be all that is left
+	 * of the current one.
+	 */
+	public void nextLine() {
+		if (!atLineEnd()) {
+			throw error("unexpected '" + (char) data.get(pos) + "'");
+		}
+		if (pos < end && data.get(pos) == '\r') {
+			pos++;
+		}
+		if (pos < end && data.get(pos) == '\n') {
+			pos++;
+		}
+		line++;
+	}
+
+	/**
+	 * Skips spaces and reads the given character.
+	 *
+	 * @param c
+	 * 			the character that must come next
+	 */
+	public void expect(char c) {
+		if (peek() != c) {
+			throw error("expected '" + c + "'");
+		}
+		pos++;
+	}
+
+	/**
+	 * Skips spaces and reads a decimal integer, which may have a sign.
+	 *
+	 * @return
+	 * 			the integer
+	 */
+	public int nextInt() {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && (data.get(pos) == '-' || data.get(pos) == '+')) {
+			negative = data.get(pos) == '-';
+			pos++;
+		}
+		int start = pos;
+		long value = 0;
+		while (pos < end) {
+			int digit = data.get(pos) - '0';
+			if (digit < 0 || digit > 9) {
+				break;
+			}
+			value = value * 10 + digit;
+			if (value > Integer.MAX_VALUE + 1L) {
+				throw error("number too large");
+			}
+			pos++;
+		}
+		if (pos == start) {
+			throw error("expected a number");
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw error("number too large");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads a decimal number right at the current position, such as 0.5,
+	 * 10, or 1.0E-4.  The result is exactly what Double.parseDouble() gives:
+	 * numbers with up to 15 significant digits and small exponents are
+	 * worked out directly, which takes a single correctly rounded step, and
+	 * anything else is handed to Double.parseDouble().
+	 *
+	 * @return
+	 * 			the number
+	 */
+	public double nextDouble() {
+		int start = pos;
+		boolean negative = false;
+		if (pos < end && (data.get(pos) == '-' || data.get(pos) == '+')) {
+			negative = data.get(pos) == '-';
+			pos++;
+		}
+
+		// Mantissa digits, with the decimal point folded into the exponent
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		while (pos < end) {
+			byte b = data.get(pos);
+			if (b >= '0' && b <= '9') {
+				seenDigit = true;
+				if (digits > 0 || b != '0') {
+					digits++;
+				}
+				if (digits <= 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (seenPoint) {
+						exponent--;
+					}
+				} else if (!seenPoint) {
+					exponent++;
+				}
+			} else if (b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (!seenDigit) {
+			throw error("expected a number");
+		}
+		if (pos < end && (data.get(pos) == 'e' || data.get(pos) == 'E')) {
+			pos++;
+			int sign = 1;
+			if (pos < end && (data.get(pos) == '-' || data.get(pos) == '+')) {
+				sign = data.get(pos) == '-' ? -1 : 1;
+				pos++;
+			}
+			int e = 0;
+			int startExponent = pos;
+			while (pos < end && data.get(pos) >= '0' && data.get(pos) <= '9') {
+				e = Math.min(e * 10 + (data.get(pos) - '0'), 100000);
+				pos++;
+			}
+			if (pos == startExponent) {
+				throw error("expected an exponent");
+			}
+			exponent += sign * e;
+		}
+
+		// Fast path: both parts exact, so one rounding step
+		double value;
+		if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+			value = exponent >= 0 ? mantissa * POWERS[exponent] : mantissa / POWERS[-exponent];
+		} else {
+			char[] text = new char[pos - start];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = (char) data.get(start + i);
+			}
+			return Double.parseDouble(new String(text));
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns the current line number, starting at one.
+	 *
+	 * @return
+	 * 			the line number
+	 */
+	public int getLine() {
+		return line;
+	}
+}
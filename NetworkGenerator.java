@@ -0,0 +1,498 @@
+import java.io.*;
+import java.math.*;
+import java.util.Arrays;
+
+/**
+ * This class writes synthetic reaction networks in the input file format, for
+ * measuring how load time, events per second, and memory grow with the size
+ * of the network.  The number of species and reactions, the mix of the
+ * ReactionTypes (including third order reactions), how tightly the reactions
+ * are coupled, and the initial populations can all be set.
+ *
+ * Coupling is controlled by a window: each reaction picks its species from a
+ * window of that many species around a starting species, and the starting
+ * species move evenly through all species from the first reaction to the
+ * last.  A small window gives local, loosely coupled networks with short
+ * dependency rows; a window as large as the species count couples any
+ * reaction with any other.
+ *
+ * Rates are picked so every reaction starts out with a propensity of about
+ * the same size, whatever its order, or spread log-uniformly over a given
+ * number of orders of magnitude below it.  About half of the first and second
+ * order reactions have no products, which keeps the populations bounded.
+ *
+ * Usage:
+ *     java NetworkGenerator [options] OUTPUT_FILE
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class NetworkGenerator {
+
+	/**
+	 * Usage message printed for bad arguments.
+	 */
+	public static final String USAGE =
+			"Usage:\n"
+			+ "NetworkGenerator [options] OUTPUT_FILE\n"
+			+ "Options:\n"
+			+ "  --species N        number of species (default 100)\n"
+			+ "  --reactions M      number of reactions (default 100)\n"
+			+ "  --mix A,B,C,D[,E]  weights of ->S, S->, 2S->, S+S-> and third order\n"
+			+ "                     (3S->, 2S+S->, S+S+S->) reactions (default 1,1,1,1,0)\n"
+			+ "  --coupling W       species window of each reaction (default all)\n"
+			+ "  --population P     initial population of every species, or LO:HI\n"
+			+ "                     for uniformly random ones (default 1000)\n"
+			+ "  --spread D         spread the starting propensities log-uniformly over\n"
+			+ "                     D orders of magnitude downward (default 0)\n"
+			+ "  --tracked K        number of tracked species (default 3)\n"
+			+ "  --time T           simulation time (default 10)\n"
+			+ "  --seed S           random seed (default 1)";
+
+	/**
+	 * The number of species and reactions.
+	 */
+	private int numSpecies = 100;
+	private int numReactions = 100;
+
+	/**
+	 * The relative weights of each ReactionType, in declaration order.
+	 */
+	private double[] mix = { 1, 1, 1, 1, 0 };
+
+	/**
+	 * The species window of each reaction, or zero for all species.
+	 */
+	private int coupling = 0;
+
+	/**
+	 * The range of initial populations.
+	 */
+	private int minPopulation = 1000;
+	private int maxPopulation = 1000;
+
+	/**
+	 * The number of orders of magnitude the starting propensities spread
+	 * over, down from about 10.
+	 */
+	private double spread = 0;
+
+	/**
+	 * The number of tracked species.
+	 */
+	private int numTracked = 3;
+
+	/**
+	 * The simulation time.
+	 */
+	private int simulationTime = 10;
+
+	/**
+	 * The random numbers for the network.
+	 */
+	private RandomStream random = new RandomStream(1, 0);
+
+	/**
+	 * Sets the number of species.
+	 *
+	 * @param n
+	 * 			the number of species, at least one
+	 */
+	public void setSpecies(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Need at least one species");
+		}
+		numSpecies = n;
+	}
+
+	/**
+	 * Sets the number of reactions.
+	 *
+	 * @param m
+	 * 			the number of reactions, at least one
+	 */
+	public void setReactions(int m) {
+		if (m < 1) {
+			throw new IllegalArgumentException("Need at least one reaction");
+		}
+		numReactions = m;
+	}
+
+	/**
+	 * Sets the relative weights of the ReactionTypes.
+	 *
+	 * @param weights
+	 * 			the weights of RXN_ONE to RXN_HIGHER, not all zero.  The
+	 * 			weight of RXN_HIGHER may be left off, making it zero.
+	 */
+	public void setMix(double[] weights) {
+		double total = 0;
+		for (double w : weights) {
+			if (w < 0) {
+				throw new IllegalArgumentException("Negative reaction weight");
+			}
+			total += w;
+		}
+		if (weights.length < mix.length - 1 || weights.length > mix.length || total <= 0) {
+			throw new IllegalArgumentException("Need four or five weights, not all zero");
+		}
+		mix = Arrays.copyOf(weights, mix.length);
+	}
+
+	/**
+	 * Sets the species window each reaction picks its species from.
+	 *
+	 * @param window
+	 * 			the window size, or zero for all species
+	 */
+	public void setCoupling(int window) {
+		coupling = window;
+	}
+
+	/**
+	 * Sets the range of initial populations.
+	 *
+	 * @param min
+	 * 			the smallest initial population
+	 * @param max
+	 * 			the largest initial population
+	 */
+	public void setPopulation(int min, int max) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("Bad population range");
+		}
+		minPopulation = min;
+		maxPopulation = max;
+	}
+
+	/**
+	 * Sets how many orders of magnitude the starting propensities spread
+	 * over.
+	 *
+	 * @param decades
+	 * 			the number of orders of magnitude, or zero for none
+	 */
+	public void setSpread(double decades) {
+		if (!(decades >= 0)) {
+			throw new IllegalArgumentException("Bad spread");
+		}
+		spread = decades;
+	}
+
+	/**
+	 * Sets the number of tracked species.
+	 *
+	 * @param k
+	 * 			the number of tracked species
+	 */
+	public void setTracked(int k) {
+		numTracked = k;
+	}
+
+	/**
+	 * Sets the simulation time.
+	 *
+	 * @param t
+	 * 			the simulation time
+	 */
+	public void setTime(int t) {
+		simulationTime = t;
+	}
+
+	/**
+	 * Sets the random seed.
+	 *
+	 * @param seed
+	 * 			the random seed
+	 */
+	public void setSeed(long seed) {
+		random.setRun(seed, 0);
+	}
+
+	/**
+	 * Returns a random integer from zero to n - 1.
+	 *
+	 * @param n
+	 * 			the number of choices
+	 * @return
+	 * 			the random integer
+	 */
+	private int nextInt(int n) {
+		return (int) ((random.nextLong() >>> 1) % n);
+	}
+
+	/**
+	 * Returns the number of species each reaction picks from.
+	 *
+	 * @return
+	 * 			the window size
+	 */
+	private int window() {
+		return coupling <= 0 ? numSpecies : Math.min(coupling, numSpecies);
+	}
+
+	/**
+	 * Picks a random species from the window of the given reaction.
+	 *
+	 * @param reaction
+	 * 			the reaction index
+	 * @return
+	 * 			the species index
+	 */
+	private int pickSpecies(int reaction) {
+		int window = window();
+		long start = (long) reaction * numSpecies / numReactions;
+		return (int) ((start + nextInt(window)) % numSpecies);
+	}
+
+	/**
+	 * Picks a random species from the window of the given reaction that is
+	 * different from the other one, if the window allows it.
+	 *
+	 * @param reaction
+	 * 			the reaction index
+	 * @param other
+	 * 			the species to avoid
+	 * @return
+	 * 			the species index
+	 */
+	private int pickOther(int reaction, int other) {
+		if (window() < 2) {
+			return (other + 1) % numSpecies;
+		}
+		int s = pickSpecies(reaction);
+		while (s == other) {
+			s = pickSpecies(reaction);
+		}
+		return s;
+	}
+
+	/**
+	 * Picks a ReactionType by the mix weights.
+	 *
+	 * @return
+	 * 			the ReactionType
+	 */
+	private ReactionType pickType() {
+		double total = 0;
+		for (double w : mix) {
+			total += w;
+		}
+		double target = random.nextDouble() * total;
+		ReactionType[] types = ReactionType.values();
+		int last = 0;
+		for (int i = 0; i < mix.length; i++) {
+			if (mix[i] > 0) {
+				last = i;
+				target -= mix[i];
+				if (target <= 0) {
+					return types[i];
+				}
+			}
+		}
+
+		// Round-off left the target just past the end
+		return types[last];
+	}
+
+	/**
+	 * Formats a rate in plain decimal with six significant digits.
+	 *
+	 * @param rate
+	 * 			the rate
+	 * @return
+	 * 			the formatted rate
+	 */
+	private static String formatRate(double rate) {
+		return new BigDecimal(rate).round(new MathContext(6)).stripTrailingZeros()
+				.toPlainString();
+	}
+
+	/**
+	 * Writes a network with the current settings.
+	 *
+	 * @param out
+	 * 			the writer for the network
+	 * @throws IOException
+	 * 			if the network could not be written
+	 */
+	public void write(Writer out) throws IOException {
+		int tracked = Math.max(1, Math.min(numTracked, numSpecies));
+		double population = Math.max(1, (minPopulation + maxPopulation) / 2.0);
+
+		// Header and initial populations
+		StringBuilder line = new StringBuilder();
+		line.append(numSpecies).append(' ').append(numReactions).append(' ')
+				.append(tracked).append(' ').append(simulationTime).append('\n');
+		for (int i = 0; i < numSpecies; i++) {
+			if (i > 0) {
+				line.append(' ');
+			}
+			line.append(minPopulation + nextInt(maxPopulation - minPopulation + 1));
+			if (line.length() > 8192) {
+				out.write(line.toString());
+				line.setLength(0);
+			}
+		}
+		line.append('\n');
+
+		// Tracked species, spread evenly over all species
+		for (int i = 0; i < tracked; i++) {
+			if (i > 0) {
+				line.append(' ');
+			}
+			line.append(1 + (int) ((long) i * numSpecies / tracked));
+		}
+		out.write(line.append('\n').toString());
+
+		for (int j = 0; j < numReactions; j++) {
+			line.setLength(0);
+			ReactionType type = pickType();
+
+			// The first reaction names S1, so the species index offset is found
+			int a = j == 0 ? 0 : pickSpecies(j);
+			int b = pickOther(j, a);
+
+			// Reactants and a rate giving a propensity of about 10, or less by the spread
+			double scale = spread > 0 ? Math.pow(10, -spread * random.nextDouble()) : 1;
+			boolean products = true;
+			if (type == ReactionType.RXN_ONE) {
+				line.append("->").append(formatRate(scale * 10));
+			} else if (type == ReactionType.RXN_TWO) {
+				line.append('S').append(a + 1).append(" ->")
+						.append(formatRate(scale * 10 / population));
+				products = nextInt(2) == 0;
+			} else if (type == ReactionType.RXN_THREE) {
+				line.append("2S").append(a + 1).append(" ->")
+						.append(formatRate(scale * 10 / (population * population)));
+				products = nextInt(2) == 0;
+			} else if (type == ReactionType.RXN_FOUR) {
+				line.append('S').append(a + 1).append(" + S").append(b + 1).append(" ->")
+						.append(formatRate(scale * 10 / (population * population)));
+				products = nextInt(2) == 0;
+			} else {
+
+				// Third order: 3A, 2A + B, or A + B + C
+				int shape = nextInt(3);
+				if (shape == 0) {
+					line.append("3S").append(a + 1);
+				} else if (shape == 1) {
+					line.append("2S").append(a + 1).append(" + S").append(b + 1);
+				} else {
+					int c = pickOther(j, a);
+					while (c == b && window() > 2) {
+						c = pickOther(j, a);
+					}
+					line.append('S').append(a + 1).append(" + S").append(b + 1)
+							.append(" + S").append(c + 1);
+				}
+				line.append(" ->")
+						.append(formatRate(scale * 10 / (population * population * population)));
+				products = nextInt(2) == 0;
+			}
+
+			// Products: one species, two of one species, or two species
+			if (products || type == ReactionType.RXN_ONE) {
+				int p = pickSpecies(j);
+				int shape = nextInt(3);
+				if (shape == 0) {
+					line.append(" S").append(p + 1);
+				} else if (shape == 1) {
+					line.append(" 2S").append(p + 1);
+				} else {
+					line.append(" S").append(p + 1).append(" + S").append(pickOther(j, p) + 1);
+				}
+			}
+			if (j < numReactions - 1) {
+				line.append('\n');
+			}
+			out.write(line.toString());
+		}
+	}
+
+	/**
+	 * Writes a network with the current settings to the given file.
+	 *
+	 * @param fileName
+	 * 			the file to write
+	 * @throws IOException
+	 * 			if the file could not be written
+	 */
+	public void write(String fileName) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Parses the command-line arguments and writes the network.
+	 *
+	 * @param args
+	 * 			the command line arguments
+	 */
+	public static void main(String[] args) {
+		NetworkGenerator generator = new NetworkGenerator();
+		String fileName = null;
+		try {
+			int i = 0;
+			while (i < args.length && args[i].startsWith("--")) {
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + args[i]);
+				}
+				String flag = args[i];
+				String value = args[i + 1];
+				if (flag.equals("--species")) {
+					generator.setSpecies(Integer.parseInt(value));
+				} else if (flag.equals("--reactions")) {
+					generator.setReactions(Integer.parseInt(value));
+				} else if (flag.equals("--mix")) {
+					String[] parts = value.split(",");
+					double[] weights = new double[parts.length];
+					for (int k = 0; k < parts.length; k++) {
+						weights[k] = Double.parseDouble(parts[k]);
+					}
+					generator.setMix(weights);
+				} else if (flag.equals("--coupling")) {
+					generator.setCoupling(Integer.parseInt(value));
+				} else if (flag.equals("--population")) {
+					int colon = value.indexOf(':');
+					if (colon < 0) {
+						int p = Integer.parseInt(value);
+						generator.setPopulation(p, p);
+					} else {
+						generator.setPopulation(Integer.parseInt(value.substring(0, colon)),
+								Integer.parseInt(value.substring(colon + 1)));
+					}
+				} else if (flag.equals("--spread")) {
+					generator.setSpread(Double.parseDouble(value));
+				} else if (flag.equals("--tracked")) {
+					generator.setTracked(Integer.parseInt(value));
+				} else if (flag.equals("--time")) {
+					generator.setTime(Integer.parseInt(value));
+				} else if (flag.equals("--seed")) {
+					generator.setSeed(Long.parseLong(value));
+				} else {
+					throw new IllegalArgumentException("Unknown option " + flag);
+				}
+				i += 2;
+			}
+			if (args.length - i != 1) {
+				throw new IllegalArgumentException("Wrong number of arguments");
+			}
+			fileName = args[i];
+		} catch (IllegalArgumentException e) {
+			System.out.println(USAGE);
+			System.exit(0);
+		}
+
+		try {
+			generator.write(fileName);
+		} catch (IOException e) {
+			System.out.println("Error writing network: " + e.getMessage());
+			System.exit(0);
+		}
+	}
+}
@@ -0,0 +1,356 @@
+import java.io.*;
+
+/**
+ * This class runs the next-reaction method for a single Model.  It owns all
+ * of the state that changes during a run (species populations, next-times,
+ * the heap, and the current time), so several engines can run the same Model
+ * at once on different threads.
+ *
+ * Every reaction keeps an absolute next-time in an IndexedMinHeap, so the
+ * next event is always at the top of the heap.  As in Gibson and Bruck's
+ * original method, only the reaction that fired draws a new random number.
+ * Every other affected reaction keeps its random draw, and its next-time is
+ * rescaled by the ratio of its old and new propensities, so each event costs
+ * one random number and one log no matter how big its dependency table is.
+ * The loop runs only on the Model's CompiledNetwork and primitive arrays, so
+ * no objects are touched or allocated per event.  Random numbers come from
+ * the engine's own RandomStream, reseeded for every run.
+ *
+ * With coupled streams, each reaction instead draws from its own keyed
+ * stream of the run (see RandomStream.keyedDouble()), and a reaction whose
+ * propensity drops to zero keeps the rest of its draw for when it comes back,
+ * as in Gibson and Bruck's paper.  Each reaction then fires on its own unit
+ * Poisson process stretched by its propensity (the random time change
+ * representation), so runs of the same number at slightly different rates
+ * stay close even once their events come in a different order.  Sweep uses
+ * this for common random numbers.  The runs are just as valid either way,
+ * but not the same.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class NextReactionEngine implements SimulationEngine {
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the Model's compiled reactions, shared with other engines.
+	 */
+	private CompiledNetwork network;
+
+	/**
+	 * This is an array of length numSpecies that is used to keep track of
+	 * the current species values.  These are reset to the initial species
+	 * values on each run.  Used to determine propensities for reactions.
+	 */
+	private int[] species;
+
+	/**
+	 * This is an array of length numReactions holding the current propensity
+	 * of each reaction.  Needed for rescaling next-times.
+	 */
+	private double[] propensities;
+
+	/**
+	 * This is an array of length numReactions counting how often each
+	 * reaction has fired in the current run.
+	 */
+	private int[] fired;
+
+	/**
+	 * This is the IndexedMinHeap that keeps our reactions in order of
+	 * next-time.  It is used to retrieve the next reaction to occur.
+	 */
+	private IndexedMinHeap heap;
+
+	/**
+	 * This represents the current time, which starts at zero and ticks
+	 * up to the simulation time.  Reset to zero on each run.
+	 */
+	private double time = 0;
+
+	/**
+	 * This is the engine's own random number generator.  It is reseeded to
+	 * the run's substream on every reset.
+	 */
+	private RandomStream random = new RandomStream(0, 0);
+
+	/**
+	 * Whether or not each reaction draws from its own keyed stream.
+	 */
+	private boolean coupled;
+
+	/**
+	 * These are, with coupled streams only, the key of each reaction's
+	 * stream, the number of draws each has taken in the current run, and
+	 * the rest of the draw of each reaction parked at zero propensity, in
+	 * units of propensity times time.
+	 */
+	private long[] streamKeys;
+	private long[] draws;
+	private double[] remaining;
+
+	/**
+	 * This is the listener for tracked species changes, or null if nobody
+	 * needs to know.
+	 */
+	private SpeciesListener listener = null;
+
+	/**
+	 * These count events, propensity recalculations, recalculations that
+	 * left the propensity unchanged, and zero-propensity parks since the
+	 * last flush to Metrics.  Only counted when Metrics.ENABLED.
+	 */
+	private long events, recalculated, unchanged, parks, keyedDraws;
+
+	/**
+	 * Creates a new NextReactionEngine for the given Model.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 */
+	public NextReactionEngine(Model m) {
+		this(m, false);
+	}
+
+	/**
+	 * Creates a new NextReactionEngine for the given Model, with or without
+	 * coupled streams.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 * @param coupledStreams
+	 * 			true for each reaction to draw from its own stream
+	 */
+	public NextReactionEngine(Model m, boolean coupledStreams) {
+		model = m;
+		coupled = coupledStreams;
+		network = m.getNetwork();
+		species = new int[network.getNumSpecies()];
+		fired = new int[network.getNumReactions()];
+		propensities = new double[network.getNumReactions()];
+		heap = new IndexedMinHeap(network.getNumReactions());
+		if (coupled) {
+			streamKeys = new long[network.getNumReactions()];
+			draws = new long[network.getNumReactions()];
+			remaining = new double[network.getNumReactions()];
+		}
+	}
+
+	@Override
+	public void setListener(SpeciesListener l) {
+		listener = l;
+	}
+
+	@Override
+	public void reset(long seed, int run) {
+		int simulationTime = model.getSimulationTime();
+		int[] initialSpecies = model.getInitialSpecies();
+		time = 0;
+		random.setRun(seed, run);
+
+		// Reset species to initial values
+		for (int j = 0; j < species.length; j++) {
+			species[j] = initialSpecies[j];
+		}
+
+		// Initialize the reactions and their next-times
+		heap.clear();
+		for (int i = 0; i < fired.length; i++) {
+			double propensity = network.propensity(i, species);
+			propensities[i] = propensity;
+			fired[i] = 0;
+			if (coupled) {
+				streamKeys[i] = RandomStream.streamKey(seed, run, i);
+				draws[i] = 0;
+			}
+
+			// Calculate next-time
+			if (propensity == 0) {
+				heap.setKey(i, simulationTime + 1);
+				if (coupled) {
+					remaining[i] = nextExponential(i, 1);
+				}
+			} else {
+				heap.setKey(i, nextExponential(i, propensity));
+			}
+		}
+
+		// Rebuild the heap in place, bottom-up
+		heap.fill(fired.length);
+	}
+
+	@Override
+	public void run() {
+		advance(Long.MAX_VALUE);
+	}
+
+	@Override
+	public boolean advance(long maxSteps) {
+		int simulationTime = model.getSimulationTime();
+		int[] dependStart = network.getDependStart();
+		int[] dependIndex = network.getDependIndex();
+		boolean[] touchesTracked = network.getTouchesTracked();
+
+		for (long step = 0; step < maxSteps && time < simulationTime; step++) {
+
+			// Choose the next reaction
+			int current = heap.getMin();
+			time = heap.getKey(current);
+
+			// Test for simulation end
+			if (time > simulationTime) {
+				break;
+			}
+
+			// Fire the reaction
+			fired[current]++;
+			network.fire(current, species);
+			if (Metrics.ENABLED) {
+				events++;
+				recalculated += dependStart[current + 1] - dependStart[current];
+			}
+
+			// Recalculate next times for effected reactions
+			for (int k = dependStart[current]; k < dependStart[current + 1]; k++) {
+				int rxn = dependIndex[k];
+				double old = propensities[rxn];
+				double propensity = network.propensity(rxn, species);
+				propensities[rxn] = propensity;
+
+				// Calculate next-time and sift to its new place in the heap
+				if (propensity == 0) {
+
+					// Coupled streams keep the rest of the draw for later
+					if (coupled && old != 0) {
+						remaining[rxn] = rxn == current ? nextExponential(rxn, 1)
+								: (heap.getKey(rxn) - time) * old;
+					}
+					heap.updateKey(rxn, simulationTime + 1);
+					if (Metrics.ENABLED) {
+						parks++;
+					}
+				} else if (coupled && rxn != current && old == 0) {
+
+					// Newly enabled, with the rest of its parked draw
+					heap.updateKey(rxn, time + remaining[rxn] / propensity);
+				} else if (rxn == current || old == 0) {
+
+					// Fired or newly enabled, so a fresh draw is needed
+					heap.updateKey(rxn, time + nextExponential(rxn, propensity));
+				} else if (old != propensity) {
+
+					// Reuse the old draw, scaled to the new propensity
+					heap.updateKey(rxn, time + (old / propensity) * (heap.getKey(rxn) - time));
+				} else if (Metrics.ENABLED) {
+					unchanged++;
+				}
+			}
+
+			// Output for tracked species changes
+			if (touchesTracked[current] && listener != null) {
+				listener.speciesChanged(time, species);
+			}
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().record(events, recalculated - unchanged, recalculated, parks,
+					random.takeDraws() + keyedDraws);
+			events = recalculated = unchanged = parks = keyedDraws = 0;
+		}
+		return time >= simulationTime;
+	}
+
+	/**
+	 * Returns a random waiting time for the given reaction, from the
+	 * engine's stream, or from the reaction's own with coupled streams.
+	 *
+	 * @param rxn
+	 * 			the index of the reaction
+	 * @param propensity
+	 * 			the rate of the exponential distribution, greater than zero
+	 * @return
+	 * 			the random waiting time
+	 */
+	private double nextExponential(int rxn, double propensity) {
+		if (!coupled) {
+			return random.nextExponential(propensity);
+		}
+		if (Metrics.ENABLED) {
+			keyedDraws++;
+		}
+		return Math.log(1 / RandomStream.keyedDouble(streamKeys[rxn], draws[rxn]++)) / propensity;
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(time);
+		for (int j = 0; j < species.length; j++) {
+			out.writeInt(species[j]);
+		}
+		for (int i = 0; i < fired.length; i++) {
+			out.writeInt(fired[i]);
+			out.writeDouble(propensities[i]);
+		}
+
+		// Heap in array order, so restore() rebuilds the very same heap
+		for (int pos = 0; pos < heap.heapsize(); pos++) {
+			int i = heap.get(pos);
+			out.writeInt(i);
+			out.writeDouble(heap.getKey(i));
+		}
+		random.save(out);
+		if (coupled) {
+			for (int i = 0; i < fired.length; i++) {
+				out.writeLong(streamKeys[i]);
+				out.writeLong(draws[i]);
+				out.writeDouble(remaining[i]);
+			}
+		}
+	}
+
+	@Override
+	public void restore(DataInput in) throws IOException {
+		time = in.readDouble();
+		for (int j = 0; j < species.length; j++) {
+			species[j] = in.readInt();
+		}
+		for (int i = 0; i < fired.length; i++) {
+			fired[i] = in.readInt();
+			propensities[i] = in.readDouble();
+		}
+		heap.clear();
+		for (int pos = 0; pos < fired.length; pos++) {
+			int i = in.readInt();
+			if (i < 0 || i >= fired.length) {
+				throw new IOException("Bad reaction index " + i);
+			}
+			heap.insert(i, in.readDouble());
+		}
+		random.restore(in);
+		if (coupled) {
+			for (int i = 0; i < fired.length; i++) {
+				streamKeys[i] = in.readLong();
+				draws[i] = in.readLong();
+				remaining[i] = in.readDouble();
+			}
+		}
+	}
+
+	@Override
+	public int[] getSpecies() {
+		return species;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public int getFired(int reaction) {
+		return fired[reaction];
+	}
+}
@@ -0,0 +1,542 @@
+import java.util.*;
+
+/**
+ * This class holds the command-line options for the simulation.  The three
+ * required arguments (number of runs, input file, and output file) can be
+ * preceded by any number of optional "--name value" flags.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Options {
+
+	/**
+	 * Usage message printed for bad arguments.
+	 */
+	public static final String USAGE =
+			"Usage:\n"
+			+ "Chemistry [options] NUM_RUNS INPUT_FILE OUTPUT_FILE\n"
+			+ "Options:\n"
+			+ "  --threads N    run replicates on N threads (0 for all cores)\n"
+			+ "  --seed S       base random seed, for reproducible runs\n"
+			+ "  --runs A-B     only simulate runs A to B of NUM_RUNS, and write\n"
+			+ "                 their statistics for PartialStats (needs --seed)\n"
+			+ "  --partial F    partial statistics file (default OUTPUT_FILE.partial)\n"
+			+ "  --ci           add standard errors and 95% confidence intervals\n"
+			+ "  --target-rse R stop once every tracked mean has a relative standard\n"
+			+ "                 error of at most R, with NUM_RUNS as the most runs\n"
+			+ "  --timing       report model load and build times on stderr\n"
+			+ "  --metrics SECONDS\n"
+			+ "                 collect loop metrics, shown through JMX and reported\n"
+			+ "                 on stderr every SECONDS (0 for only at the end)\n"
+			+ "  --metrics-csv F also write the metrics reports to CSV file F\n"
+			+ "  --async-output write output on a background thread\n"
+			+ "  --binary       write a single run's trajectory in binary form\n"
+			+ "  --sample DT    output tracked species every DT time units only\n"
+			+ "  --checkpoint F save progress to file F, for --resume\n"
+			+ "  --checkpoint-every SECONDS\n"
+			+ "                 time between checkpoints (default 60)\n"
+			+ "  --resume       continue the job saved in the --checkpoint file\n"
+			+ "  --set NAME=VALUE\n"
+			+ "                 change a model parameter: time, Sn (initial population\n"
+			+ "                 of species n), or Rk (rate of reaction k); repeatable\n"
+			+ "  --sweep Rk=V1,V2,...|Rk=LO:HI:N[:log]\n"
+			+ "                 repeat the runs for each rate of reaction k, with the\n"
+			+ "                 same random numbers, and write one summary table;\n"
+			+ "                 repeat for a grid over several rates\n"
+			+ "  --engine E     simulation engine: nrm (default), direct,\n"
+			+ "                 direct-tree, pdm, pdm-tree, cr, tau (approximate)";
+
+	/**
+	 * The number of runs to simulate.
+	 */
+	private int numRuns = 0;
+
+	/**
+	 * The file name of the input model.
+	 */
+	private String inputFile = null;
+
+	/**
+	 * The file name for the output.
+	 */
+	private String outputFile = null;
+
+	/**
+	 * The number of worker threads for multiple runs.
+	 */
+	private int threads = 1;
+
+	/**
+	 * The base seed for the random numbers.  Taken from the clock unless
+	 * given on the command line.
+	 */
+	private long seed = System.nanoTime();
+
+	/**
+	 * Whether or not the seed was given on the command line.
+	 */
+	private boolean seedGiven = false;
+
+	/**
+	 * The first and last run to simulate, or zero for all of them.
+	 */
+	private int firstRun = 0;
+	private int lastRun = 0;
+
+	/**
+	 * The file name for partial statistics, or null for none.
+	 */
+	private String partialFile = null;
+
+	/**
+	 * Whether or not to output standard errors and confidence intervals.
+	 */
+	private boolean intervals = false;
+
+	/**
+	 * The relative standard error to stop at, or zero to do every run.
+	 */
+	private double targetError = 0;
+
+	/**
+	 * Whether or not to report model load and build times.
+	 */
+	private boolean timing = false;
+
+	/**
+	 * The time between metrics reports in seconds, zero for only a final
+	 * report, or negative for no metrics.
+	 */
+	private double metricsInterval = -1;
+
+	/**
+	 * The file name for metrics reports in CSV form, or null for none.
+	 */
+	private String metricsFile = null;
+
+	/**
+	 * Whether or not to write the output file on a background thread.
+	 */
+	private boolean asyncOutput = false;
+
+	/**
+	 * Whether or not to write a single run's trajectory in binary form.
+	 */
+	private boolean binary = false;
+
+	/**
+	 * The time between sampled outputs, or zero to output every change.
+	 */
+	private double sampleInterval = 0;
+
+	/**
+	 * The file name for checkpoints, or null for none.
+	 */
+	private String checkpointFile = null;
+
+	/**
+	 * The time between checkpoints, in seconds.
+	 */
+	private double checkpointInterval = 60;
+
+	/**
+	 * Whether or not to resume from the checkpoint file.
+	 */
+	private boolean resume = false;
+
+	/**
+	 * The model parameters to change, as "NAME=VALUE", see Model.override().
+	 */
+	private List<String> settings = new ArrayList<String>();
+
+	/**
+	 * The rates to sweep over, as "Rk=VALUES", see Sweep.
+	 */
+	private List<String> sweeps = new ArrayList<String>();
+
+	/**
+	 * The simulation engine to use.
+	 */
+	private EngineType engine = EngineType.NEXT_REACTION;
+
+	/**
+	 * Parses the given command-line arguments.
+	 *
+	 * @param args
+	 * 			the command line arguments
+	 * @return
+	 * 			the parsed Options
+	 * @throws IllegalArgumentException
+	 * 			if the arguments are not valid
+	 */
+	public static Options parse(String[] args) {
+		Options options = new Options();
+		int i = 0;
+
+		// Read optional flags
+		while (i < args.length && args[i].startsWith("--")) {
+			String flag = args[i];
+
+			// Flags without values
+			if (flag.equals("--ci") || flag.equals("--timing") || flag.equals("--async-output")
+					|| flag.equals("--binary") || flag.equals("--resume")) {
+				options.intervals |= flag.equals("--ci");
+				options.timing |= flag.equals("--timing");
+				options.asyncOutput |= flag.equals("--async-output");
+				options.binary |= flag.equals("--binary");
+				options.resume |= flag.equals("--resume");
+				i++;
+				continue;
+			}
+
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + flag);
+			}
+			String value = args[i + 1];
+			if (flag.equals("--threads")) {
+				options.threads = Integer.parseInt(value);
+				if (options.threads <= 0) {
+					options.threads = Runtime.getRuntime().availableProcessors();
+				}
+			} else if (flag.equals("--engine")) {
+				options.engine = EngineType.fromName(value);
+			} else if (flag.equals("--seed")) {
+				options.seed = Long.parseLong(value);
+				options.seedGiven = true;
+			} else if (flag.equals("--runs")) {
+				int dash = value.indexOf('-', 1);
+				if (dash < 0) {
+					throw new IllegalArgumentException("Run range must be A-B");
+				}
+				options.firstRun = Integer.parseInt(value.substring(0, dash));
+				options.lastRun = Integer.parseInt(value.substring(dash + 1));
+			} else if (flag.equals("--partial")) {
+				options.partialFile = value;
+			} else if (flag.equals("--sample")) {
+				options.sampleInterval = Double.parseDouble(value);
+				if (!(options.sampleInterval > 0)) {
+					throw new IllegalArgumentException("Sample interval must be positive");
+				}
+			} else if (flag.equals("--target-rse")) {
+				options.targetError = Double.parseDouble(value);
+				if (!(options.targetError > 0)) {
+					throw new IllegalArgumentException("Target error must be positive");
+				}
+			} else if (flag.equals("--metrics")) {
+				options.metricsInterval = Double.parseDouble(value);
+				if (!(options.metricsInterval >= 0)) {
+					throw new IllegalArgumentException("Metrics interval must not be negative");
+				}
+			} else if (flag.equals("--metrics-csv")) {
+				options.metricsFile = value;
+			} else if (flag.equals("--set")) {
+				if (value.indexOf('=') < 1) {
+					throw new IllegalArgumentException("Setting must be NAME=VALUE");
+				}
+				options.settings.add(value);
+			} else if (flag.equals("--sweep")) {
+				if (!value.startsWith("R") || value.indexOf('=') < 2) {
+					throw new IllegalArgumentException("Sweep must be Rk=VALUES");
+				}
+				options.sweeps.add(value);
+			} else if (flag.equals("--checkpoint")) {
+				options.checkpointFile = value;
+			} else if (flag.equals("--checkpoint-every")) {
+				options.checkpointInterval = Double.parseDouble(value);
+				if (!(options.checkpointInterval >= 0)) {
+					throw new IllegalArgumentException("Checkpoint interval must not be negative");
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option " + flag);
+			}
+			i += 2;
+		}
+
+		if (options.binary && options.sampleInterval > 0) {
+			throw new IllegalArgumentException("--binary can not be used with --sample");
+		}
+		if (options.binary && options.checkpointFile != null) {
+			throw new IllegalArgumentException("--binary can not be used with --checkpoint");
+		}
+		if (options.metricsFile != null && options.metricsInterval < 0) {
+			throw new IllegalArgumentException("--metrics-csv needs --metrics");
+		}
+		if (options.resume && options.checkpointFile == null) {
+			throw new IllegalArgumentException("--resume needs --checkpoint");
+		}
+
+		// Read required arguments
+		if (args.length - i != 3) {
+			throw new IllegalArgumentException("Wrong number of arguments");
+		}
+		options.numRuns = Integer.parseInt(args[i]);
+		options.inputFile = args[i + 1];
+		options.outputFile = args[i + 2];
+		if (options.binary && options.numRuns != 1) {
+			throw new IllegalArgumentException("--binary needs a single run");
+		}
+
+		// A sweep is a whole job of its own, summed up in one table
+		if (!options.sweeps.isEmpty()) {
+			if (options.numRuns < 2) {
+				throw new IllegalArgumentException("--sweep needs at least two runs");
+			}
+			if (options.firstRun != 0 || options.targetError > 0 || options.sampleInterval > 0
+					|| options.binary || options.checkpointFile != null) {
+				throw new IllegalArgumentException("--sweep can not be used with --runs, "
+						+ "--target-rse, --sample, --binary, or --checkpoint");
+			}
+		}
+
+		// A run range is part of a bigger job, and needs its seed
+		if (options.firstRun == 0) {
+			if (options.partialFile != null) {
+				throw new IllegalArgumentException("--partial needs --runs");
+			}
+			options.firstRun = 1;
+			options.lastRun = options.numRuns;
+		} else {
+			if (options.numRuns < 2 || options.firstRun < 1 || options.lastRun < options.firstRun
+					|| options.lastRun > options.numRuns) {
+				throw new IllegalArgumentException("Bad run range");
+			}
+			if (!options.seedGiven) {
+				throw new IllegalArgumentException("--runs needs --seed");
+			}
+			if (options.targetError > 0) {
+				throw new IllegalArgumentException("--runs can not be used with --target-rse");
+			}
+			if (options.partialFile == null) {
+				options.partialFile = options.outputFile + ".partial";
+			}
+		}
+
+		return options;
+	}
+
+	/**
+	 * Returns the number of runs to simulate.
+	 *
+	 * @return
+	 * 			the number of runs
+	 */
+	public int getNumRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * Returns the file name of the input model.
+	 *
+	 * @return
+	 * 			the input file name
+	 */
+	public String getInputFile() {
+		return inputFile;
+	}
+
+	/**
+	 * Returns the file name for the output.
+	 *
+	 * @return
+	 * 			the output file name
+	 */
+	public String getOutputFile() {
+		return outputFile;
+	}
+
+	/**
+	 * Returns the number of worker threads for multiple runs.
+	 *
+	 * @return
+	 * 			the number of threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns the base seed for the random numbers.
+	 *
+	 * @return
+	 * 			the base seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Returns the first run to simulate.
+	 *
+	 * @return
+	 * 			the first run number, starting at one
+	 */
+	public int getFirstRun() {
+		return firstRun;
+	}
+
+	/**
+	 * Returns the last run to simulate.
+	 *
+	 * @return
+	 * 			the last run number
+	 */
+	public int getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Returns the file name for partial statistics, which are written
+	 * instead of the summary when only a range of the runs is simulated.
+	 *
+	 * @return
+	 * 			the partial statistics file name, or null for a whole job
+	 */
+	public String getPartialFile() {
+		return partialFile;
+	}
+
+	/**
+	 * Returns whether or not to output standard errors and confidence
+	 * intervals for multiple runs.
+	 *
+	 * @return
+	 * 			true if intervals are wanted, false otherwise
+	 */
+	public boolean getIntervals() {
+		return intervals;
+	}
+
+	/**
+	 * Returns the relative standard error at which to stop doing runs.
+	 *
+	 * @return
+	 * 			the target relative standard error, or zero to do every run
+	 */
+	public double getTargetError() {
+		return targetError;
+	}
+
+	/**
+	 * Returns the simulation engine to use.
+	 *
+	 * @return
+	 * 			the engine type
+	 */
+	public EngineType getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Returns the model parameters to change, see Model.override().
+	 *
+	 * @return
+	 * 			the settings as "NAME=VALUE", in command-line order
+	 */
+	public List<String> getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Returns the rates to sweep over, see Sweep.
+	 *
+	 * @return
+	 * 			the sweeps as "Rk=VALUES", in command-line order, or an empty
+	 * 			list for an ordinary job
+	 */
+	public List<String> getSweeps() {
+		return sweeps;
+	}
+
+	/**
+	 * Returns whether or not to report model load and build times.
+	 *
+	 * @return
+	 * 			true if timing is wanted, false otherwise
+	 */
+	public boolean getTiming() {
+		return timing;
+	}
+
+	/**
+	 * Returns the time between metrics reports.
+	 *
+	 * @return
+	 * 			the report interval in seconds, zero for only a final report,
+	 * 			or negative if metrics are off
+	 */
+	public double getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * Returns the file name for metrics reports in CSV form.
+	 *
+	 * @return
+	 * 			the CSV file name, or null for none
+	 */
+	public String getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * Returns whether or not to write the output file on a background thread.
+	 *
+	 * @return
+	 * 			true if output is written asynchronously, false otherwise
+	 */
+	public boolean getAsyncOutput() {
+		return asyncOutput;
+	}
+
+	/**
+	 * Returns whether or not to write a single run's trajectory in binary
+	 * form, see BinaryTrajectoryWriter.
+	 *
+	 * @return
+	 * 			true for binary output, false for text
+	 */
+	public boolean getBinary() {
+		return binary;
+	}
+
+	/**
+	 * Returns the time between sampled outputs of the tracked species.
+	 *
+	 * @return
+	 * 			the sample interval, or zero to output every change
+	 */
+	public double getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Returns the file name for checkpoints.
+	 *
+	 * @return
+	 * 			the checkpoint file name, or null for no checkpoints
+	 */
+	public String getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * Returns the time between checkpoints.
+	 *
+	 * @return
+	 * 			the checkpoint interval in seconds
+	 */
+	public double getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Returns whether or not to resume from the checkpoint file.
+	 *
+	 * @return
+	 * 			true to resume, false to start from the beginning
+	 */
+	public boolean getResume() {
+		return resume;
+	}
+}
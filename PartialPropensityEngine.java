@@ -0,0 +1,657 @@
+import java.io.*;
+
+/**
+ * This class runs the partial-propensity direct method (PDM) of Ramaswamy,
+ * Gonzalez-Segredo, and Sbalzarini for a single Model.  It is the direct
+ * method with the propensities factored by species, so the work per event
+ * depends on the species a reaction changes instead of on how many reactions
+ * use them.
+ *
+ * Every reaction is put in the group of one of its reactants, the one with
+ * the lowest index, or in group zero if it has none.  Its partial propensity
+ * is its propensity without that reactant's leading factor: k for S -> ...,
+ * k * (a - 1) for 2A, k * b for A + B with A in the lower index, and so on
+ * with falling factorials for higher orders.  The total of group i is n_i
+ * times the sum of its partial propensities, and the total propensity is the
+ * sum of the group totals.  A step picks a group by its total, then a
+ * reaction in the group by its partial propensity.
+ *
+ * When a reaction fires, each species it changes only rescales its own
+ * group's total and recalculates the partial propensities that use it.
+ * For the four ReactionTypes, a species is only in the partial propensity
+ * of the A + B reactions it is the B of, and of its own 2A reactions, so
+ * those are all that are recalculated, not every reaction in the dependency
+ * graph.
+ *
+ * The group can be picked with a linear search over the groups, as in the
+ * original method, which is fastest for few species, or with a binary sum
+ * tree over them, which keeps the search and updates at O(log n) for many.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class PartialPropensityEngine implements SimulationEngine {
+
+	/**
+	 * The number of events after which the group sums and the total are
+	 * added up again from the partial propensities, so round-off does not
+	 * build up.
+	 */
+	private static final int RESUM_EVENTS = 1 << 16;
+
+	/**
+	 * How far below the last full sum the total may fall before everything
+	 * is added up again at once, so a total that should be zero is not left
+	 * as round-off.
+	 */
+	private static final double RESUM_FRACTION = 1e-9;
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the Model's compiled reactions, shared with other engines.
+	 */
+	private CompiledNetwork network;
+
+	/**
+	 * This is an array of length numSpecies that is used to keep track of
+	 * the current species values.
+	 */
+	private int[] species;
+
+	/**
+	 * The reactions in group order, in CSR form: group g holds the reactions
+	 * slotReaction[groupStart[g]] up to slotReaction[groupStart[g + 1]].
+	 * Group zero is for reactions with no reactants, and group s + 1 for
+	 * species s.  Each position in this order is a slot.
+	 */
+	private int[] groupStart, slotReaction;
+
+	/**
+	 * The group of each slot, and the rate of its reaction.
+	 */
+	private int[] slotGroup;
+	private double[] slotRate;
+
+	/**
+	 * The factors of each slot's partial propensity in CSR form.  Factor f
+	 * is the population of factorSpecies[f] less factorOffset[f].
+	 */
+	private int[] factorStart, factorSpecies, factorOffset;
+
+	/**
+	 * The slots whose partial propensities use each species, in CSR form.
+	 */
+	private int[] usedStart, usedSlot;
+
+	/**
+	 * The current partial propensity of each slot.
+	 */
+	private double[] partials;
+
+	/**
+	 * The sum of the partial propensities of each group, the number of them
+	 * that are not zero, and the total of each group.
+	 */
+	private double[] lambda;
+	private int[] live;
+	private double[] sigma;
+
+	/**
+	 * This is the sum of the group totals, used with the linear search.
+	 */
+	private double total;
+
+	/**
+	 * The total when the sums were last added up in full, and the number of
+	 * events since then.
+	 */
+	private double lastSum;
+	private int sinceSum;
+
+	/**
+	 * This is the number of slots with a partial propensity above zero.  The
+	 * run is over once it is zero.
+	 */
+	private int liveSlots;
+
+	/**
+	 * This is the binary sum tree over the group totals, or null for the
+	 * linear search, laid out as in DirectMethodEngine.
+	 */
+	private double[] tree = null;
+
+	/**
+	 * This is the number of leaves in the sum tree, a power of two.
+	 */
+	private int leaves;
+
+	/**
+	 * This is the part of the search target that falls within the group
+	 * found by the last search.
+	 */
+	private double within;
+
+	/**
+	 * This is an array of length numReactions counting how often each
+	 * reaction has fired in the current run.
+	 */
+	private int[] fired;
+
+	/**
+	 * This represents the current time, which starts at zero and ticks
+	 * up to the simulation time.
+	 */
+	private double time = 0;
+
+	/**
+	 * This is set once nothing can fire anymore, which ends the run early.
+	 */
+	private boolean done = false;
+
+	/**
+	 * This is the engine's own random number generator.
+	 */
+	private RandomStream random = new RandomStream(0, 0);
+
+	/**
+	 * This is the listener for tracked species changes, or null if nobody
+	 * needs to know.
+	 */
+	private SpeciesListener listener = null;
+
+	/**
+	 * These count events, group total updates, and partial propensity
+	 * recalculations since the last flush to Metrics.  Only counted when
+	 * Metrics.ENABLED.
+	 */
+	private long events, groupUpdates, recalculated;
+
+	/**
+	 * Creates a new PartialPropensityEngine for the given Model, and sorts
+	 * its reactions into groups.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 * @param useTree
+	 * 			true to search the groups with a sum tree, false for a
+	 * 			linear search
+	 */
+	public PartialPropensityEngine(Model m, boolean useTree) {
+		model = m;
+		network = m.getNetwork();
+		int numSpecies = network.getNumSpecies();
+		int numReactions = network.getNumReactions();
+		int numGroups = numSpecies + 1;
+		int[] reactantStart = network.getReactantStart();
+		int[] reactantIndex = network.getReactantIndex();
+		species = new int[numSpecies];
+		fired = new int[numReactions];
+
+		// Put each reaction in the group of its lowest reactant
+		int[] group = new int[numReactions];
+		groupStart = new int[numGroups + 1];
+		for (int j = 0; j < numReactions; j++) {
+			int lowest = -1;
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				if (lowest < 0 || reactantIndex[k] < lowest) {
+					lowest = reactantIndex[k];
+				}
+			}
+			group[j] = lowest + 1;
+			groupStart[group[j] + 1]++;
+		}
+		for (int g = 0; g < numGroups; g++) {
+			groupStart[g + 1] += groupStart[g];
+		}
+
+		// Fill the slots in group order, with each group in reaction order
+		int[] next = new int[numGroups];
+		System.arraycopy(groupStart, 0, next, 0, numGroups);
+		slotReaction = new int[numReactions];
+		slotGroup = new int[numReactions];
+		slotRate = new double[numReactions];
+		for (int j = 0; j < numReactions; j++) {
+			int slot = next[group[j]]++;
+			slotReaction[slot] = j;
+			slotGroup[slot] = group[j];
+			slotRate[slot] = network.getRate(j);
+		}
+
+		// Every reactant but the group's first one is a factor, falling for repeats in a term
+		factorStart = new int[numReactions + 1];
+		for (int slot = 0; slot < numReactions; slot++) {
+			int j = slotReaction[slot];
+			int order = reactantStart[j + 1] - reactantStart[j];
+			factorStart[slot + 1] = factorStart[slot] + Math.max(0, order - 1);
+		}
+		int[] reactantOffset = network.getReactantOffset();
+		factorSpecies = new int[factorStart[numReactions]];
+		factorOffset = new int[factorSpecies.length];
+		for (int slot = 0; slot < numReactions; slot++) {
+			int j = slotReaction[slot];
+			int owner = slotGroup[slot] - 1;
+			boolean skipped = false;
+			int f = factorStart[slot];
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				int s = reactantIndex[k];
+				if (s == owner && !skipped) {
+					skipped = true;
+					continue;
+				}
+				factorSpecies[f] = s;
+				factorOffset[f] = reactantOffset[k];
+				f++;
+			}
+		}
+
+		// Link each species to the slots that use it, once per slot
+		usedStart = new int[numSpecies + 1];
+		for (int slot = 0; slot < numReactions; slot++) {
+			for (int f = factorStart[slot]; f < factorStart[slot + 1]; f++) {
+				if (firstFactor(slot, f)) {
+					usedStart[factorSpecies[f] + 1]++;
+				}
+			}
+		}
+		for (int s = 0; s < numSpecies; s++) {
+			usedStart[s + 1] += usedStart[s];
+		}
+		usedSlot = new int[usedStart[numSpecies]];
+		System.arraycopy(usedStart, 0, next, 0, numSpecies);
+		for (int slot = 0; slot < numReactions; slot++) {
+			for (int f = factorStart[slot]; f < factorStart[slot + 1]; f++) {
+				if (firstFactor(slot, f)) {
+					usedSlot[next[factorSpecies[f]]++] = slot;
+				}
+			}
+		}
+
+		partials = new double[numReactions];
+		lambda = new double[numGroups];
+		live = new int[numGroups];
+		sigma = new double[numGroups];
+		if (useTree) {
+			leaves = 1;
+			while (leaves < numGroups) {
+				leaves *= 2;
+			}
+			tree = new double[2 * leaves];
+		}
+	}
+
+	/**
+	 * Returns whether or not the given factor is the first of its slot with
+	 * its species.
+	 *
+	 * @param slot
+	 * 			the slot
+	 * @param f
+	 * 			the factor, in the slot's row
+	 * @return
+	 * 			true if no earlier factor in the row is the same species
+	 */
+	private boolean firstFactor(int slot, int f) {
+		for (int e = factorStart[slot]; e < f; e++) {
+			if (factorSpecies[e] == factorSpecies[f]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void setListener(SpeciesListener l) {
+		listener = l;
+	}
+
+	@Override
+	public void reset(long seed, int run) {
+		int[] initialSpecies = model.getInitialSpecies();
+		time = 0;
+		done = false;
+		random.setRun(seed, run);
+
+		// Reset species to initial values
+		for (int j = 0; j < species.length; j++) {
+			species[j] = initialSpecies[j];
+		}
+		for (int i = 0; i < fired.length; i++) {
+			fired[i] = 0;
+		}
+
+		// Calculate all partial propensities, then the group sums
+		for (int slot = 0; slot < partials.length; slot++) {
+			partials[slot] = partial(slot);
+		}
+		sumGroups();
+	}
+
+	/**
+	 * Sums the partial propensities into the group sums and totals, and
+	 * builds the sum tree from them.  Sums kept up to date in between drift
+	 * by round-off, so this is done again every so often.
+	 */
+	private void sumGroups() {
+		total = 0;
+		liveSlots = 0;
+		for (int g = 0; g < lambda.length; g++) {
+			double sum = 0;
+			int count = 0;
+			for (int slot = groupStart[g]; slot < groupStart[g + 1]; slot++) {
+				sum += partials[slot];
+				if (partials[slot] > 0) {
+					count++;
+				}
+			}
+			lambda[g] = sum;
+			live[g] = count;
+			liveSlots += count;
+			sigma[g] = multiplier(g) * sum;
+			total += sigma[g];
+		}
+		if (tree != null) {
+			for (int i = 0; i < leaves; i++) {
+				tree[leaves + i] = i < sigma.length ? sigma[i] : 0;
+			}
+			for (int i = leaves - 1; i >= 1; i--) {
+				tree[i] = tree[2 * i] + tree[2 * i + 1];
+			}
+		}
+		lastSum = tree == null ? total : tree[1];
+		sinceSum = 0;
+	}
+
+	@Override
+	public void run() {
+		advance(Long.MAX_VALUE);
+	}
+
+	@Override
+	public boolean advance(long maxSteps) {
+		int simulationTime = model.getSimulationTime();
+		int[] changeStart = network.getChangeStart();
+		int[] changeSpecies = network.getChangeSpecies();
+		boolean[] touchesTracked = network.getTouchesTracked();
+
+		for (long step = 0; step < maxSteps && !done && time < simulationTime; step++) {
+
+			// Nothing can fire anymore
+			double sum = tree == null ? total : tree[1];
+			if (liveSlots == 0 || sum <= 0) {
+				done = true;
+				break;
+			}
+
+			// Advance to the next event and test for simulation end
+			time += random.nextExponential(sum);
+			if (time > simulationTime) {
+				break;
+			}
+
+			// Choose a group, then a reaction in it, and fire it
+			int g = tree == null ? searchLinear(random.nextDouble() * sum)
+					: searchTree(random.nextDouble() * sum);
+			int current = slotReaction[searchGroup(g, within / multiplier(g))];
+			fired[current]++;
+			network.fire(current, species);
+			if (Metrics.ENABLED) {
+				events++;
+			}
+
+			// Rescale the changed species' groups and the partials that use them
+			for (int k = changeStart[current]; k < changeStart[current + 1]; k++) {
+				int s = changeSpecies[k];
+				updateGroup(s + 1);
+				for (int u = usedStart[s]; u < usedStart[s + 1]; u++) {
+					int slot = usedSlot[u];
+					double old = partials[slot];
+					double partial = partial(slot);
+					if (partial != old) {
+						partials[slot] = partial;
+						int group = slotGroup[slot];
+						int count = (partial > 0 ? 1 : 0) - (old > 0 ? 1 : 0);
+						live[group] += count;
+						liveSlots += count;
+
+						// An empty group is set back to exactly zero
+						lambda[group] = live[group] == 0 ? 0 : lambda[group] + (partial - old);
+						updateGroup(group);
+					}
+				}
+				if (Metrics.ENABLED) {
+					recalculated += usedStart[s + 1] - usedStart[s];
+				}
+			}
+
+			// Add the sums up again once in a while, or when the total nears zero
+			if (++sinceSum >= RESUM_EVENTS
+					|| (tree == null ? total : tree[1]) <= RESUM_FRACTION * lastSum) {
+				sumGroups();
+			}
+
+			// Output for tracked species changes
+			if (touchesTracked[current] && listener != null) {
+				listener.speciesChanged(time, species);
+			}
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().record(events, groupUpdates, recalculated, 0, random.takeDraws());
+			events = groupUpdates = recalculated = 0;
+		}
+		return done || time >= simulationTime;
+	}
+
+	/**
+	 * Returns the partial propensity of the given slot at the current
+	 * populations.
+	 *
+	 * @param slot
+	 * 			the slot
+	 * @return
+	 * 			the partial propensity, zero or more
+	 */
+	private double partial(int slot) {
+		double partial = slotRate[slot];
+		for (int f = factorStart[slot]; f < factorStart[slot + 1]; f++) {
+			int factor = species[factorSpecies[f]] - factorOffset[f];
+			if (factor <= 0) {
+				return 0;
+			}
+			partial *= factor;
+		}
+		return partial;
+	}
+
+	/**
+	 * Returns the population that multiplies the partial propensities of
+	 * the given group.
+	 *
+	 * @param g
+	 * 			the group
+	 * @return
+	 * 			the population of the group's species, or one for group zero
+	 */
+	private int multiplier(int g) {
+		return g == 0 ? 1 : species[g - 1];
+	}
+
+	/**
+	 * Recalculates the total of the given group from its sum and population,
+	 * and updates the overall total or the sum tree.
+	 *
+	 * @param g
+	 * 			the group
+	 */
+	private void updateGroup(int g) {
+		double value = multiplier(g) * lambda[g];
+		if (value == sigma[g]) {
+			return;
+		}
+		if (Metrics.ENABLED) {
+			groupUpdates++;
+		}
+		if (tree == null) {
+			total += value - sigma[g];
+		} else {
+			int pos = leaves + g;
+			tree[pos] = value;
+			for (pos /= 2; pos >= 1; pos /= 2) {
+				tree[pos] = tree[2 * pos] + tree[2 * pos + 1];
+			}
+		}
+		sigma[g] = value;
+	}
+
+	/**
+	 * Finds the group whose slice of the cumulative total holds the given
+	 * target, by walking the group totals in order, and leaves the part of
+	 * the target within the group in the within field.
+	 *
+	 * @param target
+	 * 			a value in (0, total]
+	 * @return
+	 * 			the chosen group
+	 */
+	private int searchLinear(double target) {
+		int last = 0;
+		for (int g = 0; g < sigma.length; g++) {
+			double value = sigma[g];
+			if (value > 0) {
+				last = g;
+				if (target <= value) {
+					within = target;
+					return g;
+				}
+				target -= value;
+			}
+		}
+
+		// Round-off left the target just past the end
+		within = sigma[last];
+		return last;
+	}
+
+	/**
+	 * Finds the group whose slice of the cumulative total holds the given
+	 * target, by walking down the sum tree, and leaves the part of the
+	 * target within the group in the within field.
+	 *
+	 * @param target
+	 * 			a value in (0, tree[1]]
+	 * @return
+	 * 			the chosen group
+	 */
+	private int searchTree(double target) {
+		int pos = 1;
+		while (pos < leaves) {
+			int left = 2 * pos;
+			if (target <= tree[left] || tree[left + 1] <= 0) {
+				pos = left;
+			} else {
+				target -= tree[left];
+				pos = left + 1;
+			}
+		}
+		within = Math.min(target, tree[pos]);
+		return pos - leaves;
+	}
+
+	/**
+	 * Finds the slot of the given group whose slice of the cumulative sum of
+	 * partial propensities holds the given target.
+	 *
+	 * @param g
+	 * 			the group
+	 * @param target
+	 * 			a value in (0, lambda[g]]
+	 * @return
+	 * 			the chosen slot
+	 */
+	private int searchGroup(int g, double target) {
+		int last = -1;
+		for (int slot = groupStart[g]; slot < groupStart[g + 1]; slot++) {
+			if (partials[slot] > 0) {
+				target -= partials[slot];
+				last = slot;
+				if (target <= 0) {
+					return slot;
+				}
+			}
+		}
+
+		// Round-off left the target just past the end
+		return last;
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(time);
+		out.writeBoolean(done);
+		for (int j = 0; j < species.length; j++) {
+			out.writeInt(species[j]);
+		}
+		for (int i = 0; i < fired.length; i++) {
+			out.writeInt(fired[i]);
+		}
+
+		// The sums as they are, since adding them up again rounds differently
+		for (int g = 0; g < lambda.length; g++) {
+			out.writeDouble(lambda[g]);
+		}
+		out.writeDouble(total);
+		out.writeDouble(lastSum);
+		out.writeInt(sinceSum);
+		random.save(out);
+	}
+
+	@Override
+	public void restore(DataInput in) throws IOException {
+		time = in.readDouble();
+		done = in.readBoolean();
+		for (int j = 0; j < species.length; j++) {
+			species[j] = in.readInt();
+		}
+		for (int i = 0; i < fired.length; i++) {
+			fired[i] = in.readInt();
+		}
+		for (int slot = 0; slot < partials.length; slot++) {
+			partials[slot] = partial(slot);
+		}
+		sumGroups();
+		for (int g = 0; g < lambda.length; g++) {
+			lambda[g] = in.readDouble();
+			sigma[g] = multiplier(g) * lambda[g];
+			if (tree != null) {
+				tree[leaves + g] = sigma[g];
+			}
+		}
+		if (tree != null) {
+			for (int i = leaves - 1; i >= 1; i--) {
+				tree[i] = tree[2 * i] + tree[2 * i + 1];
+			}
+		}
+		total = in.readDouble();
+		lastSum = in.readDouble();
+		sinceSum = in.readInt();
+		random.restore(in);
+	}
+
+	@Override
+	public int[] getSpecies() {
+		return species;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public int getFired(int reaction) {
+		return fired[reaction];
+	}
+}
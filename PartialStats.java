@@ -0,0 +1,340 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * This class holds the statistics of a range of runs of a bigger job, so an
+ * ensemble can be split over several processes or machines and put back
+ * together afterwards.  Run k always uses the random substream for the base
+ * seed and k, so runs 1 to 250000 in one process and 250001 to 500000 in
+ * another are the very same runs as 1 to 500000 in one process.
+ *
+ * Chem writes a PartialStats file for --runs A-B instead of the summary.
+ * The main method merges any number of them into the same summary a single
+ * process would give, up to floating-point rounding:
+ *     java PartialStats [--ci] OUTPUT_FILE PARTIAL_FILE ...
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class PartialStats {
+
+	/**
+	 * File format marker ("CHMP") and version.
+	 */
+	private static final int MAGIC = 0x43484D50;
+	private static final int VERSION = 1;
+
+	/**
+	 * The base seed of the job.
+	 */
+	private long seed;
+
+	/**
+	 * The name of the engine type, see EngineType.getName().
+	 */
+	private String engine;
+
+	/**
+	 * The number of runs of the whole job.
+	 */
+	private int numRuns;
+
+	/**
+	 * The size of the model, to catch merging results of different models.
+	 */
+	private int numSpecies, numReactions;
+
+	/**
+	 * The species numbers of the tracked species, in display order, as
+	 * they are written in the output.
+	 */
+	private int[] labels;
+
+	/**
+	 * The first and last run of the range.
+	 */
+	private int firstRun, lastRun;
+
+	/**
+	 * The statistics of the runs in the range.
+	 */
+	private RunningStats stats;
+
+	/**
+	 * Creates a new PartialStats.
+	 *
+	 * @param seed
+	 * 			the base seed of the job
+	 * @param engine
+	 * 			the name of the engine type
+	 * @param numRuns
+	 * 			the number of runs of the whole job
+	 * @param model
+	 * 			the Model being simulated
+	 * @param firstRun
+	 * 			the first run of the range
+	 * @param lastRun
+	 * 			the last run of the range
+	 * @param stats
+	 * 			the statistics of the runs in the range
+	 */
+	public PartialStats(long seed, String engine, int numRuns, Model model, int firstRun,
+			int lastRun, RunningStats stats) {
+		this.seed = seed;
+		this.engine = engine;
+		this.numRuns = numRuns;
+		this.numSpecies = model.getNetwork().getNumSpecies();
+		this.numReactions = model.getNetwork().getNumReactions();
+		this.labels = model.getDisplays().clone();
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] += model.getMinIndex();
+		}
+		this.firstRun = firstRun;
+		this.lastRun = lastRun;
+		this.stats = stats;
+	}
+
+	/**
+	 * Creates an empty PartialStats, to be filled in by read().
+	 */
+	private PartialStats() {
+	}
+
+	/**
+	 * Writes the partial statistics to the given file.
+	 *
+	 * @param fileName
+	 * 			the file name for writing
+	 * @throws IOException
+	 * 			if the file could not be written
+	 */
+	public void write(String fileName) throws IOException {
+		CheckedOutputStream checked = new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(fileName)), new CRC32());
+		DataOutputStream data = new DataOutputStream(checked);
+		try {
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(seed);
+			data.writeUTF(engine);
+			data.writeInt(numRuns);
+			data.writeInt(numSpecies);
+			data.writeInt(numReactions);
+			data.writeInt(firstRun);
+			data.writeInt(lastRun);
+			data.writeInt(labels.length);
+			for (int label : labels) {
+				data.writeInt(label);
+			}
+			stats.save(data);
+			data.writeLong(checked.getChecksum().getValue());
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Reads partial statistics from the given file.
+	 *
+	 * @param fileName
+	 * 			the file name for reading
+	 * @return
+	 * 			the partial statistics
+	 * @throws IOException
+	 * 			if the file could not be read or is not valid
+	 */
+	public static PartialStats read(String fileName) throws IOException {
+		PartialStats p = new PartialStats();
+		CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(fileName)), new CRC32());
+		DataInputStream data = new DataInputStream(checked);
+		try {
+			if (data.readInt() != MAGIC) {
+				throw new IOException("Not a partial statistics file: " + fileName);
+			}
+			int version = data.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported partial statistics version " + version);
+			}
+			p.seed = data.readLong();
+			p.engine = data.readUTF();
+			p.numRuns = data.readInt();
+			p.numSpecies = data.readInt();
+			p.numReactions = data.readInt();
+			p.firstRun = data.readInt();
+			p.lastRun = data.readInt();
+			int size = data.readInt();
+			if (size < 0) {
+				throw new IOException("Bad number of tracked species " + size);
+			}
+			p.labels = new int[size];
+			for (int i = 0; i < size; i++) {
+				p.labels[i] = data.readInt();
+			}
+			p.stats = RunningStats.read(data);
+			long sum = checked.getChecksum().getValue();
+			if (data.readLong() != sum || p.stats.size() != size) {
+				throw new IOException("Partial statistics file is damaged: " + fileName);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Partial statistics file is incomplete: " + fileName);
+		} finally {
+			data.close();
+		}
+		return p;
+	}
+
+	/**
+	 * Returns whether or not this and the given partial statistics come
+	 * from the same job: the same model, seed, engine, and number of runs.
+	 *
+	 * @param other
+	 * 			the other partial statistics
+	 * @return
+	 * 			true if they can be merged, false otherwise
+	 */
+	private boolean sameJob(PartialStats other) {
+		return seed == other.seed && engine.equals(other.engine) && numRuns == other.numRuns
+				&& numSpecies == other.numSpecies && numReactions == other.numReactions
+				&& Arrays.equals(labels, other.labels);
+	}
+
+	/**
+	 * Merges partial statistics of the same job into one, in run order.
+	 * Gaps between the ranges are allowed, but overlaps are not, since
+	 * they would count the same runs twice.
+	 *
+	 * @param parts
+	 * 			the partial statistics to merge, at least one
+	 * @return
+	 * 			the merged statistics, covering the first to the last run
+	 * @throws IOException
+	 * 			if the parts do not belong together
+	 */
+	public static PartialStats merge(List<PartialStats> parts) throws IOException {
+		List<PartialStats> sorted = new ArrayList<PartialStats>(parts);
+		Collections.sort(sorted, new Comparator<PartialStats>() {
+			@Override
+			public int compare(PartialStats a, PartialStats b) {
+				return Integer.compare(a.firstRun, b.firstRun);
+			}
+		});
+
+		PartialStats first = sorted.get(0);
+		PartialStats merged = new PartialStats();
+		merged.seed = first.seed;
+		merged.engine = first.engine;
+		merged.numRuns = first.numRuns;
+		merged.numSpecies = first.numSpecies;
+		merged.numReactions = first.numReactions;
+		merged.labels = first.labels;
+		merged.firstRun = first.firstRun;
+		merged.lastRun = first.firstRun - 1;
+		merged.stats = new RunningStats(first.labels.length);
+		for (PartialStats p : sorted) {
+			if (!p.sameJob(first)) {
+				throw new IOException("Partial statistics are from different jobs");
+			}
+			if (p.firstRun <= merged.lastRun) {
+				throw new IOException("Runs " + p.firstRun + "-" + p.lastRun + " overlap runs "
+						+ merged.firstRun + "-" + merged.lastRun);
+			}
+			merged.stats.merge(p.stats);
+			merged.lastRun = p.lastRun;
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the runs of the whole job that are not covered by the given
+	 * partial statistics, such as "1-10, 21-30".
+	 *
+	 * @param parts
+	 * 			the partial statistics of one job
+	 * @return
+	 * 			the missing runs, or an empty String if there are none
+	 */
+	public static String missingRuns(List<PartialStats> parts) {
+		boolean[] covered = new boolean[parts.get(0).numRuns + 2];
+		covered[0] = true;
+		covered[covered.length - 1] = true;
+		for (PartialStats p : parts) {
+			Arrays.fill(covered, p.firstRun, p.lastRun + 1, true);
+		}
+		StringBuilder missing = new StringBuilder();
+		for (int run = 1; run < covered.length - 1; run++) {
+			if (!covered[run] && covered[run - 1]) {
+				int end = run;
+				while (!covered[end + 1]) {
+					end++;
+				}
+				if (missing.length() > 0) {
+					missing.append(", ");
+				}
+				missing.append(run).append('-').append(end);
+			}
+		}
+		return missing.toString();
+	}
+
+	/**
+	 * Returns the species numbers of the tracked species, in display order.
+	 *
+	 * @return
+	 * 			the species numbers
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Returns the statistics of the runs.
+	 *
+	 * @return
+	 * 			the statistics
+	 */
+	public RunningStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Merges partial statistics files and writes the summary of all their
+	 * runs, the same as a single process running them would.
+	 *
+	 * @param args
+	 * 			"--ci" for confidence intervals, then the output file and
+	 * 			the partial statistics files
+	 */
+	public static void main(String[] args) {
+		int first = args.length > 0 && args[0].equals("--ci") ? 1 : 0;
+		if (args.length - first < 2) {
+			System.out.println("Usage:\nPartialStats [--ci] OUTPUT_FILE PARTIAL_FILE ...");
+			System.exit(0);
+		}
+		try {
+			List<PartialStats> parts = new ArrayList<PartialStats>();
+			for (int i = first + 1; i < args.length; i++) {
+				parts.add(read(args[i]));
+			}
+			PartialStats merged = merge(parts);
+			String missing = missingRuns(parts);
+			if (missing.length() > 0) {
+				System.err.println("Warning: runs " + missing + " of " + merged.numRuns
+						+ " are missing");
+			}
+
+			String output = Chem.summary(merged.stats, merged.labels, first == 1);
+			TrajectoryWriter out = new TrajectoryWriter(new FileOutputStream(args[first]));
+			try {
+				out.append(output);
+			} finally {
+				out.close();
+			}
+			System.out.println(output);
+		} catch (IOException e) {
+			System.out.println("Error merging statistics: " + e.getMessage());
+			System.exit(0);
+		}
+	}
+}
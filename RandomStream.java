@@ -0,0 +1,281 @@
+import java.io.*;
+
+/**
+ * This class is a fast random number generator for the simulation, used in
+ * place of Math.random().  It is the xoshiro256** generator, which is not
+ * synchronized, so each engine keeps its own RandomStream.
+ *
+ * Every run gets its own substream, picked by the base seed and the run
+ * number.  This means run k always sees the same random numbers for a given
+ * seed, no matter which thread runs it or how many threads there are.
+ *
+ * A run can also be split into keyed streams, one for each reaction, whose
+ * draws are picked by index with keyedDouble() instead of in sequence.  Runs
+ * at different parameters then stay in step even when their events come in
+ * a different order, see NextReactionEngine's coupled streams.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class RandomStream {
+
+	/**
+	 * Odd constant used to spread run numbers apart before mixing.  This is
+	 * the golden ratio in 64-bit fixed point, as used by SplitMix64.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * These four longs are the generator state.  They are never all zero.
+	 */
+	private long s0, s1, s2, s3;
+
+	/**
+	 * The number of 64-bit draws since the last takeDraws(), only counted
+	 * when Metrics.ENABLED.
+	 */
+	private long draws = 0;
+
+	/**
+	 * Creates a new RandomStream for the given seed and run number.
+	 *
+	 * @param seed
+	 * 			the base seed for the whole simulation
+	 * @param run
+	 * 			the run number
+	 */
+	public RandomStream(long seed, long run) {
+		setRun(seed, run);
+	}
+
+	/**
+	 * Reseeds the generator to the start of the substream for the given run.
+	 * The state is filled from a SplitMix64 sequence, which never gives
+	 * four zeros in a row.  The sequence starts at a key mixed from the seed
+	 * and the run, so neighbouring runs do not share any of their state, as
+	 * they would if their starts were only a few steps apart.
+	 *
+	 * @param seed
+	 * 			the base seed for the whole simulation
+	 * @param run
+	 * 			the run number
+	 */
+	public void setRun(long seed, long run) {
+		long x = mix(mix(seed) ^ mix(run + 1));
+		s0 = mix(x += GOLDEN_GAMMA);
+		s1 = mix(x += GOLDEN_GAMMA);
+		s2 = mix(x += GOLDEN_GAMMA);
+		s3 = mix(x += GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Returns the key of one of the keyed streams of a run, for keyedDouble().
+	 *
+	 * @param seed
+	 * 			the base seed for the whole simulation
+	 * @param run
+	 * 			the run number
+	 * @param stream
+	 * 			the number of the stream within the run
+	 * @return
+	 * 			the key of the stream
+	 */
+	public static long streamKey(long seed, long run, long stream) {
+		return mix(mix(mix(seed) + run * GOLDEN_GAMMA) + (stream + 1) * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Returns the draw with the given index of a keyed stream, uniform in
+	 * (0, 1].  This is the SplitMix64 sequence started at the key, so the
+	 * draws of a stream can be taken in any order, and do not depend on the
+	 * draws of any other stream.
+	 *
+	 * @param key
+	 * 			the key of the stream, from streamKey()
+	 * @param index
+	 * 			the index of the draw, counting from zero
+	 * @return
+	 * 			a random double in (0, 1]
+	 */
+	public static double keyedDouble(long key, long index) {
+		return ((mix(key + (index + 1) * GOLDEN_GAMMA) >>> 11) + 1) * 0x1.0p-53;
+	}
+
+	/**
+	 * Writes the generator state, so the stream can be continued later
+	 * exactly where it left off.
+	 *
+	 * @param out
+	 * 			the output to write to
+	 * @throws IOException
+	 * 			if the state could not be written
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeLong(s0);
+		out.writeLong(s1);
+		out.writeLong(s2);
+		out.writeLong(s3);
+	}
+
+	/**
+	 * Reads back a generator state written by save().
+	 *
+	 * @param in
+	 * 			the input to read from
+	 * @throws IOException
+	 * 			if the state could not be read
+	 */
+	public void restore(DataInput in) throws IOException {
+		s0 = in.readLong();
+		s1 = in.readLong();
+		s2 = in.readLong();
+		s3 = in.readLong();
+	}
+
+	/**
+	 * SplitMix64 output function, which scrambles the bits of the given value.
+	 *
+	 * @param z
+	 * 			the value to mix
+	 * @return
+	 * 			the mixed value
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns the next 64 random bits and advances the state.
+	 *
+	 * @return
+	 * 			a random long
+	 */
+	public long nextLong() {
+		if (Metrics.ENABLED) {
+			draws++;
+		}
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return result;
+	}
+
+	/**
+	 * Returns the number of 64-bit random numbers drawn since the last call,
+	 * for Metrics, and starts counting again.
+	 *
+	 * @return
+	 * 			the number of draws, or zero if metrics are off
+	 */
+	public long takeDraws() {
+		long n = draws;
+		draws = 0;
+		return n;
+	}
+
+	/**
+	 * Returns a random double in the range (0, 1].  Zero is never returned,
+	 * so the result is always safe to take the log of.
+	 *
+	 * @return
+	 * 			a random double greater than zero
+	 */
+	public double nextDouble() {
+		return ((nextLong() >>> 11) + 1) * 0x1.0p-53;
+	}
+
+	/**
+	 * Returns a random waiting time with the exponential distribution of
+	 * the given propensity.
+	 *
+	 * @param propensity
+	 * 			the rate of the exponential distribution, greater than zero
+	 * @return
+	 * 			the random waiting time
+	 */
+	public double nextExponential(double propensity) {
+		return Math.log(1/nextDouble())/propensity;
+	}
+
+	/**
+	 * Returns a random count with the Poisson distribution of the given mean.
+	 * Small means use Knuth's multiplication method, and larger means use
+	 * Hormann's transformed rejection (PTRS), which takes constant time.
+	 *
+	 * @param mean
+	 * 			the mean of the distribution, zero or more
+	 * @return
+	 * 			the random count
+	 */
+	public long nextPoisson(double mean) {
+		if (mean <= 0) {
+			return 0;
+		}
+
+		// Multiply uniforms until the product drops below exp(-mean)
+		if (mean < 10) {
+			double limit = Math.exp(-mean);
+			double product = nextDouble();
+			long k = 0;
+			while (product > limit) {
+				product *= nextDouble();
+				k++;
+			}
+			return k;
+		}
+
+		// Transformed rejection with squeeze
+		double slam = Math.sqrt(mean);
+		double loglam = Math.log(mean);
+		double b = 0.931 + 2.53 * slam;
+		double a = -0.059 + 0.02483 * b;
+		double invalpha = 1.1239 + 1.1328 / (b - 3.4);
+		double vr = 0.9277 - 3.6224 / (b - 2);
+		while (true) {
+			double u = nextDouble() - 0.5;
+			double v = nextDouble();
+			double us = 0.5 - Math.abs(u);
+			long k = (long) Math.floor((2 * a / us + b) * u + mean + 0.43);
+			if (us >= 0.07 && v <= vr) {
+				return k;
+			}
+			if (k < 0 || (us < 0.013 && v > us)) {
+				continue;
+			}
+			if (Math.log(v) + Math.log(invalpha) - Math.log(a / (us * us) + b)
+					<= -mean + k * loglam - logFactorial(k)) {
+				return k;
+			}
+		}
+	}
+
+	/**
+	 * Returns the natural log of k factorial.  Small values are summed
+	 * directly and larger ones use Stirling's series.
+	 *
+	 * @param k
+	 * 			the value, zero or more
+	 * @return
+	 * 			ln(k!)
+	 */
+	private static double logFactorial(long k) {
+		if (k < 10) {
+			double sum = 0;
+			for (long i = 2; i <= k; i++) {
+				sum += Math.log(i);
+			}
+			return sum;
+		}
+		double x = k + 1;
+		double x2 = x * x;
+		return (x - 0.5) * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI)
+				+ (1.0 / 12 - (1.0 / 360 - 1.0 / (1260 * x2)) / x2) / x;
+	}
+}
@@ -27,6 +27,14 @@ public class Reaction implements Comparable <Reaction> {
 	 */
 	private int[] reactants, products;
 	
+	/**
+	 * This integer array holds, for each reactant, the number of molecules of
+	 * the same species ahead of it in its term, so "2S1" gives 0 and 1 but
+	 * "S1 + S1" gives 0 and 0.  That many are taken off its population when
+	 * calculating propensities.
+	 */
+	private int[] offsets;
+	
 	/**
 	 * This double value represents the next firing time for the reaction.  It
 	 * is an absolute time, based on an offset from the current simulation time.
@@ -41,29 +49,26 @@ public class Reaction implements Comparable <Reaction> {
 	 */
 	private int fired = 0;
 	
-	/**
-	 * This array of Reactions is the dependency table that is used for updating
-	 * propensities and next-times whenever a Reaction fired.  Each entry is a
-	 * Reaction whose reactants are effected by this Reaction's reactants or products.
-	 */
-	private Reaction[] affectedReactions = null;
-	
 	/**
 	 * Creates a new Reaction object.
 	 * 
 	 * @param rRate
 	 * 			the reaction rate of this reaction
 	 * @param rType
-	 * 			the type of reaction this simulates (one, two, three, or four)
+	 * 			the type of reaction this simulates (one, two, three, four, or higher)
 	 * @param reactants
 	 * 			array of index positions for reactants
+	 * @param offsets
+	 * 			array of molecules ahead of each reactant in its term
 	 * @param products
 	 * 			array of index positions for products
 	 */
-	public Reaction(double rRate, ReactionType rType, int[] reactants, int[] products) {
+	public Reaction(double rRate, ReactionType rType, int[] reactants, int[] offsets,
+			int[] products) {
 		rate = rRate;
 		type = rType;
 		this.reactants = reactants;
+		this.offsets = offsets;
 		this.products = products;
 	}
 	
@@ -97,6 +102,17 @@ public class Reaction implements Comparable <Reaction> {
 		return reactants;
 	}
 	
+	/**
+	 * Returns the number of molecules of the same species ahead of each
+	 * reactant in its term.
+	 * 
+	 * @return
+	 * 			an array of offsets, parallel to the reactants
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+	
 	/**
 	 * Returns the array of index positions for the products.
 	 * 
@@ -128,24 +144,32 @@ public class Reaction implements Comparable <Reaction> {
 	}
 	
 	/**
-	 * Returns an array of the reactions that need to be updated from the firing
-	 * event of this specific reaction.
+	 * Calculates the propensity of this reaction for the given species
+	 * populations, based on the reaction type.
 	 * 
+	 * @param species
+	 * 			the current species populations
 	 * @return
-	 * 			an array of Reaction objects that need their times updated
-	 */
-	public Reaction[] getTable() {
-		return affectedReactions;
-	}
-	
-	/**
-	 * Sets the reaction dependent table to the given new table
-	 * 
-	 * @param newAffectedReactions
-	 * 			the new reaction dependency table
-	 */
-	public void setTable(Reaction[] newAffectedReactions) {
-		affectedReactions = newAffectedReactions;
+	 * 			the propensity of this reaction
+	 */
+	public double propensity(int[] species) {
+		double propensity = rate;
+		if (type == ReactionType.RXN_TWO) {
+			propensity *= species[reactants[0]];
+		} else if (type == ReactionType.RXN_THREE) {
+			propensity *= species[reactants[0]];
+			propensity *= (species[reactants[0]] - 1);
+		} else if (type == ReactionType.RXN_FOUR) {
+			propensity *= species[reactants[0]];
+			propensity *= species[reactants[1]];
+		} else if (type == ReactionType.RXN_HIGHER) {
+			
+			// Each repeat of a species in a term counts one fewer molecule
+			for (int k = 0; k < reactants.length; k++) {
+				propensity *= (species[reactants[k]] - offsets[k]);
+			}
+		}
+		return propensity;
 	}
 	
 	/**
@@ -7,10 +7,15 @@
  * 2. One reactant
  * 3. Two reactants w/ repeat
  * 4. Two distinct reactants
+ * 5. Three or more reactant molecules, such as 3S1, 2S1 + S2,
+ *    or S1 + S2 + S3
+ * 
+ * The exact propensity formula of each reaction is picked when the network
+ * is compiled, see CompiledNetwork.
  * 
  * @author Chris Schweinhart (schwein)
  * @author Nate Kibler (nkibler7)
  */
 public enum ReactionType {
-	RXN_ONE, RXN_TWO, RXN_THREE, RXN_FOUR;
+	RXN_ONE, RXN_TWO, RXN_THREE, RXN_FOUR, RXN_HIGHER;
 }
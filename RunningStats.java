@@ -0,0 +1,210 @@
+import java.io.*;
+
+/**
+ * This class keeps running means and variances for the tracked species over
+ * many runs, without storing the runs themselves.  It uses Welford's online
+ * update, so memory use is constant no matter how many runs are added, and
+ * everything is kept in double precision.
+ *
+ * Two RunningStats over different sets of runs can be merged into one, as if
+ * all of the runs had been added to a single RunningStats.  This is used for
+ * combining the results of different threads or processes.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class RunningStats {
+
+	/**
+	 * Normal distribution quantile for a two-sided 95% confidence interval.
+	 */
+	public static final double Z_95 = 1.959963984540054;
+
+	/**
+	 * The number of runs added so far.
+	 */
+	private long count = 0;
+
+	/**
+	 * The running mean of each tracked species.
+	 */
+	private double[] mean;
+
+	/**
+	 * The running sum of squared differences from the mean of each tracked
+	 * species.  Divided by the count to give the variance.
+	 */
+	private double[] m2;
+
+	/**
+	 * Creates a new, empty RunningStats.
+	 *
+	 * @param size
+	 * 			the number of tracked species
+	 */
+	public RunningStats(int size) {
+		mean = new double[size];
+		m2 = new double[size];
+	}
+
+	/**
+	 * Adds the final values of one run.
+	 *
+	 * @param values
+	 * 			the tracked species values, in display order
+	 */
+	public void add(int[] values) {
+		count++;
+		for (int i = 0; i < mean.length; i++) {
+			double delta = values[i] - mean[i];
+			mean[i] += delta / count;
+			m2[i] += delta * (values[i] - mean[i]);
+		}
+	}
+
+	/**
+	 * Merges the given RunningStats into this one.  Afterwards this holds
+	 * the statistics of both sets of runs.
+	 *
+	 * @param other
+	 * 			the RunningStats to merge in, with the same size
+	 */
+	public void merge(RunningStats other) {
+		if (other.mean.length != mean.length) {
+			throw new IllegalArgumentException("Statistics sizes do not match");
+		}
+		if (other.count == 0) {
+			return;
+		}
+		long total = count + other.count;
+		for (int i = 0; i < mean.length; i++) {
+			double delta = other.mean[i] - mean[i];
+			mean[i] += delta * other.count / total;
+			m2[i] += other.m2[i] + delta * delta * ((double) count * other.count / total);
+		}
+		count = total;
+	}
+
+	/**
+	 * Writes the statistics in binary form, so they can be read back and
+	 * continued or merged later without any loss of precision.
+	 *
+	 * @param out
+	 * 			the output to write to
+	 * @throws IOException
+	 * 			if the statistics could not be written
+	 */
+	public void save(DataOutput out) throws IOException {
+		out.writeInt(mean.length);
+		out.writeLong(count);
+		for (int i = 0; i < mean.length; i++) {
+			out.writeDouble(mean[i]);
+			out.writeDouble(m2[i]);
+		}
+	}
+
+	/**
+	 * Reads back statistics written by save().
+	 *
+	 * @param in
+	 * 			the input to read from
+	 * @return
+	 * 			the statistics
+	 * @throws IOException
+	 * 			if the statistics could not be read
+	 */
+	public static RunningStats read(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			throw new IOException("Bad statistics size " + size);
+		}
+		RunningStats stats = new RunningStats(size);
+		stats.count = in.readLong();
+		for (int i = 0; i < size; i++) {
+			stats.mean[i] = in.readDouble();
+			stats.m2[i] = in.readDouble();
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the number of tracked species.
+	 *
+	 * @return
+	 * 			the number of tracked species
+	 */
+	public int size() {
+		return mean.length;
+	}
+
+	/**
+	 * Returns the number of runs added so far.
+	 *
+	 * @return
+	 * 			the number of runs
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the mean of the given tracked species.
+	 *
+	 * @param i
+	 * 			the position of the species in display order
+	 * @return
+	 * 			the mean over all runs
+	 */
+	public double getMean(int i) {
+		return mean[i];
+	}
+
+	/**
+	 * Returns the variance of the given tracked species over all runs.  This
+	 * is the population variance (divided by the number of runs), which is
+	 * what the simulation summary has always reported.
+	 *
+	 * @param i
+	 * 			the position of the species in display order
+	 * @return
+	 * 			the variance over all runs
+	 */
+	public double getVariance(int i) {
+		return count == 0 ? 0 : m2[i] / count;
+	}
+
+	/**
+	 * Returns the standard error of the mean of the given tracked species,
+	 * using the sample variance.
+	 *
+	 * @param i
+	 * 			the position of the species in display order
+	 * @return
+	 * 			the standard error of the mean
+	 */
+	public double getStandardError(int i) {
+		if (count < 2) {
+			return 0;
+		}
+		return Math.sqrt(m2[i] / (count - 1) / count);
+	}
+
+	/**
+	 * Returns the relative standard error of the given tracked species, the
+	 * standard error of the mean divided by the mean.  A species that was
+	 * zero in every run has no error at all.
+	 *
+	 * @param i
+	 * 			the position of the species in display order
+	 * @return
+	 * 			the relative standard error, or infinity for a zero mean
+	 * 			with some spread
+	 */
+	public double getRelativeError(int i) {
+		double error = getStandardError(i);
+		if (error == 0) {
+			return 0;
+		}
+		return error / Math.abs(mean[i]);
+	}
+}
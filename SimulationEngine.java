@@ -0,0 +1,104 @@
+import java.io.*;
+
+/**
+ * Interface for the stochastic simulation algorithms.  An engine simulates
+ * one Model and owns all of the state that changes during a run, so several
+ * engines can run the same Model at once on different threads.
+ *
+ * An engine is made once and then reset() and run() for each run.  Which
+ * engine is used is picked by EngineType.  A long run can also be done in
+ * pieces with advance(), and its state saved between pieces and restored
+ * later, in this engine or a new one for the same Model, to go on exactly
+ * as if it had never stopped.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public interface SimulationEngine {
+
+	/**
+	 * Sets the listener that is told about tracked species changes.
+	 *
+	 * @param l
+	 * 			the new listener, or null for none
+	 */
+	public void setListener(SpeciesListener l);
+
+	/**
+	 * Resets the engine for a new run.  Species are set back to their initial
+	 * values and the random numbers are set to the run's substream.
+	 *
+	 * @param seed
+	 * 			the base seed for the simulation
+	 * @param run
+	 * 			the run number, which picks the random substream
+	 */
+	public void reset(long seed, int run);
+
+	/**
+	 * Runs the simulation from the current state until the simulation time
+	 * is reached.
+	 */
+	public void run();
+
+	/**
+	 * Runs the simulation from the current state for at most the given
+	 * number of steps.  A step is one event, or one leap for approximate
+	 * engines.
+	 *
+	 * @param maxSteps
+	 * 			the most steps to take
+	 * @return
+	 * 			true if the run is over, false if there is more to do
+	 */
+	public boolean advance(long maxSteps);
+
+	/**
+	 * Writes the state of the current run: the time, species, fire counts,
+	 * random numbers, and whatever else the engine needs to go on.
+	 *
+	 * @param out
+	 * 			the output to write to
+	 * @throws IOException
+	 * 			if the state could not be written
+	 */
+	public void save(DataOutput out) throws IOException;
+
+	/**
+	 * Reads back a state written by save() from an engine of the same type
+	 * for the same Model, in place of reset().
+	 *
+	 * @param in
+	 * 			the input to read from
+	 * @throws IOException
+	 * 			if the state could not be read
+	 */
+	public void restore(DataInput in) throws IOException;
+
+	/**
+	 * Returns the current species populations.  The array should not be
+	 * modified.
+	 *
+	 * @return
+	 * 			the current species values
+	 */
+	public int[] getSpecies();
+
+	/**
+	 * Returns the current simulation time.
+	 *
+	 * @return
+	 * 			the current time
+	 */
+	public double getTime();
+
+	/**
+	 * Returns how many times the given reaction has fired in this run.
+	 *
+	 * @param reaction
+	 * 			the index of the reaction, in input file order
+	 * @return
+	 * 			the number of firings
+	 */
+	public int getFired(int reaction);
+}
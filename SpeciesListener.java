@@ -0,0 +1,20 @@
+/**
+ * Interface for receiving notice whenever a tracked species changes during
+ * a simulation run.  Used for the trajectory output of single run simulations.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public interface SpeciesListener {
+
+	/**
+	 * Called after a reaction has fired that changed at least one tracked
+	 * species.
+	 *
+	 * @param time
+	 * 			the current simulation time
+	 * @param species
+	 * 			the current species populations, which should not be modified
+	 */
+	public void speciesChanged(double time, int[] species);
+}
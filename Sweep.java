@@ -0,0 +1,366 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs a parameter sweep: the same runs of a Model for every
+ * point of a grid over one or more reaction rates, summed up in one table.
+ * Each --sweep gives the values of one rate, as a list "Rk=V1,V2,..." or
+ * as N evenly spaced values "Rk=LO:HI:N" (with ":log" for a geometric
+ * grid), and the grid is every combination of them, with the last --sweep
+ * changing fastest.
+ *
+ * Run k uses the random substream for the base seed and k at every point,
+ * so the points are compared on common random numbers.  The runs of
+ * neighbouring points (along the last --sweep) are paired, and the table
+ * gives the mean difference of each tracked species between them, with
+ * the standard error of that difference taken from the paired runs, and
+ * the variance reduction: how many times more runs independent random
+ * numbers would need for the same standard error.
+ *
+ * The points are run in parallel on a ForkJoinPool with --threads threads,
+ * in blocks of runs, with each point's block split into chunks so the
+ * threads stay busy even with few points.  The results are added up in
+ * point and run order after each block, so the table does not depend on
+ * the number of threads.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class Sweep {
+
+	/**
+	 * The number of runs every point does before their results are paired
+	 * and added up, which bounds the memory held for them.
+	 */
+	private static final int BLOCK_RUNS = 1000;
+
+	/**
+	 * The number of runs of one point in one task.
+	 */
+	private static final int CHUNK_RUNS = 50;
+
+	/**
+	 * The command-line options of the job.
+	 */
+	private Options options;
+
+	/**
+	 * Where to echo the table, or null for nowhere.
+	 */
+	private PrintStream console;
+
+	/**
+	 * The Model the sweep starts from, with the --set settings applied.
+	 */
+	private Model base;
+
+	/**
+	 * The names of the swept rates, such as "R2", in --sweep order.
+	 */
+	private String[] names;
+
+	/**
+	 * The values of each swept rate, in --sweep order.
+	 */
+	private double[][] values;
+
+	/**
+	 * The Model for each point of the grid, and the rates at that point.
+	 */
+	private Model[] models;
+	private double[][] points;
+
+	/**
+	 * The statistics of each point, and of its difference from the point
+	 * before it along the last --sweep (null for the first such point).
+	 */
+	private RunningStats[] stats;
+	private RunningStats[] differences;
+
+	/**
+	 * The tracked species at the end of each run of the current block, by
+	 * point.
+	 */
+	private int[][] results;
+
+	/**
+	 * Creates a new Sweep, and the Model for every point of its grid.
+	 *
+	 * @param m
+	 * 			the Model to sweep, with the settings already applied
+	 * @param sweepOptions
+	 * 			the command-line options of the job
+	 * @param echo
+	 * 			where to echo the table, or null for nowhere
+	 * @throws Chem.JobFailure
+	 * 			if a sweep is not valid for the Model
+	 */
+	public Sweep(Model m, Options sweepOptions, PrintStream echo) {
+		base = m;
+		options = sweepOptions;
+		console = echo;
+		List<String> sweeps = options.getSweeps();
+		names = new String[sweeps.size()];
+		values = new double[sweeps.size()][];
+		int numPoints = 1;
+		for (int i = 0; i < names.length; i++) {
+			String sweep = sweeps.get(i);
+			int equals = sweep.indexOf('=');
+			names[i] = sweep.substring(0, equals);
+			try {
+				values[i] = parseValues(sweep.substring(equals + 1));
+			} catch (IllegalArgumentException e) {
+				throw new Chem.JobFailure("Bad sweep " + sweep + ": " + e.getMessage());
+			}
+			numPoints *= values[i].length;
+		}
+
+		// Make the Model for every combination, the last sweep changing fastest
+		models = new Model[numPoints];
+		points = new double[numPoints][names.length];
+		for (int p = 0; p < numPoints; p++) {
+			List<String> settings = new ArrayList<String>();
+			for (int i = names.length - 1, rest = p; i >= 0; i--) {
+				points[p][i] = values[i][rest % values[i].length];
+				rest /= values[i].length;
+				settings.add(names[i] + "=" + points[p][i]);
+			}
+			try {
+				models[p] = base.override(settings);
+			} catch (IllegalArgumentException e) {
+				throw new Chem.JobFailure("Bad sweep: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reads the values of a swept rate: a list "V1,V2,...", or "LO:HI:N"
+	 * for N evenly spaced values from LO to HI, or "LO:HI:N:log" for N
+	 * values with even ratios.
+	 *
+	 * @param text
+	 * 			the values
+	 * @return
+	 * 			the values, in order
+	 * @throws IllegalArgumentException
+	 * 			if the values are not valid
+	 */
+	static double[] parseValues(String text) {
+		String[] parts = text.split(":");
+		if (parts.length == 1) {
+			String[] list = text.split(",");
+			double[] result = new double[list.length];
+			for (int i = 0; i < list.length; i++) {
+				result[i] = Double.parseDouble(list[i]);
+			}
+			return result;
+		}
+		if (parts.length < 3 || parts.length > 4
+				|| (parts.length == 4 && !parts[3].equals("log"))) {
+			throw new IllegalArgumentException("grid must be LO:HI:N or LO:HI:N:log");
+		}
+		double lo = Double.parseDouble(parts[0]);
+		double hi = Double.parseDouble(parts[1]);
+		int n = Integer.parseInt(parts[2]);
+		boolean log = parts.length == 4;
+		if (n < 1) {
+			throw new IllegalArgumentException("grid needs at least one point");
+		}
+		if (log && !(lo > 0 && hi > 0)) {
+			throw new IllegalArgumentException("log grid needs positive ends");
+		}
+		double[] result = new double[n];
+		for (int i = 0; i < n; i++) {
+			double f = n == 1 ? 0 : (double) i / (n - 1);
+			double value = log ? lo * Math.pow(hi / lo, f) : lo + (hi - lo) * f;
+
+			// Round off the last digits, so 0.0011 is not 0.0010999999999999998
+			result[i] = Double.parseDouble(String.format(Locale.ROOT, "%.12g", value));
+		}
+		result[n - 1] = n == 1 ? lo : hi;
+		return result;
+	}
+
+	/**
+	 * One chunk of runs of one point, done as a task on the pool.
+	 */
+	private class Chunk extends RecursiveAction {
+
+		/**
+		 * Version for serialization.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The point of the grid, the runs, and the first run of the block.
+		 */
+		private int point, first, last, blockStart;
+
+		/**
+		 * Creates a new Chunk.
+		 *
+		 * @param p
+		 * 			the point of the grid
+		 * @param firstRun
+		 * 			the first run of the chunk
+		 * @param lastRun
+		 * 			the last run of the chunk
+		 * @param block
+		 * 			the first run of the block the chunk is in
+		 */
+		public Chunk(int p, int firstRun, int lastRun, int block) {
+			point = p;
+			first = firstRun;
+			last = lastRun;
+			blockStart = block;
+		}
+
+		@Override
+		protected void compute() {
+			final int[] slots = results[point];
+			Ensemble ensemble = new Ensemble(models[point], options.getEngine(),
+					options.getSeed(), 1);
+			ensemble.setCoupled(true);
+			ensemble.run(first, last, new Ensemble.RunListener() {
+				@Override
+				public void runFinished(int run, int[] tracked, int[] samples) {
+					System.arraycopy(tracked, 0, slots, (run - blockStart) * tracked.length,
+							tracked.length);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the sweep and writes the table to the output file.
+	 *
+	 * @throws Chem.JobFailure
+	 * 			if the table could not be written
+	 */
+	public void run() {
+		int numRuns = options.getNumRuns();
+		int numTracked = base.getDisplays().length;
+		int lastLength = values[names.length - 1].length;
+		stats = new RunningStats[models.length];
+		differences = new RunningStats[models.length];
+		results = new int[models.length][Math.min(numRuns, BLOCK_RUNS) * numTracked];
+		for (int p = 0; p < models.length; p++) {
+			stats[p] = new RunningStats(numTracked);
+			if (p % lastLength != 0) {
+				differences[p] = new RunningStats(numTracked);
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(options.getThreads());
+		try {
+			int[] row = new int[numTracked];
+			int[] difference = new int[numTracked];
+			for (int first = 1; first <= numRuns; first += BLOCK_RUNS) {
+				int last = Math.min(numRuns, first + BLOCK_RUNS - 1);
+
+				// Do the block's runs at every point
+				final List<Chunk> chunks = new ArrayList<Chunk>();
+				for (int p = 0; p < models.length; p++) {
+					for (int c = first; c <= last; c += CHUNK_RUNS) {
+						chunks.add(new Chunk(p, c, Math.min(last, c + CHUNK_RUNS - 1), first));
+					}
+				}
+				pool.invoke(new RecursiveAction() {
+					@Override
+					protected void compute() {
+						invokeAll(chunks);
+					}
+				});
+
+				// Add them up in order, pairing each run with the point before
+				for (int k = 0; k <= last - first; k++) {
+					for (int p = 0; p < models.length; p++) {
+						System.arraycopy(results[p], k * numTracked, row, 0, numTracked);
+						stats[p].add(row);
+						if (differences[p] != null) {
+							for (int i = 0; i < numTracked; i++) {
+								difference[i] = row[i] - results[p - 1][k * numTracked + i];
+							}
+							differences[p].add(difference);
+						}
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		// Write the table
+		String output = table();
+		try {
+			TrajectoryWriter out = new TrajectoryWriter(
+					new FileOutputStream(options.getOutputFile()));
+			try {
+				out.append(output);
+			} finally {
+				out.close();
+			}
+		} catch (FileNotFoundException e) {
+			throw new Chem.JobFailure("The output file could not be found.");
+		} catch (IOException e) {
+			throw new Chem.JobFailure("Failure writing to output file.");
+		}
+		if (console != null) {
+			console.println(output);
+		}
+	}
+
+	/**
+	 * Builds the summary table, with a row for each point, in tab-separated
+	 * columns: the point's rates, then for each tracked species the mean
+	 * and variance (and standard error, with --ci), and the difference from
+	 * the point before, its standard error, and the variance reduction.
+	 *
+	 * @return
+	 * 			the table
+	 */
+	private String table() {
+		int[] displays = base.getDisplays();
+		boolean intervals = options.getIntervals();
+		StringBuilder output = new StringBuilder("\nSweep Summary: ");
+		output.append(options.getNumRuns()).append(" runs at each of ").append(models.length)
+				.append(" points, on common random numbers\nPoint");
+		for (String name : names) {
+			output.append('\t').append(name);
+		}
+		for (int i = 0; i < displays.length; i++) {
+			String label = "S" + (displays[i] + base.getMinIndex());
+			output.append('\t').append(label).append(" Mean\t").append(label).append(" Variance");
+			if (intervals) {
+				output.append('\t').append(label).append(" Standard Error");
+			}
+			output.append('\t').append(label).append(" Difference\t").append(label)
+					.append(" Difference Standard Error\t").append(label)
+					.append(" Variance Reduction");
+		}
+
+		for (int p = 0; p < models.length; p++) {
+			output.append('\n').append(p + 1);
+			for (double value : points[p]) {
+				output.append('\t').append(value);
+			}
+			for (int i = 0; i < displays.length; i++) {
+				output.append('\t').append(stats[p].getMean(i)).append('\t')
+						.append(stats[p].getVariance(i));
+				if (intervals) {
+					output.append('\t').append(stats[p].getStandardError(i));
+				}
+				if (differences[p] == null) {
+					output.append("\t\t\t");
+				} else {
+					double independent = stats[p].getVariance(i) + stats[p - 1].getVariance(i);
+					output.append('\t').append(differences[p].getMean(i)).append('\t')
+							.append(differences[p].getStandardError(i)).append('\t')
+							.append(independent / differences[p].getVariance(i));
+				}
+			}
+		}
+		return output.toString();
+	}
+}
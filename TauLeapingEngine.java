@@ -0,0 +1,539 @@
+import java.io.*;
+
+/**
+ * This class runs explicit tau-leaping for a single Model.  Instead of firing
+ * one reaction at a time, each leap advances the time by tau and fires every
+ * reaction a Poisson number of times.  This is an approximation, but for models
+ * with large populations it does the work of thousands of events in one leap.
+ *
+ * The leap size is picked with the Cao-Gillespie-Petzold method, which bounds
+ * the relative change of every reactant population.  Reactions that are within
+ * a few firings of using up one of their reactants are "critical" and fire at
+ * most once per leap, which keeps the populations from going negative.  When
+ * the best leap is only a few events long anyway, the engine falls back to a
+ * short burst of exact direct method steps.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class TauLeapingEngine implements SimulationEngine {
+
+	/**
+	 * Error control parameter, the largest relative change in any reactant
+	 * population that a leap should cause.
+	 */
+	private static final double EPSILON = 0.03;
+
+	/**
+	 * Reactions that can fire fewer than this many more times before using
+	 * up a reactant are treated as critical.
+	 */
+	private static final int CRITICAL_FIRINGS = 10;
+
+	/**
+	 * If a leap would cover fewer than this many expected events, exact
+	 * steps are used instead.
+	 */
+	private static final double SSA_FACTOR = 10;
+
+	/**
+	 * Number of exact steps to take each time the engine falls back.
+	 */
+	private static final int SSA_STEPS = 100;
+
+	/**
+	 * This is the Model that is being simulated.
+	 */
+	private Model model;
+
+	/**
+	 * This is the Model's compiled reactions, shared with other engines.
+	 */
+	private CompiledNetwork network;
+
+	/**
+	 * These are the net change arrays of the compiled network, in CSR form.
+	 */
+	private int[] changeStart, changeSpecies, changeAmount;
+
+	/**
+	 * This is the number of reactions in the network.
+	 */
+	private int numReactions;
+
+	/**
+	 * This array holds, for each species, the highest order of any reaction
+	 * it is a reactant of.  Used for the leap size bound.
+	 */
+	private int[] highestOrder;
+
+	/**
+	 * This array holds, for each species, the largest coefficient it has in
+	 * a reaction of its highest order, such as 2 for 2S ->.
+	 */
+	private int[] multiplicity;
+
+	/**
+	 * These are arrays of length numSpecies with the current species values
+	 * and a copy from before the current leap, for undoing a bad leap.
+	 */
+	private int[] species, saved;
+
+	/**
+	 * This is an array of length numReactions with the current propensities.
+	 */
+	private double[] propensities;
+
+	/**
+	 * This is an array of length numReactions with whether or not each
+	 * reaction is critical for the current leap.
+	 */
+	private boolean[] critical;
+
+	/**
+	 * These arrays of length numSpecies hold the expected change and its
+	 * variance per unit time for each species, from noncritical reactions.
+	 */
+	private double[] drift, spread;
+
+	/**
+	 * This is an array of length numReactions with how many times each
+	 * reaction fires in the current leap.
+	 */
+	private long[] firings;
+
+	/**
+	 * This is an array of length numReactions counting how often each
+	 * reaction has fired in the current run.
+	 */
+	private int[] fired;
+
+	/**
+	 * This represents the current time, which starts at zero and ticks
+	 * up to the simulation time.
+	 */
+	private double time = 0;
+
+	/**
+	 * This is set once nothing can fire anymore, which ends the run early.
+	 */
+	private boolean done = false;
+
+	/**
+	 * This is the engine's own random number generator.
+	 */
+	private RandomStream random = new RandomStream(0, 0);
+
+	/**
+	 * This is the listener for tracked species changes, or null if nobody
+	 * needs to know.
+	 */
+	private SpeciesListener listener = null;
+
+	/**
+	 * These count events and propensity recalculations since the last
+	 * flush to Metrics.  Only counted when Metrics.ENABLED.
+	 */
+	private long events, recalculated;
+
+	/**
+	 * Creates a new TauLeapingEngine for the given Model.
+	 *
+	 * @param m
+	 * 			the Model to simulate
+	 */
+	public TauLeapingEngine(Model m) {
+		model = m;
+		network = m.getNetwork();
+		numReactions = network.getNumReactions();
+		changeStart = network.getChangeStart();
+		changeSpecies = network.getChangeSpecies();
+		changeAmount = network.getChangeAmount();
+		int numSpecies = network.getNumSpecies();
+		species = new int[numSpecies];
+		saved = new int[numSpecies];
+		drift = new double[numSpecies];
+		spread = new double[numSpecies];
+		highestOrder = new int[numSpecies];
+		multiplicity = new int[numSpecies];
+		propensities = new double[numReactions];
+		critical = new boolean[numReactions];
+		firings = new long[numReactions];
+		fired = new int[numReactions];
+
+		// Work out the highest reaction order of each species, and its
+		// multiplicity in those reactions, where only a coefficient such as
+		// 2S counts, not S + S
+		int[] reactantStart = network.getReactantStart();
+		int[] reactantIndex = network.getReactantIndex();
+		int[] reactantOffset = network.getReactantOffset();
+		for (int j = 0; j < numReactions; j++) {
+			int order = reactantStart[j + 1] - reactantStart[j];
+			for (int k = reactantStart[j]; k < reactantStart[j + 1]; k++) {
+				int s = reactantIndex[k];
+				if (order > highestOrder[s]) {
+					highestOrder[s] = order;
+					multiplicity[s] = 0;
+				}
+				if (order == highestOrder[s]) {
+					multiplicity[s] = Math.max(multiplicity[s], reactantOffset[k] + 1);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setListener(SpeciesListener l) {
+		listener = l;
+	}
+
+	@Override
+	public void reset(long seed, int run) {
+		int[] initialSpecies = model.getInitialSpecies();
+		time = 0;
+		done = false;
+		random.setRun(seed, run);
+
+		// Reset species to initial values
+		for (int j = 0; j < species.length; j++) {
+			species[j] = initialSpecies[j];
+		}
+
+		for (int i = 0; i < numReactions; i++) {
+			fired[i] = 0;
+		}
+	}
+
+	@Override
+	public void run() {
+		advance(Long.MAX_VALUE);
+	}
+
+	@Override
+	public boolean advance(long maxSteps) {
+		int simulationTime = model.getSimulationTime();
+
+		for (long step = 0; step < maxSteps && !done && time < simulationTime; step++) {
+
+			// Calculate all propensities
+			double total = 0;
+			for (int j = 0; j < numReactions; j++) {
+				propensities[j] = network.propensity(j, species);
+				total += propensities[j];
+			}
+
+			if (Metrics.ENABLED) {
+				recalculated += numReactions;
+			}
+
+			// Nothing can fire anymore
+			if (total <= 0) {
+				done = true;
+				break;
+			}
+
+			// Pick critical reactions and the noncritical leap size
+			double criticalTotal = markCritical();
+			double leap = noncriticalLeap();
+
+			// Leap would be too short to be worth it, so take exact steps
+			if (leap < SSA_FACTOR / total) {
+				exactSteps(simulationTime);
+				continue;
+			}
+
+			// Try leaps until one keeps every population non-negative
+			while (!tryLeap(leap, criticalTotal, simulationTime)) {
+				leap /= 2;
+			}
+		}
+		if (Metrics.ENABLED) {
+			Metrics.get().record(events, 0, recalculated, 0, random.takeDraws());
+			events = recalculated = 0;
+		}
+		return done || time >= simulationTime;
+	}
+
+	@Override
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(time);
+		out.writeBoolean(done);
+		for (int j = 0; j < species.length; j++) {
+			out.writeInt(species[j]);
+		}
+		for (int i = 0; i < numReactions; i++) {
+			out.writeInt(fired[i]);
+		}
+		random.save(out);
+	}
+
+	@Override
+	public void restore(DataInput in) throws IOException {
+		time = in.readDouble();
+		done = in.readBoolean();
+		for (int j = 0; j < species.length; j++) {
+			species[j] = in.readInt();
+		}
+		for (int i = 0; i < numReactions; i++) {
+			fired[i] = in.readInt();
+		}
+		random.restore(in);
+	}
+
+	/**
+	 * Marks each reaction as critical or not, based on how many more times
+	 * it can fire before using up one of its reactants.
+	 *
+	 * @return
+	 * 			the sum of the critical reactions' propensities
+	 */
+	private double markCritical() {
+		double criticalTotal = 0;
+		for (int j = 0; j < numReactions; j++) {
+			critical[j] = false;
+			if (propensities[j] <= 0) {
+				continue;
+			}
+			for (int k = changeStart[j]; k < changeStart[j + 1]; k++) {
+				if (changeAmount[k] < 0
+						&& species[changeSpecies[k]] / -changeAmount[k] < CRITICAL_FIRINGS) {
+					critical[j] = true;
+					criticalTotal += propensities[j];
+					break;
+				}
+			}
+		}
+		return criticalTotal;
+	}
+
+	/**
+	 * Calculates the largest leap for the noncritical reactions that keeps
+	 * the expected relative change of every reactant within EPSILON.
+	 *
+	 * @return
+	 * 			the noncritical leap size, infinite if there are none
+	 */
+	private double noncriticalLeap() {
+		for (int i = 0; i < species.length; i++) {
+			drift[i] = 0;
+			spread[i] = 0;
+		}
+		for (int j = 0; j < numReactions; j++) {
+			if (critical[j] || propensities[j] <= 0) {
+				continue;
+			}
+			for (int k = changeStart[j]; k < changeStart[j + 1]; k++) {
+				drift[changeSpecies[k]] += changeAmount[k] * propensities[j];
+				spread[changeSpecies[k]] += changeAmount[k] * changeAmount[k] * propensities[j];
+			}
+		}
+
+		double leap = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < species.length; i++) {
+			if (highestOrder[i] == 0 || spread[i] == 0) {
+				continue;
+			}
+
+			// Bound on the change of this species from its highest order
+			// reaction, which grows when the reaction uses it more than once.
+			// For 2S + B it is (3/2)(2 + 1/(x - 1)), as Cao, Gillespie, and
+			// Petzold give it, and otherwise each further molecule of mS adds
+			// m / (x - m)
+			double g = highestOrder[i];
+			if (highestOrder[i] == 3 && multiplicity[i] == 2) {
+				if (species[i] > 1) {
+					g = 1.5 * (2 + 1.0 / (species[i] - 1));
+				}
+			} else {
+				for (int m = 1; m < multiplicity[i] && species[i] > m; m++) {
+					g += (double) m / (species[i] - m);
+				}
+			}
+			double bound = Math.max(EPSILON * species[i] / g, 1);
+
+			if (drift[i] != 0) {
+				leap = Math.min(leap, bound / Math.abs(drift[i]));
+			}
+			leap = Math.min(leap, bound * bound / spread[i]);
+		}
+		return leap;
+	}
+
+	/**
+	 * Attempts one leap.  The leap is cut short if a critical reaction fires
+	 * first or the simulation ends.  If any population would go negative, the
+	 * leap is undone.
+	 *
+	 * @param leap
+	 * 			the noncritical leap size
+	 * @param criticalTotal
+	 * 			the sum of the critical reactions' propensities
+	 * @param simulationTime
+	 * 			the time at which the run ends
+	 * @return
+	 * 			true if the leap was taken, false if it was undone
+	 */
+	private boolean tryLeap(double leap, double criticalTotal, int simulationTime) {
+
+		// Time until the next critical reaction
+		double criticalLeap = criticalTotal > 0 ? random.nextExponential(criticalTotal)
+				: Double.POSITIVE_INFINITY;
+
+		// Pick the leap, and which critical reaction fires if any
+		int criticalIndex = -1;
+		double tau = Math.min(leap, criticalLeap);
+		if (time + tau > simulationTime) {
+			tau = simulationTime - time;
+		} else if (criticalLeap <= leap) {
+			criticalIndex = pickCritical(random.nextDouble() * criticalTotal);
+		}
+
+		// Draw firings for every noncritical reaction
+		for (int j = 0; j < numReactions; j++) {
+			firings[j] = 0;
+			if (!critical[j] && propensities[j] > 0) {
+				firings[j] = random.nextPoisson(propensities[j] * tau);
+			}
+		}
+		if (criticalIndex >= 0) {
+			firings[criticalIndex] = 1;
+		}
+
+		// Apply the firings, undoing everything if a population goes negative
+		System.arraycopy(species, 0, saved, 0, species.length);
+		for (int j = 0; j < numReactions; j++) {
+			if (firings[j] == 0) {
+				continue;
+			}
+			for (int k = changeStart[j]; k < changeStart[j + 1]; k++) {
+				species[changeSpecies[k]] += (int) (changeAmount[k] * firings[j]);
+			}
+		}
+		for (int i = 0; i < species.length; i++) {
+			if (species[i] < 0) {
+				System.arraycopy(saved, 0, species, 0, species.length);
+				return false;
+			}
+		}
+
+		// Keep the leap
+		time += tau;
+		boolean track = false;
+		boolean[] tracks = model.getTracks();
+		for (int j = 0; j < numReactions; j++) {
+			fired[j] += (int) firings[j];
+			if (Metrics.ENABLED) {
+				events += firings[j];
+			}
+		}
+		for (int i = 0; i < species.length; i++) {
+			if (tracks[i] && species[i] != saved[i]) {
+				track = true;
+			}
+		}
+
+		// Output for tracked species changes
+		if (track && listener != null) {
+			listener.speciesChanged(time, species);
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the critical reaction whose slice of the cumulative critical
+	 * propensity holds the given target.
+	 *
+	 * @param target
+	 * 			a value in (0, criticalTotal]
+	 * @return
+	 * 			the index of the chosen reaction
+	 */
+	private int pickCritical(double target) {
+		int last = -1;
+		for (int j = 0; j < numReactions; j++) {
+			if (critical[j]) {
+				target -= propensities[j];
+				last = j;
+				if (target <= 0) {
+					return j;
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Takes a burst of exact direct method steps, used when leaping would
+	 * not cover enough events to be worth it.
+	 *
+	 * @param simulationTime
+	 * 			the time at which the run ends
+	 */
+	private void exactSteps(int simulationTime) {
+		int[] dependStart = network.getDependStart();
+		int[] dependIndex = network.getDependIndex();
+		boolean[] touchesTracked = network.getTouchesTracked();
+		for (int step = 0; step < SSA_STEPS; step++) {
+			double total = 0;
+			for (int j = 0; j < numReactions; j++) {
+				total += propensities[j];
+			}
+			if (total <= 0) {
+				time = simulationTime;
+				return;
+			}
+
+			// Advance to the next event and test for simulation end
+			double next = time + random.nextExponential(total);
+			if (next > simulationTime) {
+				time = simulationTime;
+				return;
+			}
+			time = next;
+
+			// Choose and fire the next reaction
+			double target = random.nextDouble() * total;
+			int index = 0;
+			for (int j = 0; j < numReactions; j++) {
+				if (propensities[j] > 0) {
+					target -= propensities[j];
+					index = j;
+					if (target <= 0) {
+						break;
+					}
+				}
+			}
+			fired[index]++;
+			network.fire(index, species);
+			if (Metrics.ENABLED) {
+				events++;
+				recalculated += dependStart[index + 1] - dependStart[index];
+			}
+
+			// Recalculate propensities for effected reactions
+			for (int k = dependStart[index]; k < dependStart[index + 1]; k++) {
+				propensities[dependIndex[k]] = network.propensity(dependIndex[k], species);
+			}
+
+			// Output for tracked species changes
+			if (touchesTracked[index] && listener != null) {
+				listener.speciesChanged(time, species);
+			}
+		}
+	}
+
+	@Override
+	public int[] getSpecies() {
+		return species;
+	}
+
+	@Override
+	public double getTime() {
+		return time;
+	}
+
+	@Override
+	public int getFired(int reaction) {
+		return fired[reaction];
+	}
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+
+/**
+ * This class formats simulation output straight into a reusable byte buffer,
+ * instead of building Strings with repeated concatenation.  Integers are
+ * written digit by digit with no allocation, and doubles are formatted into
+ * a reused StringBuilder, so they look exactly like Double.toString().  The
+ * buffer is handed to the underlying stream in large blocks.
+ *
+ * Output is plain ASCII, which is all the simulation ever writes.
+ *
+ * @author Chris Schweinhart (schwein)
+ * @author Nate Kibler (nkibler7)
+ */
+public class TrajectoryWriter {
+
+	/**
+	 * Default buffer size in bytes.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * The stream that full buffers are written to.
+	 */
+	private OutputStream sink;
+
+	/**
+	 * The output buffer and the number of bytes in it.
+	 */
+	private byte[] buffer;
+	private int length = 0;
+
+	/**
+	 * The number of bytes already handed to the stream.
+	 */
+	private long written = 0;
+
+	/**
+	 * Scratch space for formatting doubles.
+	 */
+	private StringBuilder scratch = new StringBuilder(32);
+
+	/**
+	 * Scratch space for formatting integers, filled from the end.
+	 */
+	private byte[] digits = new byte[20];
+
+	/**
+	 * Creates a new TrajectoryWriter with the default buffer size.
+	 *
+	 * @param out
+	 * 			the stream to write to
+	 */
+	public TrajectoryWriter(OutputStream out) {
+		this(out, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new TrajectoryWriter.
+	 *
+	 * @param out
+	 * 			the stream to write to
+	 * @param capacity
+	 * 			the buffer size in bytes, at least 64
+	 */
+	public TrajectoryWriter(OutputStream out, int capacity) {
+		sink = out;
+		buffer = new byte[Math.max(64, capacity)];
+	}
+
+	/**
+	 * Makes sure there is room for the given number of bytes, writing the
+	 * buffer out if needed.
+	 *
+	 * @param needed
+	 * 			the number of bytes about to be added
+	 * @throws IOException
+	 * 			if the buffer could not be written
+	 */
+	private void ensure(int needed) throws IOException {
+		if (length + needed > buffer.length) {
+			drain();
+		}
+	}
+
+	/**
+	 * Writes the buffered bytes to the underlying stream.
+	 *
+	 * @throws IOException
+	 * 			if the bytes could not be written
+	 */
+	private void drain() throws IOException {
+		if (length > 0) {
+			sink.write(buffer, 0, length);
+			written += length;
+			length = 0;
+		}
+	}
+
+	/**
+	 * Appends the given text, which must be ASCII.
+	 *
+	 * @param text
+	 * 			the text to append
+	 * @return
+	 * 			this writer
+	 * @throws IOException
+	 * 			if the buffer could not be written
+	 */
+	public TrajectoryWriter append(CharSequence text) throws IOException {
+		int n = text.length();
+		for (int start = 0; start < n; ) {
+			ensure(1);
+			int end = Math.min(n, start + buffer.length - length);
+			for (int i = start; i < end; i++) {
+				buffer[length++] = (byte) text.charAt(i);
+			}
+			start = end;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a single ASCII character.
+	 *
+	 * @param c
+	 * 			the character to append
+	 * @return
+	 * 			this writer
+	 * @throws IOException
+	 * 			if the buffer could not be written
+	 */
+	public TrajectoryWriter append(char c) throws IOException {
+		ensure(1);
+		buffer[length++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * Appends the decimal form of the given integer.
+	 *
+	 * @param value
+	 * 			the integer to append
+	 * @return
+	 * 			this writer
+	 * @throws IOException
+	 * 			if the buffer could not be written
+	 */
+	public TrajectoryWriter append(long value) throws IOException {
+		ensure(digits.length);
+		if (value == Long.MIN_VALUE) {
+			return append(Long.toString(value));
+		}
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int pos = digits.length;
+		do {
+			digits[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		int n = digits.length - pos;
+		System.arraycopy(digits, pos, buffer, length, n);
+		length += n;
+		return this;
+	}
+
+	/**
+	 * Appends the given double, formatted exactly as Double.toString().
+	 *
+	 * @param value
+	 * 			the double to append
+	 * @return
+	 * 			this writer
+	 * @throws IOException
+	 * 			if the buffer could not be written
+	 */
+	public TrajectoryWriter append(double value) throws IOException {
+		scratch.setLength(0);
+		scratch.append(value);
+		return append(scratch);
+	}
+
+	/**
+	 * Returns the number of bytes appended so far, whether or not they have
+	 * been handed to the stream yet.
+	 *
+	 * @return
+	 * 			the number of bytes of output
+	 */
+	public long getBytesWritten() {
+		return written + length;
+	}
+
+	/**
+	 * Writes all buffered output and flushes the underlying stream.
+	 *
+	 * @throws IOException
+	 * 			if the output could not be written
+	 */
+	public void flush() throws IOException {
+		drain();
+		sink.flush();
+	}
+
+	/**
+	 * Writes all buffered output and closes the underlying stream.
+	 *
+	 * @throws IOException
+	 * 			if the output could not be written
+	 */
+	public void close() throws IOException {
+		drain();
+		sink.close();
+	}
+}